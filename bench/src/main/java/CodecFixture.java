@@ -0,0 +1,55 @@
+import bench.CodecBenchmark;
+import java.io.IOException;
+
+// Default-package side of CodecBenchmark
+public class CodecFixture implements CodecBenchmark.Fixture {
+    private Message message;
+    private byte[] frame;
+    private BinaryCodec encoder;
+    private BinaryCodec decoder;
+    private byte[] binaryFrame;
+    
+    @Override
+    public void setup(int contentLength) throws IOException {
+        message = new Message("alice", "all", "x".repeat(contentLength), Message.MessageType.BROADCAST);
+        message.setSequence(123_456);
+        frame = MessageFrames.encode(message);
+        
+        // Both sides past the NAME frames, as on a connection already in use
+        encoder = new BinaryCodec(new NameTable());
+        decoder = new BinaryCodec(new NameTable());
+        byte[] first = encoder.encode(message);
+        int offset = 0;
+        while (offset < first.length) {
+            int length = readInt(first, offset);
+            decoder.decode(first, offset + 4, length);
+            offset += 4 + length;
+        }
+        binaryFrame = encoder.encode(message);
+    }
+    
+    @Override
+    public byte[] serialize() throws IOException {
+        return MessageFrames.encode(message);
+    }
+    
+    @Override
+    public Object deserialize() throws IOException {
+        return MessageFrames.decode(frame, 4, frame.length - 4);
+    }
+    
+    @Override
+    public byte[] binaryEncode() {
+        return encoder.encode(message);
+    }
+    
+    @Override
+    public Object binaryDecode() throws IOException {
+        return decoder.decode(binaryFrame, 4, binaryFrame.length - 4);
+    }
+    
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xFF) << 24 | (data[offset + 1] & 0xFF) << 16
+            | (data[offset + 2] & 0xFF) << 8 | (data[offset + 3] & 0xFF);
+    }
+}
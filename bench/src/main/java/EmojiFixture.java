@@ -0,0 +1,21 @@
+import bench.EmojiBenchmark;
+import java.util.Map;
+
+// Default-package side of EmojiBenchmark
+public class EmojiFixture implements EmojiBenchmark.Fixture {
+    @Override
+    public String processEmojis(String text) {
+        return Client.DEFAULT_EMOJIS.translate(text);
+    }
+    
+    // What the client did before EmojiTranslator: one String.replace per
+    // shortcut, each scanning and usually copying the whole text
+    @Override
+    public String replaceEach(String text) {
+        String processed = text;
+        for (Map.Entry<String, String> entry : Client.DEFAULT_EMOJIS.getShortcuts().entrySet()) {
+            processed = processed.replace(entry.getKey(), entry.getValue());
+        }
+        return processed;
+    }
+}
@@ -0,0 +1,45 @@
+import bench.JournalBenchmark;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+// Default-package side of JournalBenchmark, writing to a temporary directory
+public class JournalFixture implements JournalBenchmark.Fixture {
+    private Path directory;
+    private MessageJournal journal;
+    private Message message;
+    private long expected;
+    
+    @Override
+    public void setup(long fsyncMillis) throws IOException {
+        directory = Files.createTempDirectory("journal-bench");
+        journal = new MessageJournal(directory, MessageJournal.DEFAULT_SEGMENT_BYTES,
+            MessageJournal.DEFAULT_RETENTION_BYTES, MessageJournal.DEFAULT_RETENTION_MILLIS, fsyncMillis);
+        message = new Message("alice", "all", "Hello everyone, the build is green again.", Message.MessageType.BROADCAST);
+        message.setSequence(1);
+    }
+    
+    @Override
+    public void appendBatch(int messages) {
+        for (int i = 0; i < messages; i++) {
+            journal.append(message);
+        }
+        expected += messages;
+        while (journal.getAppended() + journal.getDropped() < expected) {
+            Thread.onSpinWait();
+        }
+    }
+    
+    @Override
+    public void tearDown() throws IOException {
+        journal.close();
+        if (journal.getDropped() > 0) {
+            System.err.println("Journal dropped " + journal.getDropped() + " messages");
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,89 @@
+import bench.RoutingBenchmark;
+
+// Default-package side of RoutingBenchmark
+public class RoutingFixture implements RoutingBenchmark.Fixture {
+    private MessageRouter router;
+    private BenchSession sender;
+    private Message broadcast;
+    private Message privateMessage;
+    private Message userListRequest;
+    
+    // Connected session that takes the binary frame of whatever it is sent
+    static final class BenchSession implements ChatSession {
+        private static final NameTable NAMES = new NameTable();
+        private final User user;
+        long received;
+        int bytes;
+        
+        BenchSession(String username) {
+            user = new User(username);
+        }
+        
+        @Override
+        public User getUser() {
+            return user;
+        }
+        
+        @Override
+        public String getUsername() {
+            return user.getUsername();
+        }
+        
+        @Override
+        public boolean isRunning() {
+            return true;
+        }
+        
+        @Override
+        public void send(EncodedMessage message) {
+            bytes += message.binaryFrame(NAMES).length;
+            received++;
+        }
+        
+        @Override
+        public int getQueuedMessages() {
+            return 0;
+        }
+        
+        @Override
+        public void close() {
+        }
+    }
+    
+    @Override
+    public void setup(int recipients) {
+        router = new MessageRouter(new SessionRegistry());
+        for (int i = 0; i < recipients; i++) {
+            router.join(new BenchSession("user" + i));
+        }
+        sender = new BenchSession("sender");
+        router.join(sender);
+        // Snapshots come from the roster as of the last presence update
+        router.getPresence().flush();
+        
+        broadcast = new Message("sender", "all", "Hello everyone, the build is green again.", Message.MessageType.BROADCAST);
+        privateMessage = new Message("sender", "user" + (recipients / 2), "Can you review my change?", Message.MessageType.PRIVATE);
+        userListRequest = new Message("sender", "server", null, Message.MessageType.USER_LIST);
+    }
+    
+    @Override
+    public void broadcast() {
+        router.broadcastMessage(broadcast, sender);
+    }
+    
+    @Override
+    public void privateMessage() {
+        router.handleMessage(sender, privateMessage);
+    }
+    
+    @Override
+    public void userList() {
+        router.handleMessage(sender, userListRequest);
+    }
+    
+    @Override
+    public void tearDown() {
+        router.getPresence().shutdown();
+        router.getHistory().shutdown();
+    }
+}
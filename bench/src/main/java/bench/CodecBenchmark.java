@@ -0,0 +1,59 @@
+package bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// One chat message through each wire format: Java serialization as framed
+// by MessageFrames (the legacy protocol) and the negotiated BinaryCodec,
+// with the peer already knowing the sender and recipient names.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    public interface Fixture {
+        void setup(int contentLength) throws IOException;
+        
+        byte[] serialize() throws IOException;
+        
+        Object deserialize() throws IOException;
+        
+        byte[] binaryEncode();
+        
+        Object binaryDecode() throws IOException;
+    }
+    
+    @Param({"32", "512"})
+    public int contentLength;
+    
+    private Fixture fixture;
+    
+    @Setup
+    public void setup() throws IOException {
+        fixture = Fixtures.load("CodecFixture", Fixture.class);
+        fixture.setup(contentLength);
+    }
+    
+    @Benchmark
+    public byte[] serialize() throws IOException {
+        return fixture.serialize();
+    }
+    
+    @Benchmark
+    public Object deserialize() throws IOException {
+        return fixture.deserialize();
+    }
+    
+    @Benchmark
+    public byte[] binaryEncode() {
+        return fixture.binaryEncode();
+    }
+    
+    @Benchmark
+    public Object binaryDecode() throws IOException {
+        return fixture.binaryDecode();
+    }
+}
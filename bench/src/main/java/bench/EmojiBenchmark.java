@@ -0,0 +1,45 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// The client's emoji translation, which runs on every message it displays,
+// on text with no shortcuts and on text with several, against the
+// replace-per-shortcut loop it used before.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EmojiBenchmark {
+    public interface Fixture {
+        String processEmojis(String text);
+        
+        String replaceEach(String text);
+    }
+    
+    @Param({"plain", "shortcuts"})
+    public String text;
+    
+    private Fixture fixture;
+    private String input;
+    
+    @Setup
+    public void setup() {
+        fixture = Fixtures.load("EmojiFixture", Fixture.class);
+        input = text.equals("plain")
+            ? "Are we still meeting at noon? I can bring the slides and the notes from last week."
+            : "Great job :) the release is out :rocket: thanks everyone <3 see you tomorrow :wave:";
+    }
+    
+    @Benchmark
+    public String processEmojis() {
+        return fixture.processEmojis(input);
+    }
+    
+    @Benchmark
+    public String replaceEach() {
+        return fixture.replaceEach(input);
+    }
+}
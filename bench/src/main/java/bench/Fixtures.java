@@ -0,0 +1,19 @@
+package bench;
+
+// The chat classes live in the default package, which code in a named
+// package cannot refer to, and JMH will not generate benchmarks in the
+// default package. So each benchmark declares a Fixture interface and drives
+// the application through a default-package class implementing it, loaded
+// by name once per trial; the measured calls are ordinary interface calls.
+final class Fixtures {
+    private Fixtures() {
+    }
+    
+    static <T> T load(String className, Class<T> type) {
+        try {
+            return type.cast(Class.forName(className).getDeclaredConstructor().newInstance());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot load benchmark fixture " + className, e);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// MessageJournal end to end: each operation appends a batch of messages and
+// waits until the writer thread has written them all, so the score is
+// messages per second on disk at each fsync interval (-1 never forces, 0
+// forces every write batch).
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JournalBenchmark {
+    private static final int BATCH = 1000;
+    
+    public interface Fixture {
+        void setup(long fsyncMillis) throws IOException;
+        
+        void appendBatch(int messages);
+        
+        void tearDown() throws IOException;
+    }
+    
+    @Param({"-1", "100", "0"})
+    public long fsyncMillis;
+    
+    private Fixture fixture;
+    
+    @Setup
+    public void setup() throws IOException {
+        fixture = Fixtures.load("JournalFixture", Fixture.class);
+        fixture.setup(fsyncMillis);
+    }
+    
+    @TearDown
+    public void tearDown() throws IOException {
+        fixture.tearDown();
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void append() {
+        fixture.appendBatch(BATCH);
+    }
+}
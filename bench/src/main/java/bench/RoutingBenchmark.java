@@ -0,0 +1,60 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// MessageRouter with a number of connected sessions: a broadcast fanned out
+// to all of them, a private message (recipient lookup, delivery and the
+// sender's confirmation) and the user-list snapshot a client asks for. The
+// sessions are stubs that take each message's binary frame, as a binary
+// codec connection would, and queue nothing.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoutingBenchmark {
+    public interface Fixture {
+        void setup(int recipients);
+        
+        void broadcast();
+        
+        void privateMessage();
+        
+        void userList();
+        
+        void tearDown();
+    }
+    
+    @Param({"10", "100", "1000", "10000"})
+    public int recipients;
+    
+    private Fixture fixture;
+    
+    @Setup
+    public void setup() {
+        fixture = Fixtures.load("RoutingFixture", Fixture.class);
+        fixture.setup(recipients);
+    }
+    
+    @TearDown
+    public void tearDown() {
+        fixture.tearDown();
+    }
+    
+    @Benchmark
+    public void broadcast() {
+        fixture.broadcast();
+    }
+    
+    @Benchmark
+    public void privateMessage() {
+        fixture.privateMessage();
+    }
+    
+    @Benchmark
+    public void userList() {
+        fixture.userList();
+    }
+}
@@ -0,0 +1,466 @@
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Headless load generator for the chat server. Connects a number of
+// simulated users over loopback with the same protocol as Client (binary
+// codec or Java serialization, against either server engine) and has them
+// send a mix of broadcasts, private messages and renames at a fixed total
+// rate, printing throughput and latency once a second and a summary at the end.
+//
+// Every chat message carries the time it was scheduled to be sent, and each
+// recipient records now minus that time in an HdrHistogram, so latency is
+// end to end (sender's socket, routing, fan-out, recipient's socket) and a
+// server that stalls shows up as latency rather than as fewer samples
+// (no coordinated omission). Renames are timed until the renamed user sees
+// its new name in a presence update, so they include the presence tick.
+//
+// Usage: LoadGenerator [--host=localhost] [--port=8080] [--users=N]
+//                      [--rate=N messages/s, 0 as fast as possible]
+//                      [--duration=S] [--warmup=S] [--mix=BROADCAST,PRIVATE,RENAME]
+//                      [--size=BYTES] [--codec=bin1|java] [--senders=N]
+//                      [--server=threads|virtual|nio] [--histogram=FILE]
+public class LoadGenerator {
+    private static final String MARKER = "lg:";
+    private static final long REPORT_NANOS = 1_000_000_000L;
+    private static final long DRAIN_MILLIS = 2000;
+    
+    private String host = "localhost";
+    private int port = 8080;
+    private int users = 50;
+    private int rate = 1000;
+    private int durationSeconds = 30;
+    private int warmupSeconds = 5;
+    private int broadcastPercent = 80;
+    private int privatePercent = 15;
+    private int size = 64;
+    private boolean binary = true;
+    private int senders = 4;
+    private Server.Engine embedded;
+    private String histogramFile;
+    
+    private final List<SimUser> simUsers = new ArrayList<>();
+    private volatile boolean sending;
+    private String padding;
+    
+    // Recorded by reader threads, in microseconds
+    private final Recorder broadcastLatency = new Recorder(3);
+    private final Recorder privateLatency = new Recorder(3);
+    private final Recorder renameLatency = new Recorder(3);
+    private final Histogram broadcastTotal = new Histogram(3);
+    private final Histogram privateTotal = new Histogram(3);
+    private final Histogram renameTotal = new Histogram(3);
+    
+    private final LongAdder broadcastsSent = new LongAdder();
+    private final LongAdder privatesSent = new LongAdder();
+    private final LongAdder renamesSent = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder undelivered = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    
+    // One connected user; written by the sender thread that owns it, read by its own thread
+    private final class SimUser {
+        final String baseName;
+        volatile String name;
+        volatile String pendingRename;
+        volatile long renameStart;
+        private Socket socket;
+        private BufferedInputStream socketInput;
+        private boolean framed;
+        private BinaryCodec codec;
+        private DataOutputStream frameOutput;
+        private DataInputStream frameInput;
+        private ResettingObjectOutputStream output;
+        private ObjectInputStream input;
+        
+        SimUser(String name) {
+            this.baseName = name;
+            this.name = name;
+        }
+        
+        // Same handshake as Client: detect the engine, offer the codec, wait for the CONNECT reply
+        void connect() throws IOException {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            socketInput = new BufferedInputStream(socket.getInputStream());
+            socketInput.mark(4);
+            framed = new DataInputStream(socketInput).readInt() == MessageFrames.GREETING;
+            if (framed) {
+                frameOutput = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                frameInput = new DataInputStream(socketInput);
+            } else {
+                socketInput.reset();
+                output = new ResettingObjectOutputStream(socket.getOutputStream());
+                input = new ObjectInputStream(socketInput);
+            }
+            
+            Message connect = new Message(name, "server", name, Message.MessageType.CONNECT);
+            if (binary) {
+                connect.setCodec(BinaryCodec.NAME);
+            }
+            send(connect);
+            String notice = null;
+            while (true) {
+                Message reply;
+                try {
+                    reply = read();
+                } catch (EOFException e) {
+                    // Refused; the server says why before closing
+                    throw new IOException(name + " was refused: " + notice);
+                }
+                if (reply.getType() == Message.MessageType.CONNECT) {
+                    if (BinaryCodec.NAME.equals(reply.getCodec())) {
+                        if (!framed) {
+                            framed = true;
+                            frameOutput = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                            frameInput = new DataInputStream(socketInput);
+                        }
+                        codec = new BinaryCodec(new NameTable());
+                    }
+                    return;
+                }
+                notice = reply.getContent();
+            }
+        }
+        
+        synchronized void send(Message message) throws IOException {
+            if (framed && codec != null) {
+                codec.write(frameOutput, message);
+            } else if (framed) {
+                MessageFrames.write(frameOutput, message);
+            } else {
+                output.writeMessage(message);
+            }
+        }
+        
+        Message read() throws IOException {
+            if (framed && codec != null) {
+                return codec.read(frameInput);
+            } else if (framed) {
+                return MessageFrames.read(frameInput);
+            }
+            try {
+                return (Message) input.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Unexpected message from server: " + e.getMessage());
+            }
+        }
+        
+        void readLoop() {
+            try {
+                while (true) {
+                    receive(this, read());
+                }
+            } catch (IOException e) {
+                if (sending) {
+                    errors.increment();
+                    System.err.println(name + " lost its connection: " + e.getMessage());
+                }
+            }
+        }
+        
+        void close() {
+            try {
+                send(new Message(name, "server", "Disconnecting", Message.MessageType.DISCONNECT));
+            } catch (IOException e) {
+                // Closing anyway
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing left to do with it
+            }
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        if (!generator.parse(args)) {
+            System.exit(1);
+        }
+        generator.run();
+        System.exit(0);
+    }
+    
+    private boolean parse(String[] args) {
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            try {
+                if (arg.startsWith("--host=")) {
+                    host = value;
+                } else if (arg.startsWith("--port=")) {
+                    port = Integer.parseInt(value);
+                } else if (arg.startsWith("--users=")) {
+                    users = Integer.parseInt(value);
+                } else if (arg.startsWith("--rate=")) {
+                    rate = Integer.parseInt(value);
+                } else if (arg.startsWith("--duration=")) {
+                    durationSeconds = Integer.parseInt(value);
+                } else if (arg.startsWith("--warmup=")) {
+                    warmupSeconds = Integer.parseInt(value);
+                } else if (arg.startsWith("--mix=")) {
+                    String[] parts = value.split(",");
+                    broadcastPercent = Integer.parseInt(parts[0].trim());
+                    privatePercent = parts.length > 1 ? Integer.parseInt(parts[1].trim()) : 100 - broadcastPercent;
+                } else if (arg.startsWith("--size=")) {
+                    size = Integer.parseInt(value);
+                } else if (arg.startsWith("--codec=")) {
+                    binary = !value.equals("java");
+                } else if (arg.startsWith("--senders=")) {
+                    senders = Integer.parseInt(value);
+                } else if (arg.startsWith("--server=")) {
+                    embedded = Server.Engine.valueOf(value.toUpperCase());
+                } else if (arg.startsWith("--histogram=")) {
+                    histogramFile = value;
+                } else {
+                    System.err.println("Unknown option " + arg);
+                    return false;
+                }
+            } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                System.err.println("Invalid option " + arg);
+                return false;
+            }
+        }
+        if (users < 2 || rate < 0 || durationSeconds < 1 || warmupSeconds < 0 || size < 0 || senders < 1
+                || broadcastPercent < 0 || privatePercent < 0 || broadcastPercent + privatePercent > 100) {
+            System.err.println("Need at least 2 users, a positive duration and a mix adding up to at most 100");
+            return false;
+        }
+        senders = Math.min(senders, users);
+        return true;
+    }
+    
+    private void run() throws Exception {
+        Server server = null;
+        if (embedded != null) {
+            server = new Server(port, embedded, users + 16);
+            Thread serverThread = new Thread(server::start, "server");
+            serverThread.setDaemon(true);
+            serverThread.start();
+            Thread.sleep(500);
+        }
+        
+        padding = size > 0 ? " " + "x".repeat(size) : "";
+        System.out.println("Connecting " + users + " users to " + host + ":" + port + "...");
+        for (int i = 0; i < users; i++) {
+            SimUser user = new SimUser("lg" + i);
+            user.connect();
+            simUsers.add(user);
+            Thread reader = new Thread(user::readLoop, "reader-" + user.baseName);
+            reader.setDaemon(true);
+            reader.start();
+        }
+        
+        sending = true;
+        List<Thread> senderThreads = new ArrayList<>();
+        for (int i = 0; i < senders; i++) {
+            int first = i;
+            Thread sender = new Thread(() -> sendLoop(first), "sender-" + i);
+            sender.setDaemon(true);
+            sender.start();
+            senderThreads.add(sender);
+        }
+        
+        report();
+        
+        sending = false;
+        for (Thread sender : senderThreads) {
+            sender.join();
+        }
+        drain();
+        summarize();
+        
+        for (SimUser user : simUsers) {
+            user.close();
+        }
+        if (server != null) {
+            server.stop();
+        }
+    }
+    
+    // Sends this thread's share of the rate from the users it owns (every senders-th one)
+    private void sendLoop(int first) {
+        List<SimUser> owned = new ArrayList<>();
+        for (int i = first; i < simUsers.size(); i += senders) {
+            owned.add(simUsers.get(i));
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long period = rate > 0 ? 1_000_000_000L * senders / rate : 0;
+        long next = System.nanoTime();
+        
+        while (sending) {
+            long intended;
+            if (period > 0) {
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                // Late sends keep their scheduled time, so the delay counts as latency
+                intended = next;
+                next += period;
+            } else {
+                intended = System.nanoTime();
+            }
+            
+            SimUser user = owned.get(random.nextInt(owned.size()));
+            int pick = random.nextInt(100);
+            try {
+                if (pick < broadcastPercent) {
+                    user.send(new Message(user.name, "all", MARKER + intended + padding, Message.MessageType.BROADCAST));
+                    broadcastsSent.increment();
+                } else if (pick < broadcastPercent + privatePercent) {
+                    SimUser recipient = simUsers.get(random.nextInt(simUsers.size()));
+                    if (recipient == user) {
+                        recipient = simUsers.get((simUsers.indexOf(user) + 1) % simUsers.size());
+                    }
+                    user.send(new Message(user.name, recipient.name, MARKER + intended + padding, Message.MessageType.PRIVATE));
+                    privatesSent.increment();
+                } else if (user.pendingRename == null) {
+                    // Alternates between two names so they stay unique
+                    String newName = user.name.equals(user.baseName) ? user.baseName + "_" : user.baseName;
+                    user.renameStart = intended;
+                    user.pendingRename = newName;
+                    user.send(new Message(user.name, "server", newName, Message.MessageType.USERNAME_UPDATE));
+                    user.name = newName;
+                    renamesSent.increment();
+                }
+            } catch (IOException e) {
+                errors.increment();
+            }
+        }
+    }
+    
+    // Called on the user's reader thread for everything the server sends it
+    private void receive(SimUser user, Message message) {
+        long now = System.nanoTime();
+        String content = message.getContent();
+        switch (message.getType()) {
+            case BROADCAST:
+            case PRIVATE:
+                if (content != null && content.startsWith(MARKER)) {
+                    int end = content.indexOf(' ', MARKER.length());
+                    long intended = Long.parseLong(content.substring(MARKER.length(), end < 0 ? content.length() : end));
+                    Recorder latency = message.getType() == Message.MessageType.BROADCAST ? broadcastLatency : privateLatency;
+                    latency.recordValue(Math.max(0, (now - intended) / 1000));
+                    delivered.increment();
+                } else if ("Server".equals(message.getSender()) && content != null
+                        && (content.contains("not online") || content.contains("offline"))) {
+                    // Sent to a name its owner had just given up
+                    undelivered.increment();
+                }
+                break;
+            case USER_RENAMED:
+            case USER_PRESENCE:
+                String pending = user.pendingRename;
+                if (pending != null && content != null && content.contains(pending)) {
+                    renameLatency.recordValue(Math.max(0, (now - user.renameStart) / 1000));
+                    user.pendingRename = null;
+                }
+                break;
+            default:
+                break;
+        }
+    }
+    
+    // Prints one line per second; totals start once the warmup is over
+    private void report() throws InterruptedException {
+        System.out.printf("%n%8s %10s %12s %10s %10s %10s %10s%n",
+            "time", "sent/s", "delivered/s", "p50 us", "p99 us", "p99.9 us", "max us");
+        long start = System.nanoTime();
+        long sentBefore = 0;
+        long deliveredBefore = 0;
+        Histogram interval = null;
+        Histogram renames = null;
+        for (int second = 1; second <= warmupSeconds + durationSeconds; second++) {
+            long wait = start + second * REPORT_NANOS - System.nanoTime();
+            if (wait > 0) {
+                Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+            }
+            
+            Histogram broadcasts = broadcastLatency.getIntervalHistogram();
+            Histogram privates = privateLatency.getIntervalHistogram();
+            renames = renameLatency.getIntervalHistogram(renames);
+            boolean measuring = second > warmupSeconds;
+            if (measuring) {
+                broadcastTotal.add(broadcasts);
+                privateTotal.add(privates);
+                renameTotal.add(renames);
+            }
+            interval = broadcasts;
+            interval.add(privates);
+            
+            long sent = broadcastsSent.sum() + privatesSent.sum() + renamesSent.sum();
+            long received = delivered.sum();
+            System.out.printf("%7ds%s %10d %12d %10d %10d %10d %10d%n", second, measuring ? " " : "*",
+                sent - sentBefore, received - deliveredBefore, interval.getValueAtPercentile(50),
+                interval.getValueAtPercentile(99), interval.getValueAtPercentile(99.9), interval.getMaxValue());
+            sentBefore = sent;
+            deliveredBefore = received;
+            
+            if (second == warmupSeconds) {
+                broadcastsSent.reset();
+                privatesSent.reset();
+                renamesSent.reset();
+                delivered.reset();
+                undelivered.reset();
+                sentBefore = 0;
+                deliveredBefore = 0;
+            }
+        }
+    }
+    
+    // Waits for messages still in flight, until deliveries stop or DRAIN_MILLIS pass
+    private void drain() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + DRAIN_MILLIS;
+        long last = -1;
+        while (System.currentTimeMillis() < deadline && delivered.sum() != last) {
+            last = delivered.sum();
+            Thread.sleep(100);
+        }
+        broadcastTotal.add(broadcastLatency.getIntervalHistogram());
+        privateTotal.add(privateLatency.getIntervalHistogram());
+        renameTotal.add(renameLatency.getIntervalHistogram());
+    }
+    
+    private void summarize() throws IOException {
+        long broadcasts = broadcastsSent.sum();
+        long privates = privatesSent.sum();
+        long renames = renamesSent.sum();
+        long expected = broadcasts * (users - 1) + privates;
+        System.out.printf("%n%d users, %s codec, %ds measured after a %ds warmup (* above)%n",
+            users, binary ? "binary" : "java", durationSeconds, warmupSeconds);
+        System.out.printf("Sent: %d broadcasts, %d private, %d renames (%.0f msg/s)%n",
+            broadcasts, privates, renames, (broadcasts + privates + renames) / (double) durationSeconds);
+        System.out.printf("Delivered: %d of %d expected (%.0f msg/s), %d private messages to stale names, %d errors%n",
+            delivered.sum(), expected, delivered.sum() / (double) durationSeconds, undelivered.sum(), errors.sum());
+        
+        System.out.printf("%nLatency (us) %10s %8s %8s %8s %8s %8s %10s%n",
+            "count", "p50", "p90", "p99", "p99.9", "p99.99", "max");
+        printLatency("broadcast", broadcastTotal);
+        printLatency("private", privateTotal);
+        printLatency("rename", renameTotal);
+        
+        if (histogramFile != null) {
+            Histogram all = broadcastTotal.copy();
+            all.add(privateTotal);
+            try (PrintStream out = new PrintStream(new FileOutputStream(histogramFile))) {
+                all.outputPercentileDistribution(out, 1.0);
+            }
+            System.out.println("\nDelivery latency distribution written to " + histogramFile);
+        }
+    }
+    
+    private static void printLatency(String label, Histogram histogram) {
+        System.out.printf("%-12s %10d %8d %8d %8d %8d %8d %10d%n", label, histogram.getTotalCount(),
+            histogram.getValueAtPercentile(50), histogram.getValueAtPercentile(90),
+            histogram.getValueAtPercentile(99), histogram.getValueAtPercentile(99.9),
+            histogram.getValueAtPercentile(99.99), histogram.getMaxValue());
+    }
+}
@@ -0,0 +1,299 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+
+// Compact wire format negotiated during the CONNECT handshake (see
+// Message.getCodec). Frames use the same 4-byte length prefix as
+// MessageFrames; the payload starts with a kind byte:
+//
+//   MESSAGE  type, varint timestamp, name sender, name recipient, string content
+//            [, varint sequence]   (only when non-zero; older peers ignore it)
+//   NAME     varint id, string      (defines an id used by later MESSAGE frames)
+//
+// A name is a varint: 0 for null, (id << 1) | 1 for an interned name, or
+// (byteLength + 1) << 1 followed by UTF-8 bytes for one sent inline. Strings
+// are a varint byte length + 1 (0 for null) followed by UTF-8 bytes.
+//
+// One instance per connection, used by a single writer and a single reader
+// at a time. The outbound side interns through a NameTable, which may be
+// shared, and remembers which ids this peer has already been sent.
+public class BinaryCodec {
+    public static final String NAME = "bin1";
+    
+    private static final int KIND_MESSAGE = 1;
+    private static final int KIND_NAME = 2;
+    private static final Message.MessageType[] TYPES = Message.MessageType.values();
+    
+    private final NameTable names;
+    private final BitSet namesSent = new BitSet();
+    private final Writer writer = new Writer();
+    private String[] namesReceived = new String[16];
+    
+    public BinaryCodec(NameTable names) {
+        this.names = names;
+    }
+    
+    // Codecs a peer offered, comma separated, preferred first
+    public static boolean isOffered(String codecs) {
+        if (codecs == null) {
+            return false;
+        }
+        for (String codec : codecs.split(",")) {
+            if (codec.trim().equals(NAME)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    // Encodes just the MESSAGE frame. It depends only on the name table, not
+    // on what a connection has been sent, so one copy can go to every peer
+    // that shares the table once encodeNames has been written to each.
+    public static byte[] encodeMessage(Message message, NameTable names) {
+        Writer writer = new Writer();
+        writer.writeMessage(message, names.idOf(message.getSender()), names.idOf(message.getRecipient()));
+        return writer.toByteArray();
+    }
+    
+    // Returns one or more complete frames, length prefixes included
+    public byte[] encode(Message message) {
+        writer.reset();
+        int senderId = defineName(message.getSender());
+        int recipientId = defineName(message.getRecipient());
+        writer.writeMessage(message, senderId, recipientId);
+        return writer.toByteArray();
+    }
+        
+    // NAME frames this peer still needs before message can be decoded, or null
+    public byte[] encodeNames(Message message) {
+        writer.reset();
+        defineName(message.getSender());
+        defineName(message.getRecipient());
+        return writer.position == 0 ? null : writer.toByteArray();
+    }
+    
+    // Decodes one frame payload; returns null for frames that only update state
+    public Message decode(byte[] data, int offset, int length) throws IOException {
+        Reader in = new Reader(data, offset, length);
+        int kind = in.readByte();
+        
+        if (kind == KIND_NAME) {
+            int id = (int) in.readVarLong();
+            String name = in.readString();
+            if (id < 0 || id >= NameTable.MAX_NAMES || name == null) {
+                throw new StreamCorruptedException("Invalid name id: " + id);
+            }
+            if (id >= namesReceived.length) {
+                namesReceived = Arrays.copyOf(namesReceived, Math.max(id + 1, namesReceived.length * 2));
+            }
+            namesReceived[id] = name;
+            return null;
+        }
+        if (kind != KIND_MESSAGE) {
+            throw new StreamCorruptedException("Unknown frame kind: " + kind);
+        }
+        
+        int type = in.readByte();
+        if (type >= TYPES.length) {
+            throw new StreamCorruptedException("Unknown message type: " + type);
+        }
+        long timestamp = in.readVarLong();
+        String sender = readName(in);
+        String recipient = readName(in);
+        String content = in.readString();
+        
+        Message message = new Message(sender, recipient, content, TYPES[type]);
+        message.setTimestamp(timestamp);
+        if (in.hasRemaining()) {
+            message.setSequence(in.readVarLong());
+        }
+        return message;
+    }
+    
+    public void write(DataOutputStream out, Message message) throws IOException {
+        out.write(encode(message));
+        out.flush();
+    }
+    
+    public Message read(DataInputStream in) throws IOException {
+        while (true) {
+            int length = in.readInt();
+            MessageFrames.checkLength(length);
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            
+            Message message = decode(payload, 0, length);
+            if (message != null) {
+                return message;
+            }
+        }
+    }
+    
+    private int defineName(String name) {
+        int id = names.idOf(name);
+        if (id >= 0 && !namesSent.get(id)) {
+            int start = writer.beginFrame(KIND_NAME);
+            writer.writeVarLong(id);
+            writer.writeString(name);
+            writer.endFrame(start);
+            namesSent.set(id);
+        }
+        return id;
+    }
+    
+    private String readName(Reader in) throws IOException {
+        long value = in.readVarLong();
+        if (value == 0) {
+            return null;
+        }
+        if ((value & 1) == 1) {
+            long id = value >>> 1;
+            String name = id < namesReceived.length ? namesReceived[(int) id] : null;
+            if (name == null) {
+                throw new StreamCorruptedException("Undefined name id: " + id);
+            }
+            return name;
+        }
+        return in.readUtf8((int) (value >>> 1) - 1);
+    }
+    
+    private static final class Writer {
+        private byte[] buffer = new byte[256];
+        private int position;
+    
+        void reset() {
+            position = 0;
+        }
+    
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, position);
+        }
+    
+        void writeMessage(Message message, int senderId, int recipientId) {
+            int start = beginFrame(KIND_MESSAGE);
+            writeByte(message.getType().ordinal());
+            writeVarLong(message.getTimestamp());
+            writeName(senderId, message.getSender());
+            writeName(recipientId, message.getRecipient());
+            writeString(message.getContent());
+            if (message.getSequence() != 0) {
+                writeVarLong(message.getSequence());
+            }
+            endFrame(start);
+        }
+    
+        int beginFrame(int kind) {
+            int start = position;
+            ensureCapacity(5);
+            position += 4;
+            buffer[position++] = (byte) kind;
+            return start;
+        }
+    
+        void endFrame(int start) {
+            int length = position - start - 4;
+            buffer[start] = (byte) (length >>> 24);
+            buffer[start + 1] = (byte) (length >>> 16);
+            buffer[start + 2] = (byte) (length >>> 8);
+            buffer[start + 3] = (byte) length;
+        }
+    
+        void writeName(int id, String name) {
+            if (name == null) {
+                writeVarLong(0);
+            } else if (id >= 0) {
+                writeVarLong(((long) id << 1) | 1);
+            } else {
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                writeVarLong((long) (bytes.length + 1) << 1);
+                writeBytes(bytes);
+            }
+        }
+        
+        void writeString(String value) {
+            if (value == null) {
+                writeVarLong(0);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(bytes.length + 1);
+            writeBytes(bytes);
+        }
+        
+        void writeByte(int value) {
+            ensureCapacity(1);
+            buffer[position++] = (byte) value;
+        }
+        
+        void writeBytes(byte[] bytes) {
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+        
+        void writeVarLong(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+        
+        private void ensureCapacity(int extra) {
+            if (position + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + extra));
+            }
+        }
+    }
+    
+    private static final class Reader {
+        private final byte[] data;
+        private final int limit;
+        private int position;
+        
+        Reader(byte[] data, int offset, int length) {
+            this.data = data;
+            this.position = offset;
+            this.limit = offset + length;
+        }
+        
+        boolean hasRemaining() {
+            return position < limit;
+        }
+        
+        int readByte() throws IOException {
+            if (position >= limit) {
+                throw new EOFException("Truncated frame");
+            }
+            return data[position++] & 0xFF;
+        }
+        
+        long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new StreamCorruptedException("Malformed varint");
+        }
+        
+        String readString() throws IOException {
+            long length = readVarLong();
+            return length == 0 ? null : readUtf8((int) length - 1);
+        }
+        
+        String readUtf8(int length) throws IOException {
+            if (length < 0 || length > limit - position) {
+                throw new EOFException("Truncated frame");
+            }
+            String value = new String(data, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+// A connected chat participant, independent of how its socket is serviced.
+// Implemented by ClientHandler (one thread per connection) and NioConnection
+// (event-loop driven) so MessageRouter can route between either kind.
+public interface ChatSession {
+    User getUser();
+    
+    String getUsername();
+    
+    boolean isRunning();
+    
+    // Sends a message whose encodings may be shared with other recipients
+    void send(EncodedMessage message);
+    
+    default void sendMessage(Message message) {
+        send(new EncodedMessage(message));
+    }
+    
+    // Messages queued but not yet written, so bulk senders can pace themselves
+    int getQueuedMessages();
+    
+    void close();
+    
+    // Closes for a reason counted by ServerMetrics
+    default void close(ServerMetrics.DisconnectReason reason) {
+        close();
+    }
+}
@@ -3,30 +3,88 @@ import java.awt.event.*;
 import java.io.*;
 import java.net.Socket;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.swing.*;
 import javax.swing.border.EmptyBorder;
+import javax.swing.text.Element;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.html.HTML;
 import javax.swing.text.html.HTMLDocument;
 import javax.swing.text.html.HTMLEditorKit;
 
 public class Client extends JFrame {
     private static final String DEFAULT_HOST = "localhost";
     private static final int DEFAULT_PORT = 8080;
+    private static final int HANDSHAKE_TIMEOUT_MS = 10000;
+    private static final int DEFAULT_MAX_MESSAGES = 500;
+    // Most messages the sender writes before flushing
+    private static final int MAX_SEND_BATCH = 64;
+    // Sequences remembered to spot a message shown both live and in a replay
+    private static final int RECENT_SEQUENCES = 4096;
+    
+    // A message for the sender thread, and the sent bubble showing it, or 0 for none
+    private static final class Outgoing {
+        final Message message;
+        final long bubbleId;
+        
+        Outgoing(Message message, long bubbleId) {
+            this.message = message;
+            this.bubbleId = bubbleId;
+        }
+    }
+    // Queued by closeConnection: the sender stops once everything before it is written
+    private static final Outgoing END = new Outgoing(null, 0);
     
     private Socket socket;
-    private ObjectOutputStream output;
+    // Resets its handle table periodically so a long session stays flat on both ends
+    private ResettingObjectOutputStream output;
     private ObjectInputStream input;
+    // Length-prefixed transport, used when the server greets with
+    // MessageFrames.GREETING or once BinaryCodec has been negotiated
+    private boolean framed;
+    private BufferedInputStream socketInput;
+    private DataOutputStream frameOutput;
+    private DataInputStream frameInput;
+    private BinaryCodec codec;
     private String username;
-    private boolean connected = false;
+    private volatile boolean connected = false;
+    // Sequence of the newest message received from resumeServer, sent on
+    // reconnect so the server replays what was missed meanwhile
+    private volatile long lastSequence;
+    private String resumeServer;
+    // Newest RECENT_SEQUENCES sequences received; the listener thread's, and
+    // connectToServer's before the listener starts
+    private final Set<Long> recentSequences = Collections.newSetFromMap(new LinkedHashMap<Long, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+            return size() > RECENT_SEQUENCES;
+        }
+    });
     
     // GUI Components
     private JEditorPane chatArea;
+    // Body of chatArea's document, one div per message; EDT only
+    private Element chatBody;
+    // Messages kept in chatArea; older ones are removed as new ones arrive
+    private final int maxMessages;
     private JTextField messageField;
     private JButton sendButton;
     private JList<String> userList;
     private DefaultListModel<String> userListModel;
+    // Presence version userListModel reflects, or -1 while waiting for a snapshot; EDT only
+    private long presenceVersion = -1;
     private JLabel statusLabel;
     private JButton connectButton;
     private JButton disconnectButton;
@@ -36,6 +94,24 @@ public class Client extends JFrame {
     
     // Thread for listening to server messages
     private Thread listenerThread;
+    // Writes what the EDT queues, so a slow or congested server never stalls
+    // the window; one thread and one queue per connection
+    private Thread senderThread;
+    private BlockingQueue<Outgoing> outbox;
+    // Shutting down the previous connection, if any; EDT only
+    private Thread closer;
+    // Sent bubbles waiting for their status, by id, with the info line
+    // shown before the status; EDT only
+    private final Map<Long, String> unconfirmed = new HashMap<>();
+    private long nextBubbleId;
+    // Messages the listener has read but the EDT has not shown yet
+    private final ConcurrentLinkedQueue<Message> incoming = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger stagedCount = new AtomicInteger();
+    private final AtomicBoolean frameScheduled = new AtomicBoolean();
+    // Single-shot; started by the listener when it stages into an idle queue
+    private final Timer frameTimer = new Timer(FramePacer.FRAME_MILLIS, e -> drainIncoming());
+    // Chat staged but not yet rendered; EDT only
+    private final FramePacer pacer;
     
     // Emoji map
     private static final Map<String, String> EMOJI_MAP = new HashMap<>();
@@ -57,8 +133,19 @@ public class Client extends JFrame {
         EMOJI_MAP.put(":check:", "✅");
         EMOJI_MAP.put(":x:", "❌");
     }
+    // Package-private so EmojiBenchmark can run it without a window
+    static final EmojiTranslator DEFAULT_EMOJIS = new EmojiTranslator(EMOJI_MAP);
+    // The defaults plus any added with /emoji; EDT only
+    private EmojiTranslator emojis = DEFAULT_EMOJIS;
     
     public Client() {
+        this(DEFAULT_MAX_MESSAGES);
+    }
+    
+    public Client(int maxMessages) {
+        this.maxMessages = maxMessages;
+        this.pacer = new FramePacer(maxMessages);
+        frameTimer.setRepeats(false);
         setupGUI();
         setupEventHandlers();
     }
@@ -168,6 +255,7 @@ public class Client extends JFrame {
         
         doc.putProperty("stylesheet", css);
         chatArea.setDocument(doc);
+        chatBody = doc.getElement(doc.getDefaultRootElement(), StyleConstants.NameAttribute, HTML.Tag.BODY);
         
         JScrollPane chatScrollPane = new JScrollPane(chatArea);
         chatScrollPane.setBorder(null);
@@ -384,6 +472,8 @@ public class Client extends JFrame {
             @Override
             public void windowClosing(WindowEvent e) {
                 disconnectFromServer();
+                // The window is going away, so waiting here costs nothing
+                awaitClosed();
             }
         });
     }
@@ -432,15 +522,24 @@ public class Client extends JFrame {
         
         try {
             socket = new Socket(host, port);
-            output = new ObjectOutputStream(socket.getOutputStream());
-            input = new ObjectInputStream(socket.getInputStream());
+            openStreams();
             
-            // Send connection message with username
+            // Send connection message with username, offering the binary codec
             Message connectMessage = new Message(username, "server", username, Message.MessageType.CONNECT);
-            output.writeObject(connectMessage);
+            connectMessage.setCodec(BinaryCodec.NAME);
+            String server = host + ":" + port + "/" + username;
+            if (!server.equals(resumeServer)) {
+                resumeServer = server;
+                lastSequence = 0;
+                recentSequences.clear();
+            }
+            connectMessage.setSequence(lastSequence);
+            writeMessage(connectMessage);
+            awaitConnectReply();
             
-            // Start listener thread
+            // Start listener and sender threads
             startListenerThread();
+            startSenderThread();
             
             // Update GUI
             connected = true;
@@ -456,68 +555,199 @@ public class Client extends JFrame {
         } catch (IOException e) {
             JOptionPane.showMessageDialog(this, "Failed to connect: " + e.getMessage(), 
                 "Connection Error", JOptionPane.ERROR_MESSAGE);
+            try {
+                if (socket != null) {
+                    socket.close();
+                }
+            } catch (IOException ex) {
+                System.err.println("Error closing connection: " + ex.getMessage());
+            }
         }
     }
     
-    private void disconnectFromServer() {
-        if (connected) {
-            try {
-                if (output != null) {
-                    Message disconnectMessage = new Message(username, "server", "Disconnecting", Message.MessageType.DISCONNECT);
-                    output.writeObject(disconnectMessage);
+    // Both server engines speak first: a ClientHandler writes the
+    // ObjectOutputStream header, NioServer writes MessageFrames.GREETING
+    private void openStreams() throws IOException {
+        socketInput = new BufferedInputStream(socket.getInputStream());
+        socketInput.mark(4);
+        framed = new DataInputStream(socketInput).readInt() == MessageFrames.GREETING;
+        codec = null;
+        
+        if (framed) {
+            frameOutput = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            frameInput = new DataInputStream(socketInput);
+        } else {
+            socketInput.reset();
+            output = new ResettingObjectOutputStream(socket.getOutputStream());
+            input = new ObjectInputStream(socketInput);
+        }
+    }
+    
+    // Reads up to the server's CONNECT reply, which settles the codec for the
+    // rest of the session. Anything before it (such as a refusal) is shown.
+    private void awaitConnectReply() throws IOException {
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+        try {
+            while (true) {
+                Message message;
+                try {
+                    message = readMessage();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("Unexpected reply from server: " + e.getMessage());
+                }
+                
+                if (message.getType() == Message.MessageType.CONNECT && BinaryCodec.NAME.equals(message.getCodec())) {
+                    switchToBinaryCodec();
+                }
+                handleIncomingMessage(message);
+                if (message.getType() == Message.MessageType.CONNECT) {
+                    return;
                 }
-            } catch (IOException e) {
-                System.err.println("Error sending disconnect message: " + e.getMessage());
             }
-            
+        } finally {
+            if (!socket.isClosed()) {
+                socket.setSoTimeout(0);
+            }
+        }
+    }
+    
+    // ObjectInputStream never reads past the reply, so framing continues on the same buffered stream
+    private void switchToBinaryCodec() throws IOException {
+        if (!framed) {
+            framed = true;
+            frameOutput = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            frameInput = new DataInputStream(socketInput);
+        }
+        codec = new BinaryCodec(new NameTable());
+    }
+    
+    private void writeMessage(Message message) throws IOException {
+        writeUnflushed(message);
+        flushOutput();
+    }
+    
+    // Framed transports are buffered, so the sender can flush a batch at
+    // once; the object stream flushes every message itself
+    private void writeUnflushed(Message message) throws IOException {
+        if (framed && codec != null) {
+            frameOutput.write(codec.encode(message));
+        } else if (framed) {
+            frameOutput.write(MessageFrames.encode(message));
+        } else {
+            output.writeMessage(message);
+        }
+    }
+    
+    private void flushOutput() throws IOException {
+        if (framed) {
+            frameOutput.flush();
+        }
+    }
+    
+    private Message readMessage() throws IOException, ClassNotFoundException {
+        if (framed && codec != null) {
+            return codec.read(frameInput);
+        } else if (framed) {
+            return MessageFrames.read(frameInput);
+        }
+        return (Message) input.readObject();
+    }
+    
+    private void disconnectFromServer() {
+        if (connected) {
+            // The closer waits for the sender to write it
+            send(new Message(username, "server", "Disconnecting", Message.MessageType.DISCONNECT));
             closeConnection();
         }
     }
     
+    // EDT. Hands the connection to a closer thread, which gives the sender
+    // up to a second to write what is queued, closes the socket (ending a
+    // read or write stuck on a congested connection), waits for both
+    // threads and reports anything left in the outbox as not sent; the
+    // window is reset once it is done, so the EDT never waits.
     private void closeConnection() {
+        if (closer != null || socket == null) {
+            return;
+        }
         connected = false;
+        disconnectButton.setEnabled(false);
+        messageField.setEnabled(false);
+        sendButton.setEnabled(false);
+        statusLabel.setText("Disconnecting...");
         
-        // Stop listener thread
-        if (listenerThread != null && listenerThread.isAlive()) {
-            listenerThread.interrupt();
+        Socket closing = socket;
+        Thread listener = listenerThread;
+        Thread sender = senderThread;
+        BlockingQueue<Outgoing> queue = outbox;
+        senderThread = null;
+        outbox = null;
+        closer = new Thread(() -> {
             try {
-                listenerThread.join(1000); // Wait up to 1 second for thread to finish
+                if (sender != null) {
+                    queue.offer(END);
+                    sender.join(1000);
+                }
+                try {
+                    closing.close();
+                } catch (IOException e) {
+                    System.err.println("Error closing connection: " + e.getMessage());
+                }
+                if (listener != null && listener.isAlive()) {
+                    listener.interrupt();
+                    listener.join(1000);
+                }
+                if (sender != null && sender.isAlive()) {
+                    sender.interrupt();
+                    sender.join(1000);
+                }
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
             }
-        }
-        
-        // Close streams and socket
-        try {
-            if (input != null) {
-                input.close();
-                input = null;
-            }
-            if (output != null) {
-                output.close();
-                output = null;
-            }
-            if (socket != null && !socket.isClosed()) {
-                socket.close();
-                socket = null;
+            // Queued after the sender had already stopped, so nothing will write them
+            if (queue != null) {
+                List<Outgoing> unsent = new ArrayList<>();
+                queue.drainTo(unsent);
+                unsent.remove(END);
+                if (!unsent.isEmpty()) {
+                    SwingUtilities.invokeLater(() -> markSent(unsent, false));
+                }
             }
-        } catch (IOException e) {
-            System.err.println("Error closing connection: " + e.getMessage());
-        }
+            SwingUtilities.invokeLater(this::connectionClosed);
+        }, "client-closer");
+        closer.setDaemon(true);
+        closer.start();
+    }
         
-        // Update GUI
-        SwingUtilities.invokeLater(() -> {
-            connectButton.setEnabled(true);
-            disconnectButton.setEnabled(false);
-            messageField.setEnabled(false);
-            sendButton.setEnabled(false);
-            statusLabel.setText("Disconnected");
-            statusLabel.setForeground(new Color(255, 193, 7));
-            userListModel.clear();
-            updateOnlineUsersCount();
+    // EDT, once the closer is done with the old connection's streams
+    private void connectionClosed() {
+        closer = null;
+        socket = null;
+        input = null;
+        output = null;
+        frameInput = null;
+        frameOutput = null;
+        
+        connectButton.setEnabled(true);
+        statusLabel.setText("Disconnected");
+        statusLabel.setForeground(new Color(255, 193, 7));
+        userListModel.clear();
+        presenceVersion = -1;
+        updateOnlineUsersCount();
             
-            appendSystemMessage("Disconnected from server.");
-        });
+        appendSystemMessage("Disconnected from server.");
+    }
+    
+    // Waits for the closer, so a DISCONNECT queued just before exit is written
+    private void awaitClosed() {
+        Thread thread = closer;
+        if (thread != null) {
+            try {
+                thread.join(3000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
     
     private void startListenerThread() {
@@ -525,7 +755,7 @@ public class Client extends JFrame {
             try {
                 while (connected && !Thread.currentThread().isInterrupted() && !socket.isClosed()) {
                     try {
-                        Message message = (Message) input.readObject();
+                        Message message = readMessage();
                         if (message != null) {
                             handleIncomingMessage(message);
                         }
@@ -563,34 +793,204 @@ public class Client extends JFrame {
         listenerThread.start();
     }
     
+    private void startSenderThread() {
+        BlockingQueue<Outgoing> queue = new LinkedBlockingQueue<>();
+        outbox = queue;
+        senderThread = new Thread(() -> sendLoop(queue), "client-sender");
+        senderThread.setDaemon(true);
+        senderThread.start();
+    }
+    
+    // Sender thread: writes whatever has queued up, flushes once, and tells
+    // the EDT which bubbles went out. After a failure, or once stopped,
+    // everything still queued is reported as not sent.
+    private void sendLoop(BlockingQueue<Outgoing> queue) {
+        List<Outgoing> batch = new ArrayList<>();
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_SEND_BATCH - 1);
+                int end = batch.indexOf(END);
+                List<Outgoing> writing = end < 0 ? batch : batch.subList(0, end);
+                for (Outgoing outgoing : writing) {
+                    writeUnflushed(outgoing.message);
+                }
+                flushOutput();
+                
+                List<Outgoing> sent = new ArrayList<>(writing);
+                SwingUtilities.invokeLater(() -> markSent(sent, true));
+                writing.clear();
+                if (end >= 0) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            SwingUtilities.invokeLater(() -> {
+                if (connected) {
+                    appendSystemMessage("Failed to send: " + e.getMessage());
+                    closeConnection();
+                }
+            });
+        } catch (InterruptedException e) {
+            // closeConnection stopped waiting
+        } finally {
+            queue.drainTo(batch);
+            List<Outgoing> failed = new ArrayList<>(batch);
+            SwingUtilities.invokeLater(() -> markSent(failed, false));
+        }
+    }
+    
+    // Any thread; the message is written by the sender, in order
+    private void send(Message message) {
+        send(message, 0);
+    }
+    
+    private void send(Message message, long bubbleId) {
+        BlockingQueue<Outgoing> queue = outbox;
+        if (queue != null) {
+            queue.offer(new Outgoing(message, bubbleId));
+        }
+    }
+    
+    // Replaces "sending" under each sent bubble that is still shown
+    private void markSent(List<Outgoing> messages, boolean delivered) {
+        HTMLDocument doc = (HTMLDocument) chatArea.getDocument();
+        for (Outgoing outgoing : messages) {
+            String info = unconfirmed.remove(outgoing.bubbleId);
+            Element element = info == null ? null : doc.getElement("sent-" + outgoing.bubbleId);
+            if (element == null) {
+                continue;
+            }
+            try {
+                doc.setInnerHTML(element, delivered ? info + " • ✓"
+                    : info + " • <span style=\"color: #dc3545\">not sent</span>");
+            } catch (Exception e) {
+                System.err.println("Error updating message status: " + e.getMessage());
+            }
+        }
+    }
+    
+    // Listener thread: stages the message for the next frame. A reconnect's
+    // replay may repeat a message that also arrived live, so a sequence
+    // already received is dropped; replayed messages are older than live
+    // ones, so only the exact sequence can tell.
     private void handleIncomingMessage(Message message) {
-        SwingUtilities.invokeLater(() -> {
-            switch (message.getType()) {
-                case BROADCAST:
-                    appendMessage(message.getSender(), message.getContent(), message.getTimestamp(), false, false);
-                    break;
-                case PRIVATE:
-                    appendMessage(message.getSender(), message.getContent(), message.getTimestamp(), false, true);
-                    break;
-                case USER_LIST:
-                    updateUserList(message.getContent());
-                    break;
-                case CONNECT:
-                    appendSystemMessage(message.getContent());
-                    break;
-                case DISCONNECT:
-                    appendSystemMessage(message.getContent());
-                    break;
+        if (message.getSequence() != 0 && !recentSequences.add(message.getSequence())) {
+            return;
+        }
+        if (message.getSequence() > lastSequence) {
+            lastSequence = message.getSequence();
+        }
+        incoming.add(message);
+        stagedCount.incrementAndGet();
+        if (frameScheduled.compareAndSet(false, true)) {
+            frameTimer.start();
+        }
+    }
+    
+    // EDT, at most once per frame. Applies the presence changes staged since
+    // the last frame, then renders the chat FramePacer allots to this frame
+    // as one HTML fragment and scrolls once, so under a flood input and
+    // painting stay responsive. A message that cannot be shown is skipped;
+    // it must not stop the frames that follow.
+    private void drainIncoming() {
+        long start = System.nanoTime();
+        try {
+            // Only what was staged before this frame; later messages wait for the next one
+            for (int staged = stagedCount.getAndSet(0); staged > 0; staged--) {
+                Message message = incoming.poll();
+                try {
+                    stage(message);
+                } catch (RuntimeException e) {
+                    System.err.println("Skipping bad " + message.getType() + " message: " + e);
+                }
             }
             
-            // Auto-scroll to bottom
-            chatArea.setCaretPosition(chatArea.getDocument().getLength());
-        });
+            if (pacer.hasPending()) {
+                StringBuilder html = new StringBuilder();
+                int skipped = pacer.takeSkipped();
+                if (skipped > 0) {
+                    html.append(systemHtml("Skipped " + skipped + " older messages."));
+                }
+                for (Message message : pacer.nextFrame()) {
+                    try {
+                        html.append(render(message));
+                    } catch (RuntimeException e) {
+                        System.err.println("Skipping bad " + message.getType() + " message: " + e);
+                    }
+                }
+                appendHtml(html.toString());
+                
+                // Auto-scroll to bottom
+                chatArea.setCaretPosition(chatArea.getDocument().getLength());
+            }
+        } finally {
+            frameTimer.setInitialDelay(pacer.frameEnded(System.nanoTime() - start));
+            // A message may have been staged after the count was taken but before the flag cleared
+            frameScheduled.set(false);
+            if ((stagedCount.get() > 0 || pacer.hasPending()) && frameScheduled.compareAndSet(false, true)) {
+                frameTimer.start();
+            }
+        }
+    }
+        
+    // Applies a presence change, or queues chat to be rendered
+    private void stage(Message message) {
+        switch (message.getType()) {
+            case USER_LIST:
+                updateUserList(message.getContent());
+                break;
+            case USER_JOINED:
+            case USER_LEFT:
+            case USER_RENAMED:
+            case USER_PRESENCE:
+                applyPresenceDelta(message);
+                break;
+            default:
+                pacer.add(message);
+        }
     }
     
-    private void updateUserList(String userListString) {
+    // The chat view's HTML for a message, or an empty string for one it does not show
+    private String render(Message message) {
+        switch (message.getType()) {
+            case BROADCAST:
+                return messageHtml(message.getSender(), message.getContent(), message.getTimestamp(), false, false);
+            case PRIVATE:
+                return messageHtml(message.getSender(), message.getContent(), message.getTimestamp(), false, true);
+            case JOIN_ROOM:
+                String members = message.getContent() == null ? "" : String.join(", ", message.getContent().split(","));
+                return systemHtml("Joined " + message.getRecipient() + " (" + members + ")");
+            case LEAVE_ROOM:
+                return systemHtml("Left " + message.getRecipient());
+            case ROOM_MESSAGE:
+                if ("Server".equals(message.getSender())) {
+                    return systemHtml(message.getContent());
+                }
+                return messageHtml(message.getSender() + " in " + message.getRecipient(), message.getContent(), message.getTimestamp(), false, false);
+            case SEARCH_RESULT:
+                // The recipient tells a broadcast ("all"), a room and a private message apart
+                String recipient = message.getRecipient();
+                String where = recipient == null || "all".equals(recipient) ? ""
+                    : recipient.startsWith("#") ? " in " + recipient
+                    : " to " + recipient;
+                return messageHtml(message.getSender() + where, message.getContent(), message.getTimestamp(),
+                    username.equals(message.getSender()), !where.isEmpty() && !where.startsWith(" in "));
+            case SEARCH:
+            case CONNECT:
+            case DISCONNECT:
+                return systemHtml(message.getContent());
+            default:
+                return "";
+        }
+    }
+    
+    // Replaces the list with a versioned snapshot (see Presence)
+    private void updateUserList(String snapshot) {
         userListModel.clear();
-        if (userListString != null && !userListString.isEmpty()) {
+        presenceVersion = Presence.version(snapshot);
+        String userListString = Presence.payload(snapshot);
+        if (!userListString.isEmpty()) {
             String[] users = userListString.split(",");
             for (String user : users) {
                 if (!user.trim().isEmpty()) {
@@ -601,6 +1001,54 @@ public class Client extends JFrame {
         updateOnlineUsersCount();
     }
     
+    private void applyPresenceDelta(Message message) {
+        long version = Presence.version(message.getContent());
+        if (presenceVersion < 0 || version <= presenceVersion) {
+            // No snapshot yet, or one that already includes this change
+            return;
+        }
+        if (version != presenceVersion + 1) {
+            // Missed a change; ignore deltas until a fresh snapshot arrives
+            presenceVersion = -1;
+            requestUserList();
+            return;
+        }
+        
+        presenceVersion = version;
+        String payload = Presence.payload(message.getContent());
+        switch (message.getType()) {
+            case USER_JOINED:
+                if (!userListModel.contains(payload)) {
+                    userListModel.addElement(payload);
+                }
+                break;
+            case USER_LEFT:
+                userListModel.removeElement(payload);
+                break;
+            case USER_RENAMED:
+                String[] names = payload.split(",", 2);
+                int index = userListModel.indexOf(names[0]);
+                if (index >= 0 && names.length == 2) {
+                    userListModel.set(index, names[1]);
+                }
+                break;
+            case USER_PRESENCE:
+                for (String change : payload.split(",")) {
+                    if (change.startsWith("-")) {
+                        userListModel.removeElement(change.substring(1));
+                    } else if (change.startsWith("+") && !userListModel.contains(change.substring(1))) {
+                        userListModel.addElement(change.substring(1));
+                    }
+                }
+                break;
+        }
+        updateOnlineUsersCount();
+    }
+    
+    private void requestUserList() {
+        send(new Message(username, "server", null, Message.MessageType.USER_LIST));
+    }
+    
     private void updateOnlineUsersCount() {
         onlineUsersLabel.setText("👥 Online Users (" + userListModel.getSize() + ")");
     }
@@ -611,89 +1059,154 @@ public class Client extends JFrame {
         String messageText = messageField.getText().trim();
         if (messageText.isEmpty()) return;
         
-        try {
-            Message message;
-            boolean isPrivate = false;
-            String displayContent = messageText;
+        Message message;
+        boolean isPrivate = false;
+        String displayContent = messageText;
             
-            if (messageText.startsWith("@")) {
-                // Private message
-                int spaceIndex = messageText.indexOf(' ');
-                if (spaceIndex > 1) {
-                    String recipient = messageText.substring(1, spaceIndex);
-                    String content = messageText.substring(spaceIndex + 1);
-                    message = new Message(username, recipient, content, Message.MessageType.PRIVATE);
-                    displayContent = "To " + recipient + ": " + content;
-                    isPrivate = true;
-                } else {
-                    JOptionPane.showMessageDialog(this, "Invalid private message format. Use: @username message", 
-                        "Error", JOptionPane.ERROR_MESSAGE);
-                    return;
-                }
+        if (messageText.startsWith("/join ") || messageText.startsWith("/leave ")) {
+            // Room membership; the server replies with JOIN_ROOM or LEAVE_ROOM
+            boolean join = messageText.startsWith("/join ");
+            String room = messageText.substring(messageText.indexOf(' ') + 1).trim();
+            send(new Message(username, room, null,
+                join ? Message.MessageType.JOIN_ROOM : Message.MessageType.LEAVE_ROOM));
+            messageField.setText("");
+            return;
+        } else if (messageText.startsWith("/search ")) {
+            // History search; the server replies with SEARCH, then a SEARCH_RESULT per hit
+            send(new Message(username, "Server", messageText.substring(8).trim(), Message.MessageType.SEARCH));
+            messageField.setText("");
+            return;
+        } else if (messageText.equals("/emoji") || messageText.startsWith("/emoji ")) {
+            // Local shortcut: /emoji <shortcut> <replacement>, or /emoji alone to list them
+            String[] parts = messageText.split("\\s+", 3);
+            if (parts.length == 3) {
+                emojis = emojis.with(parts[1], parts[2]);
+                appendSystemMessage("Emoji shortcut " + parts[1] + " added");
+            } else if (parts.length == 1) {
+                appendSystemMessage("Emoji shortcuts: " + String.join(" ", emojis.getShortcuts().keySet()));
             } else {
-                // Broadcast message
-                message = new Message(username, "all", messageText, Message.MessageType.BROADCAST);
+                JOptionPane.showMessageDialog(this, "Invalid emoji format. Use: /emoji shortcut replacement",
+                    "Error", JOptionPane.ERROR_MESSAGE);
+                return;
             }
-            
-            output.writeObject(message);
-            output.flush();
-            
-            // Display sent message
-            appendMessage("You", displayContent, System.currentTimeMillis(), true, isPrivate);
-            
             messageField.setText("");
-            
-        } catch (IOException e) {
-            JOptionPane.showMessageDialog(this, "Failed to send message: " + e.getMessage(), 
-                "Error", JOptionPane.ERROR_MESSAGE);
-            closeConnection();
+            return;
+        } else if (messageText.startsWith("#")) {
+            // Room message
+            int spaceIndex = messageText.indexOf(' ');
+            if (spaceIndex > 1) {
+                String room = messageText.substring(0, spaceIndex);
+                String content = messageText.substring(spaceIndex + 1);
+                message = new Message(username, room, content, Message.MessageType.ROOM_MESSAGE);
+                displayContent = room + ": " + content;
+            } else {
+                JOptionPane.showMessageDialog(this, "Invalid room message format. Use: #room message",
+                    "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+        } else if (messageText.startsWith("@")) {
+            // Private message
+            int spaceIndex = messageText.indexOf(' ');
+            if (spaceIndex > 1) {
+                String recipient = messageText.substring(1, spaceIndex);
+                String content = messageText.substring(spaceIndex + 1);
+                message = new Message(username, recipient, content, Message.MessageType.PRIVATE);
+                displayContent = "To " + recipient + ": " + content;
+                isPrivate = true;
+            } else {
+                JOptionPane.showMessageDialog(this, "Invalid private message format. Use: @username message",
+                    "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+        } else {
+            // Broadcast message
+            message = new Message(username, "all", messageText, Message.MessageType.BROADCAST);
         }
+            
+        // Shown at once as sending; the sender thread writes it and markSent
+        // then shows whether it went out
+        long bubbleId = ++nextBubbleId;
+        appendHtml(messageHtml("You", displayContent, System.currentTimeMillis(), true, isPrivate, bubbleId));
+        send(message, bubbleId);
+            
+        messageField.setText("");
+    }
+    
+    private void appendSystemMessage(String content) {
+        appendHtml(systemHtml(content));
+    }
+    
+    private String messageHtml(String sender, String content, long timestamp, boolean isSent, boolean isPrivate) {
+        return messageHtml(sender, content, timestamp, isSent, isPrivate, 0);
     }
     
-    private void appendMessage(String sender, String content, long timestamp, boolean isSent, boolean isPrivate) {
-        String processedContent = processEmojis(content);
+    // A non-zero bubbleId shows "sending" under the bubble until markSent replaces it; EDT only
+    private String messageHtml(String sender, String content, long timestamp, boolean isSent, boolean isPrivate,
+                               long bubbleId) {
+        String processedContent = content == null ? "" : emojis.translate(content);
         String timestampStr = new SimpleDateFormat("HH:mm").format(new Date(timestamp));
         
         String messageClass = isSent ? "message-sent" : "message-received";
         String bubbleClass = isPrivate ? "message-bubble private-message" : "message-bubble";
+        String info = sender + " • " + timestampStr;
+        String infoId = "";
+        if (bubbleId != 0) {
+            unconfirmed.put(bubbleId, info);
+            infoId = " id=\"sent-" + bubbleId + "\"";
+            info += " • sending";
+        }
         
-        String html = String.format("""
+        return String.format("""
             <div class="message-container %s">
                 <div class="%s">%s</div>
-                <div class="message-info">%s • %s</div>
+                <div class="message-info"%s>%s</div>
             </div>
-            """, messageClass, bubbleClass, processedContent, sender, timestampStr);
+            """, messageClass, bubbleClass, processedContent, infoId, info);
+    }
+    
+    private static String systemHtml(String content) {
+        return String.format("<div class=\"system-message\">%s</div>", content);
+    }
         
+    // Adds message divs at the end of the body and removes the oldest beyond
+    // maxMessages, so the document, and with it the cost of each insert and
+    // relayout, stays the same size however long the session runs
+    private void appendHtml(String html) {
         try {
             HTMLDocument doc = (HTMLDocument) chatArea.getDocument();
-            doc.insertAfterEnd(doc.getDefaultRootElement(), html);
+            doc.insertBeforeEnd(chatBody, html);
+            // The first child is the empty paragraph every document starts with
+            while (chatBody.getElementCount() - 1 > maxMessages) {
+                doc.removeElement(chatBody.getElement(1));
+            }
         } catch (Exception e) {
             System.err.println("Error appending message: " + e.getMessage());
         }
     }
     
-    private void appendSystemMessage(String content) {
-        String html = String.format("<div class=\"system-message\">%s</div>", content);
+    public static void main(String[] args) {
+        int maxMessages = DEFAULT_MAX_MESSAGES;
         
-        try {
-            HTMLDocument doc = (HTMLDocument) chatArea.getDocument();
-            doc.insertAfterEnd(doc.getDefaultRootElement(), html);
-        } catch (Exception e) {
-            System.err.println("Error appending system message: " + e.getMessage());
+        // Usage: Client [--max-messages=N]
+        for (String arg : args) {
+            if (arg.startsWith("--max-messages=")) {
+                try {
+                    maxMessages = Integer.parseInt(arg.substring("--max-messages=".length()));
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid message limit " + arg + ". Using " + maxMessages);
+                }
+            } else {
+                System.err.println("Unknown option " + arg);
+            }
         }
-    }
-    
-    private String processEmojis(String text) {
-        String processed = text;
-        for (Map.Entry<String, String> entry : EMOJI_MAP.entrySet()) {
-            processed = processed.replace(entry.getKey(), entry.getValue());
+        if (maxMessages < 1) {
+            System.err.println("Invalid message limit " + maxMessages + ". Using " + DEFAULT_MAX_MESSAGES);
+            maxMessages = DEFAULT_MAX_MESSAGES;
         }
-        return processed;
-    }
-    
-    public static void main(String[] args) {
+        
+        int limit = maxMessages;
         SwingUtilities.invokeLater(() -> {
-            Client client = new Client();
+            Client client = new Client(limit);
             client.setVisible(true);
         });
     }
@@ -1,239 +1,324 @@
 import java.io.*;
 import java.net.Socket;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-public class ClientHandler implements Runnable {
+public class ClientHandler implements Runnable, ChatSession {
     private Socket clientSocket;
     private ObjectInputStream input;
     private ObjectOutputStream output;
+    // The socket's input, counted; both the object stream and frameInput read through it
+    private InputStream socketInput;
+    // Written with pre-encoded records once output has sent the stream header
+    private OutputStream socketOutput;
+    // Set once BinaryCodec has been negotiated; replaces input/output from then on
+    private BinaryCodec codec;
+    private DataInputStream frameInput;
     private User user;
-    private List<ClientHandler> clients;
-    private boolean running;
+    private MessageRouter router;
+    private volatile boolean running;
+    // Whether output has been handed to the writer; reader thread only
+    private boolean writerStarted;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    // Drained by a writer task on writers once the handshake is done; the
+    // writer is the only thread that touches the output streams after that
+    private final OutboundQueue outbound;
+    // Messages in the current batch that want to know once it is flushed; writer only
+    private final List<EncodedMessage> awaitingWrite = new ArrayList<>();
+    private final WriteBatching batching;
+    private final Executor writers;
+    private final ServerMetrics metrics;
     
-    public ClientHandler(Socket socket, List<ClientHandler> clients) {
+    // Counts what is read off the socket for ServerMetrics
+    private static final class MeteredInputStream extends FilterInputStream {
+        private final ServerMetrics metrics;
+        
+        MeteredInputStream(InputStream in, ServerMetrics metrics) {
+            super(in);
+            this.metrics = metrics;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                metrics.bytesReceived(1);
+            }
+            return b;
+        }
+        
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int count = super.read(b, off, len);
+            if (count > 0) {
+                metrics.bytesReceived(count);
+            }
+            return count;
+        }
+    }
+    
+    public ClientHandler(Socket socket, MessageRouter router, Executor writers) {
         this.clientSocket = socket;
-        this.clients = clients;
+        this.router = router;
+        this.writers = writers;
+        this.outbound = router.newOutboundQueue(this);
+        this.batching = router.getWriteBatching();
+        this.metrics = router.getMetrics();
         this.running = true;
+        metrics.connectionOpened();
         
         try {
-            output = new ObjectOutputStream(socket.getOutputStream());
-            input = new ObjectInputStream(socket.getInputStream());
+            socketOutput = new BufferedOutputStream(socket.getOutputStream(), batching.getByteBudget());
+            output = new ObjectOutputStream(socketOutput);
+            output.flush();
         } catch (IOException e) {
-            System.err.println("Error creating streams: " + e.getMessage());
+            Log.warn("Error creating streams", "error", e.getMessage());
+        }
+    }
+    
+    // Sends a refusal to a connection that will not get a handler and closes it
+    public static void reject(Socket socket, String reason) {
+        try (Socket s = socket;
+             ObjectOutputStream out = new ObjectOutputStream(s.getOutputStream())) {
+            out.writeObject(new Message("Server", "unknown", reason, Message.MessageType.PRIVATE));
+            out.flush();
+        } catch (IOException e) {
+            Log.warn("Error rejecting client", "error", e.getMessage());
         }
     }
     
     @Override
     public void run() {
+        // Anything that ends the connection without a more specific reason
+        ServerMetrics.DisconnectReason reason = ServerMetrics.DisconnectReason.PROTOCOL_ERROR;
         try {
+            // Created here rather than in the constructor so a client that
+            // never sends its stream header cannot stall the accept loop
+            socketInput = new MeteredInputStream(clientSocket.getInputStream(), metrics);
+            input = new ObjectInputStream(socketInput);
+            
             // Wait for username from client
             Message connectMessage = (Message) input.readObject();
             if (connectMessage.getType() == Message.MessageType.CONNECT) {
                 String username = connectMessage.getContent();
                 
-                // Check if username is already taken
-                if (isUsernameTaken(username)) {
-                    sendMessage(new Message("Server", username, "Username already taken. Please choose another.", Message.MessageType.PRIVATE));
-                    closeConnection();
+                // Claim the name and announce it; whatever the room sends us
+                // meanwhile waits in outbound until the writer starts below
+                user = new User(username);
+                if (!router.join(this)) {
+                    user = null;
+                    writeMessage(new Message("Server", username, "Username already taken. Please choose another.", Message.MessageType.PRIVATE));
+                    reason = ServerMetrics.DisconnectReason.NAME_TAKEN;
                     return;
                 }
                 
-                // Create user and add to list
-                user = new User(username);
-                synchronized (clients) {
-                    clients.add(this);
+                // Send confirmation, switching codec if the client offered one
+                Message reply = new Message("Server", username, "Connected successfully!", Message.MessageType.CONNECT);
+                if (BinaryCodec.isOffered(connectMessage.getCodec())) {
+                    reply.setCodec(BinaryCodec.NAME);
                 }
+                writeMessage(reply);
+                if (reply.getCodec() != null) {
+                    switchToBinaryCodec();
+                }
+                writerStarted = true;
+                writers.execute(this::writeLoop);
+                router.resume(this, connectMessage.getSequence());
                 
-                // Send confirmation to client
-                sendMessage(new Message("Server", username, "Connected successfully!", Message.MessageType.CONNECT));
-                
-                // Broadcast user joined
-                broadcastMessage(new Message("Server", "all", username + " has joined the chat!", Message.MessageType.BROADCAST), this);
-                
-                // Send updated user list to all clients
-                updateUserList();
-                
-                System.out.println(username + " connected from " + clientSocket.getInetAddress());
+                Log.info("Client connected", "user", username, "address", clientSocket.getInetAddress());
                 
                 // Listen for messages
+                reason = ServerMetrics.DisconnectReason.SERVER;
                 while (running && !clientSocket.isClosed()) {
                     try {
-                        Message message = (Message) input.readObject();
+                        Message message = readMessage();
                         if (message != null) {
-                            handleMessage(message);
+                            router.handleMessage(this, message);
                         }
                     } catch (EOFException e) {
-                        System.out.println("Client " + username + " disconnected (EOF)");
+                        Log.info("Client closed the connection", "user", username);
+                        reason = ServerMetrics.DisconnectReason.EOF;
                         break;
                     } catch (IOException e) {
                         if (running) {
-                            System.err.println("Error reading message from " + username + ": " + e.getMessage());
+                            Log.warn("Error reading message", "user", username, "error", e.getMessage());
                         }
+                        reason = ServerMetrics.DisconnectReason.READ_ERROR;
                         break;
                     } catch (ClassNotFoundException e) {
-                        System.err.println("Error deserializing message from " + username + ": " + e.getMessage());
+                        Log.warn("Error deserializing message", "user", username, "error", e.getMessage());
+                        reason = ServerMetrics.DisconnectReason.PROTOCOL_ERROR;
                         break;
                     }
                 }
             }
-        } catch (IOException | ClassNotFoundException e) {
-            System.err.println("Error in client handler: " + e.getMessage());
+        } catch (EOFException e) {
+            Log.warn("Error in client handler", "address", clientSocket.getInetAddress(), "error", e.getMessage());
+            reason = ServerMetrics.DisconnectReason.EOF;
+        } catch (IOException e) {
+            Log.warn("Error in client handler", "address", clientSocket.getInetAddress(), "error", e.getMessage());
+            reason = ServerMetrics.DisconnectReason.READ_ERROR;
+        } catch (ClassNotFoundException e) {
+            Log.warn("Error in client handler", "address", clientSocket.getInetAddress(), "error", e.getMessage());
         } finally {
-            closeConnection();
+            closeConnection(reason);
+            closeQuietly(input);
+            if (!writerStarted) {
+                closeQuietly(output);
+            }
         }
     }
     
-    private void handleMessage(Message message) {
-        if (message == null || message.getType() == null) {
+    // The client sends nothing between its CONNECT and our reply, and
+    // ObjectInputStream does not read past the object it returns, so the
+    // raw socket streams pick up exactly where the object streams stopped
+    private void switchToBinaryCodec() throws IOException {
+        frameInput = new DataInputStream(new BufferedInputStream(socketInput));
+        codec = new BinaryCodec(router.getNameTable());
+    }
+    
+    private Message readMessage() throws IOException, ClassNotFoundException {
+        if (codec != null) {
+            return codec.read(frameInput);
+        }
+        return (Message) input.readObject();
+    }
+    
+    @Override
+    public void send(EncodedMessage message) {
+        if (!running || clientSocket.isClosed()) {
             return;
         }
         
-        switch (message.getType()) {
-            case BROADCAST:
-                broadcastMessage(message, this);
-                break;
-            case PRIVATE:
-                sendPrivateMessage(message);
-                break;
-            case USERNAME_UPDATE:
-                updateUsername(message.getContent());
-                break;
-            case DISCONNECT:
-                System.out.println("Client " + user.getUsername() + " requested disconnect");
-                closeConnection();
-                break;
-            default:
-                System.err.println("Unknown message type: " + message.getType());
+        if (!outbound.offer(message)) {
+            Log.warn("Disconnecting client, outbound queue is full", "user", getUsername());
+            closeConnection(ServerMetrics.DisconnectReason.SLOW_CONSUMER);
         }
     }
     
-    private void broadcastMessage(Message message, ClientHandler sender) {
-        synchronized (clients) {
-            for (ClientHandler client : clients) {
-                if (client != sender && client.isRunning()) {
-                    try {
-                        client.sendMessage(message);
-                    } catch (Exception e) {
-                        System.err.println("Error broadcasting to " + client.getUsername() + ": " + e.getMessage());
+    // Runs on a writer thread until the connection closes. Everything already
+    // queued goes out in one flush. While traffic is heavy (the previous flush
+    // carried several messages and was within the window) the writer also
+    // lingers up to the batching window for more.
+    private void writeLoop() {
+        ServerMetrics.DisconnectReason reason = ServerMetrics.DisconnectReason.SERVER;
+        boolean busy = false;
+        long lastFlush = 0;
+        try {
+            EncodedMessage message;
+            while ((message = outbound.take()) != null) {
+                long now = System.nanoTime();
+                boolean linger = busy && now - lastFlush < batching.getWindowNanos();
+                long deadline = now + batching.getWindowNanos();
+                int messages = 0;
+                long bytes = 0;
+                long oldest = message.getCreatedNanos();
+                do {
+                    bytes += write(message);
+                    messages++;
+                    if (message.hasWrittenAction()) {
+                        awaitingWrite.add(message);
                     }
-                }
-            }
-        }
-    }
-    
-    private void sendPrivateMessage(Message message) {
-        String recipient = message.getRecipient();
-        synchronized (clients) {
-            for (ClientHandler client : clients) {
-                if (client.getUser() != null && client.getUser().getUsername().equals(recipient) && client.isRunning()) {
-                    try {
-                        client.sendMessage(message);
-                        // Send confirmation to sender
-                        sendMessage(new Message("Server", message.getSender(), 
-                            "Private message sent to " + recipient, Message.MessageType.PRIVATE));
-                        return;
-                    } catch (Exception e) {
-                        System.err.println("Error sending private message to " + recipient + ": " + e.getMessage());
+                    if (bytes >= batching.getByteBudget()) {
+                        break;
                     }
+                    message = outbound.poll();
+                    if (message == null && linger) {
+                        message = outbound.poll(deadline - System.nanoTime());
+                    }
+                } while (message != null);
+                
+                socketOutput.flush();
+                for (EncodedMessage sent : awaitingWrite) {
+                    sent.written();
                 }
+                awaitingWrite.clear();
+                batching.recordFlush(messages, bytes);
+                lastFlush = System.nanoTime();
+                metrics.getDelivery().record(lastFlush - oldest);
+                busy = messages > 1;
             }
+        } catch (IOException e) {
+            if (running) {
+                Log.warn("Error sending message", "user", getUsername(), "error", e.getMessage());
+            }
+            reason = ServerMetrics.DisconnectReason.WRITE_ERROR;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeConnection(reason);
+            closeQuietly(output);
         }
-        // Recipient not found
-        sendMessage(new Message("Server", message.getSender(), 
-            "User " + recipient + " is not online or doesn't exist.", Message.MessageType.PRIVATE));
     }
-    
-    private void updateUsername(String newUsername) {
-        if (isUsernameTaken(newUsername)) {
-            sendMessage(new Message("Server", user.getUsername(), 
-                "Username " + newUsername + " is already taken.", Message.MessageType.PRIVATE));
-            return;
-        }
         
-        String oldUsername = user.getUsername();
-        user.setUsername(newUsername);
-        
-        // Notify all clients about username change
-        broadcastMessage(new Message("Server", "all", 
-            oldUsername + " is now known as " + newUsername, Message.MessageType.BROADCAST), null);
-        
-        updateUserList();
+    // Handshake replies are written directly, before the writer starts
+    private void writeMessage(Message message) throws IOException {
+        write(new EncodedMessage(message));
+        socketOutput.flush();
     }
     
-    private boolean isUsernameTaken(String username) {
-        synchronized (clients) {
-            for (ClientHandler client : clients) {
-                if (client.getUser() != null && client.getUser().getUsername().equals(username)) {
-                    return true;
-                }
+    // Buffers one message and returns its size; the caller flushes
+    private int write(EncodedMessage message) throws IOException {
+        if (codec != null) {
+            byte[] names = codec.encodeNames(message.getMessage());
+            byte[] frame = message.binaryFrame(router.getNameTable());
+            if (names != null) {
+                socketOutput.write(names);
             }
+            socketOutput.write(frame);
+            int size = (names != null ? names.length : 0) + frame.length;
+            metrics.messageSent(message.getMessage().getType());
+            metrics.bytesSent(size);
+            return size;
         }
-        return false;
+        
+        byte[] record = message.streamRecord();
+        socketOutput.write(record);
+        metrics.messageSent(message.getMessage().getType());
+        metrics.bytesSent(record.length);
+        return record.length;
     }
     
-    private void updateUserList() {
-        StringBuilder userList = new StringBuilder();
-        synchronized (clients) {
-            for (ClientHandler client : clients) {
-                if (client.getUser() != null) {
-                    userList.append(client.getUser().getUsername()).append(",");
-                }
-            }
-        }
-        
-        Message userListMessage = new Message("Server", "all", userList.toString(), Message.MessageType.USER_LIST);
-        synchronized (clients) {
-            for (ClientHandler client : clients) {
-                if (client.isRunning()) {
-                    try {
-                        client.sendMessage(userListMessage);
-                    } catch (Exception e) {
-                        System.err.println("Error sending user list to " + client.getUsername() + ": " + e.getMessage());
-                    }
-                }
-            }
-        }
+    @Override
+    public void close() {
+        closeConnection(ServerMetrics.DisconnectReason.SERVER);
     }
     
-    public void sendMessage(Message message) {
-        if (!running || clientSocket.isClosed()) {
-            return;
-        }
-        
-        try {
-            output.writeObject(message);
-            output.flush();
-        } catch (IOException e) {
-            System.err.println("Error sending message to " + (user != null ? user.getUsername() : "unknown") + ": " + e.getMessage());
-            closeConnection();
-        }
+    @Override
+    public void close(ServerMetrics.DisconnectReason reason) {
+        closeConnection(reason);
     }
     
-    private void closeConnection() {
+    private void closeConnection(ServerMetrics.DisconnectReason reason) {
         running = false;
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        metrics.connectionClosed(reason);
+        outbound.close();
         
         if (user != null) {
-            // Remove from clients list
-            synchronized (clients) {
-                clients.remove(this);
-            }
+            router.leave(this);
             
-            // Broadcast user left
-            broadcastMessage(new Message("Server", "all", 
-                user.getUsername() + " has left the chat!", Message.MessageType.BROADCAST), null);
-            
-            // Update user list
-            updateUserList();
-            
-            System.out.println(user.getUsername() + " disconnected");
+            Log.info("Client disconnected", "user", user.getUsername(), "reason", reason);
         }
         
+        // Only the socket: that ends a blocked read or write, and the thread
+        // that owns each stream closes it once it has stopped using it
         try {
-            if (input != null) input.close();
-            if (output != null) output.close();
             if (clientSocket != null && !clientSocket.isClosed()) clientSocket.close();
         } catch (IOException e) {
-            System.err.println("Error closing connection: " + e.getMessage());
+            Log.warn("Error closing connection", "error", e.getMessage());
+        }
+    }
+    
+    private static void closeQuietly(Closeable stream) {
+        try {
+            if (stream != null) stream.close();
+        } catch (IOException e) {
+            // The socket is already closed
         }
     }
     
@@ -245,6 +330,11 @@ public class ClientHandler implements Runnable {
         return running;
     }
     
+    @Override
+    public int getQueuedMessages() {
+        return outbound.size();
+    }
+    
     public String getUsername() {
         return user != null ? user.getUsername() : "unknown";
     }
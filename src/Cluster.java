@@ -0,0 +1,209 @@
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Runs a server as one node of a cluster. Each node owns the connections
+// made to it, and the nodes tell each other over a ClusterBus what a user
+// on another node could see:
+//
+//   USER_JOINED, USER_LEFT   a local user came or went (content: the name)
+//   USER_RENAMED             a local user was renamed (content: old,new)
+//   USER_LIST                every local user, sent to a node whenever the
+//                            link to it comes up (content: name,name,...)
+//   BROADCAST, ROOM_MESSAGE  passed to the receiving node's router, which
+//                            delivers room messages to the room's members there
+//   PRIVATE                  sent only to the node the recipient is on
+//
+// Remote users are announced through the PresenceAggregator like local
+// ones, so every client sees the whole cluster in its user list, and a node
+// that goes down takes its users with it. A name taken anywhere in the
+// cluster is refused, except when two nodes admit the same name at the same
+// moment, which is not detected. Rooms are joined per node, so a room's
+// member list only shows the members on the node asked. A message missing
+// a field its type needs is logged and ignored.
+public class Cluster implements ClusterBus.Listener {
+    private final ClusterBus bus;
+    private final MessageRouter router;
+    // Users connected to other nodes, and the node each is on
+    private final Map<String, String> remoteUsers = new ConcurrentHashMap<>();
+    
+    public Cluster(ClusterBus bus, MessageRouter router) {
+        this.bus = bus;
+        this.router = router;
+    }
+    
+    public void start() {
+        bus.start(this);
+    }
+    
+    public void close() {
+        bus.close();
+    }
+    
+    public String getNodeId() {
+        return bus.getNodeId();
+    }
+    
+    public boolean isRemoteUser(String username) {
+        return username != null && remoteUsers.containsKey(username);
+    }
+    
+    public int getRemoteUserCount() {
+        return remoteUsers.size();
+    }
+    
+    // A broadcast or room message from a local session, for every other node
+    public void publish(Message message) {
+        bus.publish(message);
+    }
+    
+    // Returns false if the recipient is not on another node
+    public boolean sendPrivate(Message message) {
+        String node = remoteUsers.get(message.getRecipient());
+        if (node == null) {
+            return false;
+        }
+        bus.send(node, message);
+        return true;
+    }
+    
+    public void localJoined(String username) {
+        bus.publish(presence(Message.MessageType.USER_JOINED, username));
+    }
+    
+    public void localLeft(String username) {
+        bus.publish(presence(Message.MessageType.USER_LEFT, username));
+    }
+    
+    public void localRenamed(String oldUsername, String newUsername) {
+        bus.publish(presence(Message.MessageType.USER_RENAMED, oldUsername + "," + newUsername));
+    }
+    
+    @Override
+    public void onNodeUp(String node) {
+        StringBuilder names = new StringBuilder();
+        for (ChatSession session : router.getSessions().sessions()) {
+            names.append(session.getUsername()).append(',');
+        }
+        bus.send(node, presence(Message.MessageType.USER_LIST, names.toString()));
+    }
+    
+    @Override
+    public void onMessage(String node, Message message) {
+        if (!isWellFormed(message)) {
+            Log.warn("Ignoring malformed cluster message", "node", node, "type", message.getType());
+            return;
+        }
+        String content = message.getContent();
+        switch (message.getType()) {
+            case BROADCAST:
+                router.deliverBroadcast(message);
+                break;
+            case ROOM_MESSAGE:
+                router.deliverRoomMessage(message);
+                break;
+            case PRIVATE:
+                router.deliverPrivateMessage(message);
+                break;
+            case USER_JOINED:
+                joined(node, content);
+                break;
+            case USER_LEFT:
+                left(node, content);
+                break;
+            case USER_RENAMED:
+                String[] names = content.split(",", 2);
+                renamed(node, names[0], names[1]);
+                break;
+            case USER_LIST:
+                replaceUsers(node, content);
+                break;
+            default:
+                Log.warn("Unexpected cluster message", "node", node, "type", message.getType());
+        }
+    }
+    
+    @Override
+    public void onNodeDown(String node) {
+        replaceUsers(node, "");
+    }
+    
+    @Override
+    public String toString() {
+        return "node " + getNodeId() + ", " + getRemoteUserCount() + " remote users, bus " + bus;
+    }
+    
+    private synchronized void joined(String node, String username) {
+        // A name also claimed here at the same moment stays this node's
+        if (username.isEmpty() || router.getSessions().contains(username)) {
+            return;
+        }
+        if (remoteUsers.put(username, node) == null) {
+            router.getPresence().remoteJoined(username);
+        }
+    }
+    
+    private synchronized void left(String node, String username) {
+        if (remoteUsers.remove(username, node)) {
+            router.getPresence().remoteLeft(username);
+        }
+    }
+    
+    private synchronized void renamed(String node, String oldUsername, String newUsername) {
+        if (!remoteUsers.remove(oldUsername, node)) {
+            joined(node, newUsername);
+            return;
+        }
+        if (router.getSessions().contains(newUsername) || remoteUsers.putIfAbsent(newUsername, node) != null) {
+            router.getPresence().remoteLeft(oldUsername);
+            return;
+        }
+        router.getPresence().remoteRenamed(oldUsername, newUsername);
+    }
+    
+    // Makes names exactly the users known to be on node
+    private synchronized void replaceUsers(String node, String names) {
+        Set<String> current = new HashSet<>();
+        for (String name : names.split(",")) {
+            if (!name.isEmpty()) {
+                current.add(name);
+            }
+        }
+        for (Map.Entry<String, String> entry : remoteUsers.entrySet()) {
+            if (entry.getValue().equals(node) && !current.contains(entry.getKey())) {
+                left(node, entry.getKey());
+            }
+        }
+        for (String name : current) {
+            joined(node, name);
+        }
+    }
+    
+    // Whether the message has what its type needs: a recipient for a room or
+    // private message, a name for a presence change, "old,new" for a rename
+    private static boolean isWellFormed(Message message) {
+        String content = message.getContent();
+        switch (message.getType()) {
+            case BROADCAST:
+                return content != null;
+            case ROOM_MESSAGE:
+            case PRIVATE:
+                return content != null && message.getRecipient() != null;
+            case USER_JOINED:
+            case USER_LEFT:
+                return content != null && !content.isEmpty();
+            case USER_RENAMED:
+                int comma = content == null ? -1 : content.indexOf(',');
+                return comma > 0 && comma < content.length() - 1;
+            case USER_LIST:
+                return content != null;
+            default:
+                return true;
+        }
+    }
+    
+    private Message presence(Message.MessageType type, String content) {
+        return new Message(bus.getNodeId(), "cluster", content, type);
+    }
+}
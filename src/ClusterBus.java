@@ -0,0 +1,33 @@
+// Carries messages between the nodes of a cluster (see Cluster). Each node
+// has an id unique within the cluster. Messages to one node arrive in the
+// order they were sent, but a node that is unreachable misses whatever is
+// sent meanwhile; onNodeUp tells the listener when to resynchronise.
+//
+// publish and send only queue, so callers on a routing path never wait on
+// another node. TcpBus is the transport between processes; LocalBus joins
+// nodes inside one JVM.
+public interface ClusterBus {
+    interface Listener {
+        // A link to node is up; anything sent to it from here on arrives
+        void onNodeUp(String node);
+        
+        // Called on a bus thread, in the order node sent them
+        void onMessage(String node, Message message);
+        
+        // node left the cluster or became unreachable
+        void onNodeDown(String node);
+    }
+    
+    String getNodeId();
+    
+    // Starts delivering to listener and linking to the other nodes
+    void start(Listener listener);
+    
+    // To every node that is up
+    void publish(Message message);
+    
+    // To one node; dropped if it is not up
+    void send(String node, Message message);
+    
+    void close();
+}
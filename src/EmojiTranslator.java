@@ -0,0 +1,139 @@
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Replaces emoji shortcuts such as ":)" or ":rocket:" in one left-to-right
+// pass. The shortcuts are compiled into a trie; at each position the longest
+// shortcut starting there wins, so ":heart:" is never read as ":he" plus
+// the rest, and replacements are never scanned again. Characters that
+// cannot start a shortcut are skipped with one table lookup, and text with
+// no shortcuts comes back as the same String without allocating.
+//
+// Immutable and safe to share; with() builds a new translator, so a set can
+// be swapped while other threads are still using the old one.
+public final class EmojiTranslator {
+    private static final class Node {
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        // Replacement when a shortcut ends here
+        private String value;
+        
+        // Shortcuts fan out to a handful of characters, so a linear scan
+        // beats hashing
+        Node child(char c) {
+            char[] k = keys;
+            for (int i = 0; i < k.length; i++) {
+                if (k[i] == c) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+        
+        Node addChild(char c) {
+            Node existing = child(c);
+            if (existing != null) {
+                return existing;
+            }
+            keys = Arrays.copyOf(keys, keys.length + 1);
+            children = Arrays.copyOf(children, children.length + 1);
+            keys[keys.length - 1] = c;
+            return children[children.length - 1] = new Node();
+        }
+    }
+    
+    private final Map<String, String> shortcuts;
+    private final Node root = new Node();
+    // First characters of the shortcuts: below 128 by table, others by search
+    private final boolean[] asciiStarts = new boolean[128];
+    private final char[] otherStarts;
+    
+    public EmojiTranslator(Map<String, String> shortcuts) {
+        this.shortcuts = Collections.unmodifiableMap(new LinkedHashMap<>(shortcuts));
+        StringBuilder others = new StringBuilder();
+        for (Map.Entry<String, String> entry : this.shortcuts.entrySet()) {
+            String shortcut = entry.getKey();
+            if (shortcut == null || shortcut.isEmpty() || entry.getValue() == null) {
+                throw new IllegalArgumentException("Invalid emoji shortcut: " + shortcut);
+            }
+            Node node = root;
+            for (int i = 0; i < shortcut.length(); i++) {
+                node = node.addChild(shortcut.charAt(i));
+            }
+            node.value = entry.getValue();
+            
+            char first = shortcut.charAt(0);
+            if (first < 128) {
+                asciiStarts[first] = true;
+            } else if (others.indexOf(String.valueOf(first)) < 0) {
+                others.append(first);
+            }
+        }
+        otherStarts = others.toString().toCharArray();
+    }
+    
+    // A translator with one shortcut added or replaced
+    public EmojiTranslator with(String shortcut, String replacement) {
+        Map<String, String> copy = new LinkedHashMap<>(shortcuts);
+        copy.put(shortcut, replacement);
+        return new EmojiTranslator(copy);
+    }
+    
+    public Map<String, String> getShortcuts() {
+        return shortcuts;
+    }
+    
+    public String translate(String text) {
+        StringBuilder out = null;
+        int copied = 0;
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            char c = text.charAt(i);
+            if (c < 128 ? !asciiStarts[c] : !isOtherStart(c)) {
+                i++;
+                continue;
+            }
+            
+            // Walk the trie as far as the text allows, remembering the last shortcut passed
+            String replacement = null;
+            int end = i;
+            Node node = root;
+            for (int j = i; j < length; j++) {
+                node = node.child(text.charAt(j));
+                if (node == null) {
+                    break;
+                }
+                if (node.value != null) {
+                    replacement = node.value;
+                    end = j + 1;
+                }
+            }
+            if (replacement == null) {
+                i++;
+                continue;
+            }
+            
+            if (out == null) {
+                out = new StringBuilder(length + 16);
+            }
+            out.append(text, copied, i).append(replacement);
+            i = copied = end;
+        }
+        
+        if (out == null) {
+            return text;
+        }
+        return out.append(text, copied, length).toString();
+    }
+    
+    private boolean isOtherStart(char c) {
+        for (char start : otherStarts) {
+            if (start == c) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,121 @@
+import java.io.*;
+
+// A Message plus its wire encodings, each built at most once and then shared
+// by every recipient. The cached arrays are never modified after creation, so
+// sessions may write them straight to their sockets without copying. Races
+// between threads encoding the same form only cost a duplicate encode.
+public final class EncodedMessage {
+    // ObjectStreamConstants.TC_RESET; clears the peer's handle table so the
+    // record that follows decodes the same on any connection
+    private static final byte TC_RESET = 0x79;
+    // ObjectOutputStream magic and version, already sent once per connection
+    private static final int STREAM_HEADER_LENGTH = 4;
+    
+    private final Message message;
+    // When routing wrapped the message, for ServerMetrics' delivery latency
+    private final long createdNanos;
+    private volatile byte[] binaryFrame;
+    private volatile NameTable binaryNames;
+    private volatile byte[] serializedFrame;
+    private volatile byte[] streamRecord;
+    // At most one of these runs, once the message is written or discarded
+    private volatile Runnable onWritten;
+    private volatile Runnable onDropped;
+    
+    public EncodedMessage(Message message) {
+        this(message, System.nanoTime());
+    }
+    
+    // For callers that have just read the clock anyway
+    public EncodedMessage(Message message, long createdNanos) {
+        this.message = message;
+        this.createdNanos = createdNanos;
+    }
+    
+    public Message getMessage() {
+        return message;
+    }
+    
+    public long getCreatedNanos() {
+        return createdNanos;
+    }
+    
+    // Asks the session to run written once the message is written to its
+    // socket, or dropped if its OutboundQueue discards the message instead.
+    // For messages sent to a single session only; neither runs if the
+    // connection breaks while the message is being written.
+    public EncodedMessage whenWritten(Runnable written, Runnable dropped) {
+        onDropped = dropped;
+        onWritten = written;
+        return this;
+    }
+    
+    boolean hasWrittenAction() {
+        return onWritten != null;
+    }
+    
+    // Called by sessions once the message has left through the socket
+    void written() {
+        run(onWritten);
+    }
+    
+    // Called by OutboundQueue when it discards the message
+    void dropped() {
+        run(onDropped);
+    }
+    
+    private void run(Runnable action) {
+        if (action != null) {
+            onWritten = null;
+            onDropped = null;
+            action.run();
+        }
+    }
+    
+    // BinaryCodec MESSAGE frame; the NAME frames it refers to are per connection
+    public byte[] binaryFrame(NameTable names) {
+        byte[] frame = binaryFrame;
+        if (frame == null || binaryNames != names) {
+            long start = System.nanoTime();
+            frame = BinaryCodec.encodeMessage(message, names);
+            ServerMetrics.BINARY_ENCODING.record(System.nanoTime() - start);
+            binaryNames = names;
+            binaryFrame = frame;
+        }
+        return frame;
+    }
+    
+    // Length-prefixed serialized frame, as written by MessageFrames
+    public byte[] serializedFrame() throws IOException {
+        byte[] frame = serializedFrame;
+        if (frame == null) {
+            long start = System.nanoTime();
+            frame = MessageFrames.encode(message);
+            ServerMetrics.SERIALIZED_ENCODING.record(System.nanoTime() - start);
+            serializedFrame = frame;
+        }
+        return frame;
+    }
+    
+    // The bytes ObjectOutputStream.reset() + writeObject would produce on an
+    // open stream, for connections that still speak the legacy protocol
+    public byte[] streamRecord() throws IOException {
+        byte[] record = streamRecord;
+        if (record == null) {
+            long start = System.nanoTime();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            bytes.write(TC_RESET);
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(message);
+            }
+            
+            byte[] encoded = bytes.toByteArray();
+            record = new byte[encoded.length - STREAM_HEADER_LENGTH];
+            record[0] = TC_RESET;
+            System.arraycopy(encoded, 1 + STREAM_HEADER_LENGTH, record, 1, record.length - 1);
+            streamRecord = record;
+            ServerMetrics.STREAM_ENCODING.record(System.nanoTime() - start);
+        }
+        return record;
+    }
+}
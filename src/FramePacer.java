@@ -0,0 +1,81 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+// How much of a burst of incoming chat the client renders per frame. Chat
+// waits here until a frame takes it; only the newest maxMessages can stay in
+// the view, so older chat in a burst is counted and skipped rather than
+// rendered and then evicted. Each frame takes up to a budget of messages
+// and carries the rest over. The budget halves after a frame that ran over
+// FRAME_MILLIS and doubles after one that used under half of it, and the
+// next frame waits at least as long as this one took, so under a flood the
+// EDT spends at most about half its time rendering. Not thread-safe; the
+// client uses it on the EDT only.
+public class FramePacer {
+    // Shortest time between two frames, about one frame at 60 Hz
+    public static final int FRAME_MILLIS = 16;
+    public static final int MIN_FRAME_MESSAGES = 8;
+    public static final int INITIAL_FRAME_MESSAGES = 64;
+    
+    private final int maxMessages;
+    private final ArrayDeque<Message> pending = new ArrayDeque<>();
+    private int skipped;
+    private int frameMessages = INITIAL_FRAME_MESSAGES;
+    
+    public FramePacer(int maxMessages) {
+        if (maxMessages < 1) {
+            throw new IllegalArgumentException("Message limit must be positive: " + maxMessages);
+        }
+        this.maxMessages = maxMessages;
+    }
+    
+    // Queues chat for a later frame, dropping the oldest beyond maxMessages
+    public void add(Message message) {
+        if (pending.size() == maxMessages) {
+            pending.pollFirst();
+            skipped++;
+        }
+        pending.addLast(message);
+    }
+    
+    public boolean hasPending() {
+        return !pending.isEmpty();
+    }
+    
+    public int getPending() {
+        return pending.size();
+    }
+    
+    // Messages dropped unrendered since the last call
+    public int takeSkipped() {
+        int count = skipped;
+        skipped = 0;
+        return count;
+    }
+    
+    // Most messages the next frame takes
+    public int getFrameMessages() {
+        return frameMessages;
+    }
+    
+    // The next frame's messages, oldest first; the rest wait for later frames
+    public List<Message> nextFrame() {
+        List<Message> frame = new ArrayList<>(Math.min(frameMessages, pending.size()));
+        while (frame.size() < frameMessages && !pending.isEmpty()) {
+            frame.add(pending.pollFirst());
+        }
+        return frame;
+    }
+    
+    // Adjusts the budget to how long the frame took and returns how many
+    // milliseconds the next one should wait
+    public int frameEnded(long elapsedNanos) {
+        long elapsedMillis = elapsedNanos / 1_000_000;
+        if (elapsedMillis > FRAME_MILLIS) {
+            frameMessages = Math.max(MIN_FRAME_MESSAGES, frameMessages / 2);
+        } else if (elapsedMillis < FRAME_MILLIS / 2 && !pending.isEmpty()) {
+            frameMessages = Math.min(maxMessages, frameMessages * 2);
+        }
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(FRAME_MILLIS, elapsedMillis));
+    }
+}
@@ -0,0 +1,125 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+// ClusterBus for nodes in one JVM, for trying a cluster out without a
+// network. Nodes join through a shared Hub. Every message is encoded and
+// decoded as a MessageFrames frame on the way, so no two nodes ever share a
+// Message, and each node's callbacks run in order on its own thread, as
+// they would off a socket.
+public class LocalBus implements ClusterBus {
+    public static final class Hub {
+        private final Map<String, LocalBus> nodes = new ConcurrentHashMap<>();
+        
+        public LocalBus join(String nodeId) {
+            return new LocalBus(this, nodeId);
+        }
+    }
+    
+    private final Hub hub;
+    private final String nodeId;
+    private final ExecutorService delivery;
+    private volatile Listener listener;
+    
+    private LocalBus(Hub hub, String nodeId) {
+        this.hub = hub;
+        this.nodeId = nodeId;
+        this.delivery = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "cluster-" + nodeId);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    @Override
+    public String getNodeId() {
+        return nodeId;
+    }
+    
+    @Override
+    public void start(Listener listener) {
+        this.listener = listener;
+        synchronized (hub) {
+            if (hub.nodes.putIfAbsent(nodeId, this) != null) {
+                throw new IllegalStateException("Node " + nodeId + " is already in the cluster");
+            }
+            for (LocalBus other : hub.nodes.values()) {
+                if (other != this) {
+                    other.deliver(l -> l.onNodeUp(nodeId));
+                    deliver(l -> l.onNodeUp(other.nodeId));
+                }
+            }
+        }
+    }
+    
+    @Override
+    public void publish(Message message) {
+        byte[] frame = encode(message);
+        for (LocalBus other : hub.nodes.values()) {
+            if (other != this) {
+                other.receive(nodeId, frame);
+            }
+        }
+    }
+    
+    @Override
+    public void send(String node, Message message) {
+        LocalBus other = hub.nodes.get(node);
+        if (other != null && other != this) {
+            other.receive(nodeId, encode(message));
+        }
+    }
+    
+    @Override
+    public void close() {
+        synchronized (hub) {
+            if (hub.nodes.remove(nodeId, this)) {
+                for (LocalBus other : hub.nodes.values()) {
+                    other.deliver(l -> l.onNodeDown(nodeId));
+                }
+            }
+        }
+        delivery.shutdown();
+    }
+    
+    private void receive(String from, byte[] frame) {
+        deliver(l -> {
+            try {
+                l.onMessage(from, MessageFrames.decode(frame, 4, frame.length - 4));
+            } catch (IOException e) {
+                Log.warn("Dropping cluster message", "node", from, "error", e.getMessage());
+            }
+        });
+    }
+    
+    private void deliver(Consumer<Listener> event) {
+        Listener l = listener;
+        if (l == null || delivery.isShutdown()) {
+            return;
+        }
+        try {
+            delivery.execute(() -> {
+                try {
+                    event.accept(l);
+                } catch (RuntimeException e) {
+                    Log.error("Error handling cluster event", "node", nodeId, "error", e.toString());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Closed meanwhile
+        }
+    }
+    
+    private static byte[] encode(Message message) {
+        try {
+            return MessageFrames.encode(message);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
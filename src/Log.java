@@ -0,0 +1,241 @@
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Asynchronous server log. A caller claims a slot in a fixed ring of
+// preallocated entries, fills in a level, a message and up to three
+// key=value fields, and returns; a single writer thread formats the entries
+// and prints them, so a slow stdout (a pipe, a container log driver) never
+// stalls a connection. When the ring is full the entry is dropped and
+// counted instead of waiting, and the writer reports how many were lost.
+//
+// Fields are passed as fixed arguments rather than varargs and formatted
+// only by the writer, so logging a line allocates nothing beyond what the
+// caller builds for the values. Values are kept by reference until written,
+// so pass immutable ones. INFO and DEBUG go to stdout, WARN and ERROR to stderr.
+public final class Log {
+    public static final int CAPACITY = 8192;
+    private static final int MASK = CAPACITY - 1;
+    private static final int MAX_FIELDS = 3;
+    private static final long IDLE_NANOS = 100_000_000;
+    private static final DateTimeFormatter TIME_FORMAT =
+        DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+    
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+    
+    private static final class Entry {
+        // Sequence of the entry last published in this slot
+        volatile long published = -1;
+        long time;
+        Level level;
+        String message;
+        final String[] keys = new String[MAX_FIELDS];
+        final Object[] values = new Object[MAX_FIELDS];
+    }
+    
+    private static final Entry[] ring = new Entry[CAPACITY];
+    // Next sequence to claim, and every sequence below consumed has been written
+    private static final AtomicLong next = new AtomicLong();
+    private static volatile long consumed;
+    private static final LongAdder dropped = new LongAdder();
+    private static volatile Level threshold = Level.INFO;
+    // The writer while it is parked, if it is
+    private static volatile Thread waiter;
+    
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            ring[i] = new Entry();
+        }
+        Thread writer = new Thread(Log::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+    
+    private Log() {
+    }
+    
+    public static void setLevel(Level level) {
+        threshold = level;
+    }
+    
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(threshold) >= 0;
+    }
+    
+    // Entries lost because the ring was full
+    public static long getDropped() {
+        return dropped.sum();
+    }
+    
+    // Waits up to timeoutMillis for everything logged so far to be written
+    public static void flush(long timeoutMillis) {
+        long target = next.get();
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000;
+        while (consumed < target && System.nanoTime() < deadline) {
+            Thread w = waiter;
+            if (w != null) {
+                LockSupport.unpark(w);
+            }
+            LockSupport.parkNanos(1_000_000);
+        }
+    }
+    
+    public static void debug(String message) {
+        log(Level.DEBUG, message, null, null, null, null, null, null);
+    }
+    
+    public static void debug(String message, String key, Object value) {
+        log(Level.DEBUG, message, key, value, null, null, null, null);
+    }
+    
+    public static void debug(String message, String key1, Object value1, String key2, Object value2) {
+        log(Level.DEBUG, message, key1, value1, key2, value2, null, null);
+    }
+    
+    public static void info(String message) {
+        log(Level.INFO, message, null, null, null, null, null, null);
+    }
+    
+    public static void info(String message, String key, Object value) {
+        log(Level.INFO, message, key, value, null, null, null, null);
+    }
+    
+    public static void info(String message, String key1, Object value1, String key2, Object value2) {
+        log(Level.INFO, message, key1, value1, key2, value2, null, null);
+    }
+    
+    public static void warn(String message) {
+        log(Level.WARN, message, null, null, null, null, null, null);
+    }
+    
+    public static void warn(String message, String key, Object value) {
+        log(Level.WARN, message, key, value, null, null, null, null);
+    }
+    
+    public static void warn(String message, String key1, Object value1, String key2, Object value2) {
+        log(Level.WARN, message, key1, value1, key2, value2, null, null);
+    }
+    
+    public static void warn(String message, String key1, Object value1, String key2, Object value2,
+                            String key3, Object value3) {
+        log(Level.WARN, message, key1, value1, key2, value2, key3, value3);
+    }
+    
+    public static void error(String message) {
+        log(Level.ERROR, message, null, null, null, null, null, null);
+    }
+    
+    public static void error(String message, String key, Object value) {
+        log(Level.ERROR, message, key, value, null, null, null, null);
+    }
+    
+    public static void error(String message, String key1, Object value1, String key2, Object value2) {
+        log(Level.ERROR, message, key1, value1, key2, value2, null, null);
+    }
+    
+    private static void log(Level level, String message, String key1, Object value1,
+                            String key2, Object value2, String key3, Object value3) {
+        if (level.compareTo(threshold) < 0) {
+            return;
+        }
+        
+        long sequence;
+        do {
+            sequence = next.get();
+            if (sequence - consumed >= CAPACITY) {
+                dropped.increment();
+                return;
+            }
+        } while (!next.compareAndSet(sequence, sequence + 1));
+        
+        Entry entry = ring[(int) sequence & MASK];
+        entry.time = System.currentTimeMillis();
+        entry.level = level;
+        entry.message = message;
+        entry.keys[0] = key1;
+        entry.values[0] = value1;
+        entry.keys[1] = key2;
+        entry.values[1] = value2;
+        entry.keys[2] = key3;
+        entry.values[2] = value3;
+        entry.published = sequence;
+        
+        Thread w = waiter;
+        if (w != null) {
+            LockSupport.unpark(w);
+        }
+    }
+    
+    // Writes entries in sequence order, flushing both streams whenever it
+    // catches up. A claimed slot that is still being filled is waited for.
+    private static void writeLoop() {
+        StringBuilder line = new StringBuilder(256);
+        long cursor = 0;
+        long reportedDrops = 0;
+        while (true) {
+            Entry entry = ring[(int) cursor & MASK];
+            if (entry.published != cursor) {
+                if (cursor != next.get()) {
+                    Thread.yield();
+                    continue;
+                }
+                
+                long drops = dropped.sum();
+                if (drops > reportedDrops) {
+                    System.err.println(TIME_FORMAT.format(Instant.now()) + " WARN  Log buffer full, entries dropped count="
+                        + (drops - reportedDrops));
+                    reportedDrops = drops;
+                }
+                System.out.flush();
+                System.err.flush();
+                
+                waiter = Thread.currentThread();
+                if (entry.published != cursor) {
+                    LockSupport.parkNanos(IDLE_NANOS);
+                }
+                waiter = null;
+                continue;
+            }
+            
+            line.setLength(0);
+            format(entry, line);
+            PrintStream out = entry.level.compareTo(Level.WARN) >= 0 ? System.err : System.out;
+            out.append(line).append(System.lineSeparator());
+            
+            // Drop references so the ring does not keep values alive
+            entry.message = null;
+            for (int i = 0; i < MAX_FIELDS; i++) {
+                entry.keys[i] = null;
+                entry.values[i] = null;
+            }
+            consumed = ++cursor;
+        }
+    }
+    
+    private static void format(Entry entry, StringBuilder line) {
+        TIME_FORMAT.formatTo(Instant.ofEpochMilli(entry.time), line);
+        line.append(' ').append(entry.level.name());
+        for (int i = entry.level.name().length(); i < 5; i++) {
+            line.append(' ');
+        }
+        line.append(' ').append(entry.message);
+        for (int i = 0; i < MAX_FIELDS; i++) {
+            if (entry.keys[i] == null) {
+                continue;
+            }
+            String value = String.valueOf(entry.values[i]);
+            line.append(' ').append(entry.keys[i]).append('=');
+            if (value.isEmpty() || value.indexOf(' ') >= 0 || value.indexOf('"') >= 0) {
+                line.append('"').append(value.replace("\"", "\\\"")).append('"');
+            } else {
+                line.append(value);
+            }
+        }
+    }
+}
@@ -3,13 +3,23 @@ import java.io.Serializable;
 public class Message implements Serializable {
     private static final long serialVersionUID = 1L;
     
+    // BinaryCodec sends ordinal(): only ever append new types
     public enum MessageType {
         BROADCAST,
         PRIVATE,
         USER_LIST,
         CONNECT,
         DISCONNECT,
-        USERNAME_UPDATE
+        USERNAME_UPDATE,
+        USER_JOINED,        // presence deltas, see Presence
+        USER_LEFT,
+        USER_RENAMED,
+        USER_PRESENCE,
+        JOIN_ROOM,          // rooms: recipient is the room name, see MessageRouter
+        LEAVE_ROOM,
+        ROOM_MESSAGE,
+        SEARCH,             // query in content; the reply is a summary, then SEARCH_RESULTs
+        SEARCH_RESULT
     }
     
     private String sender;
@@ -17,6 +27,12 @@ public class Message implements Serializable {
     private String content;
     private MessageType type;
     private long timestamp;
+    // Position in the server's history (see MessageHistory), or 0 for messages
+    // outside it. In a client's CONNECT: the last one it saw, to resume after.
+    private long sequence;
+    // Handshake only: codecs offered in the client's CONNECT, comma separated,
+    // and the one chosen in the server's reply. Null means Java serialization.
+    private String codec;
     
     public Message(String sender, String recipient, String content, MessageType type) {
         this.sender = sender;
@@ -42,6 +58,12 @@ public class Message implements Serializable {
     public long getTimestamp() { return timestamp; }
     public void setTimestamp(long timestamp) { this.timestamp = timestamp; }
     
+    public long getSequence() { return sequence; }
+    public void setSequence(long sequence) { this.sequence = sequence; }
+    
+    public String getCodec() { return codec; }
+    public void setCodec(String codec) { this.codec = codec; }
+    
     @Override
     public String toString() {
         return String.format("[%s] %s: %s", 
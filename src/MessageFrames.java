@@ -0,0 +1,58 @@
+import java.io.*;
+
+// Length-prefixed framing used by the NIO engine. Each frame is a 4-byte
+// big-endian length followed by a self-contained serialized Message, so a
+// frame can be decoded on its own without per-connection stream state.
+public final class MessageFrames {
+    // Sent by framed servers on accept; lets Client tell them apart from the
+    // ObjectOutputStream header (0xACED0005) written by ClientHandler
+    public static final int GREETING = 0x43484154;
+    public static final int MAX_FRAME_LENGTH = 1024 * 1024;
+    
+    private MessageFrames() {
+    }
+    
+    // Returns the complete frame, length prefix included
+    public static byte[] encode(Message message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        bytes.write(new byte[4]);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(message);
+        }
+        
+        byte[] frame = bytes.toByteArray();
+        int length = frame.length - 4;
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+        return frame;
+    }
+    
+    public static Message decode(byte[] data, int offset, int length) throws IOException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data, offset, length))) {
+            return (Message) in.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new StreamCorruptedException("Invalid message frame: " + e.getMessage());
+        }
+    }
+    
+    public static void write(DataOutputStream out, Message message) throws IOException {
+        out.write(encode(message));
+        out.flush();
+    }
+    
+    public static Message read(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        checkLength(length);
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return decode(payload, 0, length);
+    }
+    
+    public static void checkLength(int length) throws IOException {
+        if (length < 0 || length > MAX_FRAME_LENGTH) {
+            throw new StreamCorruptedException("Invalid frame length: " + length);
+        }
+    }
+}
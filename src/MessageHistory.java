@@ -0,0 +1,176 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Sequence numbers and recent history, so a client that reconnects can
+// catch up. Every chat message the router delivers gets the next sequence
+// number, a slot in a fixed ring of the most recent messages and, if there
+// is a MessageJournal, a record on disk. A reconnecting client sends the last
+// sequence it saw in its CONNECT; what it missed comes from the ring, or from
+// the journal once the gap is older than the ring.
+//
+// Replays run on one background thread and are streamed in small chunks,
+// each sent only once the session's outbound queue is below a low-water
+// mark, so catching up never fills the queue or crowds out live traffic.
+// Concurrent senders may take sequence numbers in one order and deliver in
+// another, so a client that drops in that instant can miss a message.
+public class MessageHistory {
+    public static final int DEFAULT_RING_SIZE = 4096;
+    // Most messages replayed to one client; older ones are skipped
+    public static final int MAX_REPLAY = 2000;
+    private static final int CHUNK = 64;
+    private static final int LOW_WATER = 64;
+    private static final long PACE_MILLIS = 5;
+    
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicReferenceArray<Message> ring;
+    private final int mask;
+    // Lowest sequence the ring can hold; anything older is only in the journal
+    private volatile long ringFloor = 1;
+    private volatile MessageJournal journal;
+    private final ScheduledExecutorService replayer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "history-replay");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    public MessageHistory() {
+        this(DEFAULT_RING_SIZE);
+    }
+    
+    // ringSize is rounded up to a power of two
+    public MessageHistory(int ringSize) {
+        if (ringSize < 1) {
+            throw new IllegalArgumentException("Ring size must be positive: " + ringSize);
+        }
+        int size = Integer.highestOneBit(ringSize);
+        if (size < ringSize) {
+            size <<= 1;
+        }
+        ring = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+    }
+    
+    // Sequence numbers continue from the highest one in the journal
+    public void setJournal(MessageJournal journal) {
+        this.journal = journal;
+        if (journal != null) {
+            ringFloor = sequence.accumulateAndGet(journal.getRecoveredSequence(), Math::max) + 1;
+        }
+    }
+    
+    public MessageJournal getJournal() {
+        return journal;
+    }
+    
+    // Numbers the message and keeps it; call before it is sent
+    public void record(Message message) {
+        long next = sequence.incrementAndGet();
+        message.setSequence(next);
+        ring.set((int) (next & mask), message);
+        
+        MessageJournal journal = this.journal;
+        if (journal != null) {
+            journal.append(message);
+        }
+    }
+    
+    public long getSequence() {
+        return sequence.get();
+    }
+    
+    // Streams the broadcasts session missed in (after, upTo], but not its own.
+    // Room messages are left out since membership does not survive a
+    // reconnect, and private messages since they would go to whoever holds
+    // the name now, not whoever held it then; OfflineMailbox keeps those sent
+    // while no one holds it. upTo must be taken
+    // once the session is in the registry, so anything newer reaches it live;
+    // a message both sent live and replayed is dropped by the client, which
+    // skips sequences it has already received.
+    public void replay(ChatSession session, long after, long upTo) {
+        if (after <= 0 || after >= upTo) {
+            return;
+        }
+        replayer.execute(() -> {
+            int[] skipped = new int[1];
+            Deque<Message> missed = collect(session.getUsername(), after, upTo, skipped);
+            if (missed.isEmpty()) {
+                return;
+            }
+            session.sendMessage(new Message("Server", session.getUsername(),
+                "Catching up on " + missed.size() + " missed messages"
+                    + (skipped[0] > 0 ? " (" + skipped[0] + " older ones not shown)."
+                        : after < upTo - MAX_REPLAY ? " (older ones not shown)." : "."),
+                Message.MessageType.PRIVATE));
+            stream(session, missed.iterator());
+        });
+    }
+    
+    public void shutdown() {
+        replayer.shutdownNow();
+    }
+    
+    // The newest MAX_REPLAY missed messages in (after, upTo], oldest first.
+    // Only the last MAX_REPLAY sequence numbers can hold them, so a client
+    // that was gone for long costs a read of the journal's tail, not all of it.
+    private Deque<Message> collect(String username, long after, long upTo, int[] skipped) {
+        Deque<Message> missed = new ArrayDeque<>();
+        long from = Math.max(after, upTo - MAX_REPLAY);
+        long ringStart = Math.max(ringFloor, upTo - mask);
+        MessageJournal journal = this.journal;
+        if (from + 1 < ringStart && journal != null) {
+            try {
+                journal.forEachAfter(from, message -> {
+                    if (message.getSequence() < ringStart) {
+                        keep(missed, skipped, username, message);
+                    }
+                });
+            } catch (IOException e) {
+                Log.warn("Error reading history", "user", username, "error", e.getMessage());
+            }
+        }
+        
+        for (long next = Math.max(from + 1, ringStart); next <= upTo; next++) {
+            Message message = ring.get((int) (next & mask));
+            // Skips slots overwritten meanwhile or not yet filled
+            if (message != null && message.getSequence() == next) {
+                keep(missed, skipped, username, message);
+            }
+        }
+        return missed;
+    }
+    
+    private static void keep(Deque<Message> missed, int[] skipped, String username, Message message) {
+        if (message.getType() != Message.MessageType.BROADCAST || username.equals(message.getSender())) {
+            return;
+        }
+        if (missed.size() == MAX_REPLAY) {
+            missed.pollFirst();
+            skipped[0]++;
+        }
+        missed.addLast(message);
+    }
+    
+    // Sends one chunk, then yields the thread to other replays
+    private void stream(ChatSession session, Iterator<Message> remaining) {
+        if (!session.isRunning()) {
+            return;
+        }
+        if (session.getQueuedMessages() > LOW_WATER) {
+            replayer.schedule(() -> stream(session, remaining), PACE_MILLIS, TimeUnit.MILLISECONDS);
+            return;
+        }
+        for (int i = 0; i < CHUNK && remaining.hasNext(); i++) {
+            session.sendMessage(remaining.next());
+        }
+        if (remaining.hasNext()) {
+            replayer.execute(() -> stream(session, remaining));
+        }
+    }
+}
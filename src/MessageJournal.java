@@ -0,0 +1,552 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+// Append-only log of routed messages, split into numbered segment files
+// (00000000000000000001.log, ...) in one directory. append only queues the
+// message, so routing never waits on the disk: if the writer falls a whole
+// queue behind, messages are dropped from the log and counted rather than
+// slowing the room down. A single writer thread drains the queue, writes
+// each batch with one FileChannel write and forces it to disk at most once
+// per fsync interval (0 forces every batch, a negative interval leaves it to
+// the OS). The active segment is closed once it reaches the segment size,
+// and the oldest closed segments are deleted while the log is over its size
+// limit or they are older than its age limit; a retention listener is then
+// told the lowest sequence number left, so what mirrors the log can follow.
+//
+// Record: int body length, int CRC32 of the body, then the body: long
+// timestamp, byte type, then sender, recipient and content, each an int
+// UTF-8 length (-1 for null) followed by its bytes, then the long sequence
+// number (absent in records written before sequences existed). A torn record
+// at the end of a segment fails its length or CRC check and ends the read there,
+// so a message whose body would be over MAX_RECORD_BYTES is dropped, not written.
+public class MessageJournal {
+    public static final long DEFAULT_SEGMENT_BYTES = 64L * 1024 * 1024;
+    public static final long DEFAULT_RETENTION_BYTES = 1024L * 1024 * 1024;
+    public static final long DEFAULT_RETENTION_MILLIS = TimeUnit.DAYS.toMillis(7);
+    public static final long DEFAULT_FSYNC_MILLIS = 100;
+    public static final int QUEUE_CAPACITY = 64 * 1024;
+    // Largest record body written or read back
+    public static final int MAX_RECORD_BYTES = MessageFrames.MAX_FRAME_LENGTH;
+    
+    private static final String SUFFIX = ".log";
+    private static final int HEADER_BYTES = 8;
+    private static final int MAX_BATCH = 4096;
+    // How long an idle writer sleeps, and so how late a close or retention check can be
+    private static final long IDLE_POLL_MILLIS = 100;
+    private static final long RETENTION_CHECK_MILLIS = 60_000;
+    private static final Message.MessageType[] TYPES = Message.MessageType.values();
+    
+    private final Path directory;
+    private final long segmentBytes;
+    private final long retentionBytes;
+    private final long retentionMillis;
+    private final long fsyncNanos;
+    private final BlockingQueue<Message> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread writer;
+    private volatile boolean closing;
+    private final long recoveredSequence;
+    private volatile LongConsumer retentionListener;
+    
+    // Writer thread only
+    private FileChannel active;
+    private long activeNumber;
+    private long activeSize;
+    private boolean dirty;
+    // Highest sequence written so far
+    private long lastWritten;
+    private long lastForce = System.nanoTime();
+    private long lastRetentionCheck = System.nanoTime();
+    private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    private final CRC32 crc = new CRC32();
+    
+    private final LongAdder appended = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder fsyncs = new LongAdder();
+    private final LongAdder read = new LongAdder();
+    
+    public MessageJournal(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_BYTES, DEFAULT_RETENTION_BYTES, DEFAULT_RETENTION_MILLIS, DEFAULT_FSYNC_MILLIS);
+    }
+    
+    // Starts a new segment after any left by an earlier run
+    public MessageJournal(Path directory, long segmentBytes, long retentionBytes, long retentionMillis,
+                          long fsyncMillis) throws IOException {
+        if (segmentBytes < 1 || retentionBytes < 1 || retentionMillis < 1) {
+            throw new IllegalArgumentException("Invalid journal segment size " + segmentBytes
+                + ", retention " + retentionBytes + " bytes or " + retentionMillis + "ms");
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.retentionBytes = retentionBytes;
+        this.retentionMillis = retentionMillis;
+        this.fsyncNanos = fsyncMillis < 0 ? -1 : TimeUnit.MILLISECONDS.toNanos(fsyncMillis);
+        
+        Files.createDirectories(directory);
+        List<Path> segments = segments();
+        activeNumber = segments.isEmpty() ? 0 : number(segments.get(segments.size() - 1));
+        recoveredSequence = lastSequence(segments);
+        lastWritten = recoveredSequence;
+        openNextSegment();
+        applyRetention();
+        
+        writer = new Thread(this::writeLoop, "journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+    
+    // Never blocks; returns false if the message was dropped from the log
+    public boolean append(Message message) {
+        if (closing || !queue.offer(message)) {
+            dropped.increment();
+            return false;
+        }
+        return true;
+    }
+    
+    // Writes out everything appended so far, forces it to disk and stops the writer
+    public void close() {
+        closing = true;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    // Reads every retained record, oldest first. Safe while the writer is
+    // running; records still queued or in the writer's buffer are not seen.
+    public void forEach(Consumer<Message> consumer) throws IOException {
+        for (Path segment : segments()) {
+            readSegment(segment, message -> {
+                read.increment();
+                consumer.accept(message);
+                return true;
+            });
+        }
+    }
+    
+    // As forEach, but only records with a sequence above after. Segments
+    // that start at or before after are skipped except the last of them.
+    public void forEachAfter(long after, Consumer<Message> consumer) throws IOException {
+        List<Path> segments = segments();
+        int start = 0;
+        for (int i = segments.size() - 1; i > 0; i--) {
+            long[] first = new long[1];
+            readSegment(segments.get(i), message -> {
+                read.increment();
+                first[0] = message.getSequence();
+                return false;
+            });
+            if (first[0] != 0 && first[0] <= after) {
+                start = i;
+                break;
+            }
+        }
+        
+        for (Path segment : segments.subList(start, segments.size())) {
+            readSegment(segment, message -> {
+                read.increment();
+                if (message.getSequence() > after) {
+                    consumer.accept(message);
+                }
+                return true;
+            });
+        }
+    }
+    
+    // Called on the writer thread with the lowest sequence number still in
+    // the log, each time retention deletes segments
+    public void setRetentionListener(LongConsumer listener) {
+        retentionListener = listener;
+    }
+    
+    // Highest sequence number in the log when it was opened, or 0
+    public long getRecoveredSequence() {
+        return recoveredSequence;
+    }
+    
+    public Path getDirectory() {
+        return directory;
+    }
+    
+    // Records written to the log
+    public long getAppended() {
+        return appended.sum();
+    }
+    
+    // Messages not logged because the queue was full, the journal was closed,
+    // the record was too large or a write failed
+    public long getDropped() {
+        return dropped.sum();
+    }
+    
+    public long getBytes() {
+        return bytes.sum();
+    }
+    
+    public long getBatches() {
+        return batches.sum();
+    }
+    
+    public long getFsyncs() {
+        return fsyncs.sum();
+    }
+    
+    // Records decoded by forEach and forEachAfter, which is what replays cost
+    public long getRead() {
+        return read.sum();
+    }
+    
+    @Override
+    public String toString() {
+        long batchCount = getBatches();
+        return String.format("%d records, %d bytes in %d writes (%.1f records/write), %d fsyncs, %d dropped, %d read back",
+            getAppended(), getBytes(), batchCount, batchCount == 0 ? 0.0 : (double) getAppended() / batchCount,
+            getFsyncs(), getDropped(), getRead());
+    }
+    
+    private void writeLoop() {
+        List<Message> batch = new ArrayList<>(MAX_BATCH);
+        try {
+            while (!closing || !queue.isEmpty()) {
+                Message message = queue.poll(pollMillis(), TimeUnit.MILLISECONDS);
+                if (message != null) {
+                    batch.add(message);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    write(batch);
+                    batch.clear();
+                }
+                if (dirty && fsyncNanos >= 0 && System.nanoTime() - lastForce >= fsyncNanos) {
+                    try {
+                        force();
+                    } catch (IOException e) {
+                        // Retried at the next interval
+                        lastForce = System.nanoTime();
+                        Log.warn("Error forcing journal to disk", "error", e.getMessage());
+                    }
+                }
+                if (System.nanoTime() - lastRetentionCheck >= TimeUnit.MILLISECONDS.toNanos(RETENTION_CHECK_MILLIS)) {
+                    applyRetention();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                if (dirty && fsyncNanos >= 0) {
+                    force();
+                }
+                active.close();
+            } catch (IOException e) {
+                Log.warn("Error closing journal segment", "error", e.getMessage());
+            }
+        }
+    }
+    
+    // Wakes up in time for the next due fsync
+    private long pollMillis() {
+        if (!dirty || fsyncNanos < 0) {
+            return IDLE_POLL_MILLIS;
+        }
+        long remaining = fsyncNanos - (System.nanoTime() - lastForce);
+        return Math.max(0, Math.min(IDLE_POLL_MILLIS, TimeUnit.NANOSECONDS.toMillis(remaining)));
+    }
+    
+    private void write(List<Message> batch) {
+        buffer.clear();
+        long highest = lastWritten;
+        int records = 0;
+        for (Message message : batch) {
+            if (encode(message)) {
+                highest = Math.max(highest, message.getSequence());
+                records++;
+            } else {
+                dropped.increment();
+                Log.warn("Message too large for the journal, not logged",
+                    "sender", message.getSender(), "sequence", message.getSequence());
+            }
+        }
+        if (records == 0) {
+            return;
+        }
+        buffer.flip();
+        int length = buffer.remaining();
+        
+        try {
+            if (activeSize >= segmentBytes) {
+                rollSegment();
+            }
+            while (buffer.hasRemaining()) {
+                active.write(buffer);
+            }
+            activeSize += length;
+            lastWritten = highest;
+            dirty = true;
+            appended.add(records);
+            bytes.add(length);
+            batches.increment();
+        } catch (IOException e) {
+            dropped.add(records);
+            Log.error("Error writing journal, messages lost", "count", records, "error", e.getMessage());
+        }
+    }
+    
+    // Record body of one message; OfflineMailbox stores messages the same way
+    static byte[] encodeBody(Message message) {
+        byte[] sender = utf8(message.getSender());
+        byte[] recipient = utf8(message.getRecipient());
+        byte[] content = utf8(message.getContent());
+        ByteBuffer body = ByteBuffer.allocate(8 + 1 + field(sender) + field(recipient) + field(content) + 8);
+        putBody(body, message, sender, recipient, content);
+        return body.array();
+    }
+    
+    // Null if the body has a type this version does not know
+    static Message decodeBody(ByteBuffer body) {
+        long timestamp = body.getLong();
+        int type = body.get() & 0xFF;
+        if (type >= TYPES.length) {
+            return null;
+        }
+        Message message = new Message(getField(body), getField(body), getField(body), TYPES[type]);
+        message.setTimestamp(timestamp);
+        if (body.remaining() >= 8) {
+            message.setSequence(body.getLong());
+        }
+        return message;
+    }
+    
+    // False, writing nothing, if the body is over MAX_RECORD_BYTES
+    private boolean encode(Message message) {
+        byte[] sender = utf8(message.getSender());
+        byte[] recipient = utf8(message.getRecipient());
+        byte[] content = utf8(message.getContent());
+        long bodyLength = 8L + 1 + field(sender) + field(recipient) + field(content) + 8;
+        if (bodyLength > MAX_RECORD_BYTES) {
+            return false;
+        }
+        ensureCapacity(HEADER_BYTES + (int) bodyLength);
+        
+        int start = buffer.position();
+        buffer.position(start + HEADER_BYTES);
+        putBody(buffer, message, sender, recipient, content);
+        
+        crc.reset();
+        crc.update(buffer.array(), start + HEADER_BYTES, (int) bodyLength);
+        buffer.putInt(start, (int) bodyLength);
+        buffer.putInt(start + 4, (int) crc.getValue());
+        return true;
+    }
+    
+    // Reads records until each returns false or the segment ends
+    private static void readSegment(Path segment, Predicate<Message> each) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment), 64 * 1024))) {
+            readSegment(in, each);
+        } catch (NoSuchFileException e) {
+            // Deleted by retention since it was listed
+        }
+    }
+    
+    private static void readSegment(DataInputStream in, Predicate<Message> each) throws IOException {
+        CRC32 check = new CRC32();
+        byte[] body = new byte[256];
+        while (true) {
+            int length;
+            int expected;
+            try {
+                length = in.readInt();
+                expected = in.readInt();
+            } catch (EOFException e) {
+                return;
+            }
+            if (length < 9 || length > MAX_RECORD_BYTES) {
+                return;
+            }
+            if (body.length < length) {
+                body = new byte[Math.max(length, body.length * 2)];
+            }
+            try {
+                in.readFully(body, 0, length);
+            } catch (EOFException e) {
+                return;
+            }
+            check.reset();
+            check.update(body, 0, length);
+            if ((int) check.getValue() != expected) {
+                return;
+            }
+            
+            Message message = decodeBody(ByteBuffer.wrap(body, 0, length));
+            if (message == null || !each.test(message)) {
+                return;
+            }
+        }
+    }
+    
+    // Newest segment with any records decides
+    private static long lastSequence(List<Path> segments) throws IOException {
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            long[] last = new long[1];
+            readSegment(segments.get(i), message -> {
+                last[0] = Math.max(last[0], message.getSequence());
+                return true;
+            });
+            if (last[0] != 0) {
+                return last[0];
+            }
+        }
+        return 0;
+    }
+    
+    private void force() throws IOException {
+        active.force(false);
+        dirty = false;
+        lastForce = System.nanoTime();
+        fsyncs.increment();
+    }
+    
+    private void rollSegment() throws IOException {
+        if (fsyncNanos >= 0) {
+            force();
+        }
+        active.close();
+        openNextSegment();
+        applyRetention();
+    }
+    
+    private void openNextSegment() throws IOException {
+        activeNumber++;
+        active = FileChannel.open(directory.resolve(String.format("%020d", activeNumber) + SUFFIX),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        activeSize = active.size();
+        dirty = false;
+    }
+    
+    // Deletes closed segments, oldest first, while over the size limit or past the age limit
+    private void applyRetention() {
+        lastRetentionCheck = System.nanoTime();
+        try {
+            List<Path> closed = segments();
+            closed.removeIf(segment -> number(segment) >= activeNumber);
+            long total = activeSize;
+            for (Path segment : closed) {
+                total += Files.size(segment);
+            }
+            long cutoff = System.currentTimeMillis() - retentionMillis;
+            int deleted = 0;
+            for (Path segment : closed) {
+                if (total <= retentionBytes && Files.getLastModifiedTime(segment).toMillis() >= cutoff) {
+                    break;
+                }
+                total -= Files.size(segment);
+                Files.delete(segment);
+                deleted++;
+            }
+            LongConsumer listener = retentionListener;
+            if (deleted > 0 && listener != null) {
+                listener.accept(firstSequence());
+            }
+        } catch (IOException e) {
+            Log.warn("Error applying journal retention", "error", e.getMessage());
+        }
+    }
+    
+    // Sequence of the oldest record left, or one past the newest if the log is empty
+    private long firstSequence() throws IOException {
+        for (Path segment : segments()) {
+            long[] first = new long[1];
+            boolean[] found = new boolean[1];
+            readSegment(segment, message -> {
+                first[0] = message.getSequence();
+                found[0] = true;
+                return false;
+            });
+            if (found[0]) {
+                return first[0];
+            }
+        }
+        return lastWritten + 1;
+    }
+    
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            List<Path> segments = new ArrayList<>();
+            files.filter(path -> number(path) > 0).sorted().forEach(segments::add);
+            return segments;
+        }
+    }
+    
+    // Segment number from its file name, or 0 for files that are not segments
+    private static long number(Path path) {
+        String name = path.getFileName().toString();
+        if (name.length() != 20 + SUFFIX.length() || !name.endsWith(SUFFIX)) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(name.substring(0, 20));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+    
+    private void ensureCapacity(int extra) {
+        if (buffer.remaining() < extra) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + extra));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+    }
+    
+    private static byte[] utf8(String value) {
+        return value != null ? value.getBytes(StandardCharsets.UTF_8) : null;
+    }
+    
+    private static int field(byte[] value) {
+        return 4 + (value != null ? value.length : 0);
+    }
+    
+    private static void putBody(ByteBuffer buffer, Message message, byte[] sender, byte[] recipient, byte[] content) {
+        buffer.putLong(message.getTimestamp());
+        buffer.put((byte) message.getType().ordinal());
+        putField(buffer, sender);
+        putField(buffer, recipient);
+        putField(buffer, content);
+        buffer.putLong(message.getSequence());
+    }
+    
+    private static void putField(ByteBuffer buffer, byte[] value) {
+        if (value == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(value.length);
+            buffer.put(value);
+        }
+    }
+    
+    private static String getField(ByteBuffer record) {
+        int length = record.getInt();
+        if (length < 0) {
+            return null;
+        }
+        String value = new String(record.array(), record.position(), length, StandardCharsets.UTF_8);
+        record.position(record.position() + length);
+        return value;
+    }
+}
@@ -0,0 +1,462 @@
+import java.io.IOException;
+import java.util.List;
+
+// Broadcast, room, private message and user-list routing shared by every server
+// engine. Sessions hand each decoded message to handleMessage and the router
+// fans it out through ChatSession.send, wrapping a message in one
+// EncodedMessage so it is serialized once however many sessions receive it.
+// Sessions only queue what they are sent (see OutboundQueue), so routing
+// never waits on a peer's socket. Membership lives in a SessionRegistry;
+// no router-wide lock is held while sending chat messages.
+//
+// Presence is incremental (see Presence): a joining session gets one
+// versioned snapshot and everyone else gets deltas, which a
+// PresenceAggregator merges per tick so connection storms cost one update
+// per client rather than one per event.
+//
+// Rooms (see RoomRegistry) are joined by name. A room message goes only to
+// that room's members, so its cost follows the room's size, not the server's.
+// Plain broadcasts and presence still cover everyone connected.
+//
+// Chat messages that are delivered (broadcasts, room messages and private
+// messages to an online user) are numbered and kept by MessageHistory, so
+// reconnecting clients can catch up, and appended to its MessageJournal, if
+// one is set; appending only queues, so the disk never slows routing down.
+// They are indexed by SearchIndex the same way, except private messages,
+// and a SEARCH only returns what the searcher could have received:
+// broadcasts and messages in rooms it is in. Private messages to a user who
+// is offline go to the OfflineMailbox, if one is set, and reach them when
+// they next connect.
+//
+// Every message received, and the time each fan-out takes to queue, is
+// counted in ServerMetrics; sessions record what they write.
+//
+// In a cluster (see Cluster), broadcasts, room messages and presence from
+// local sessions are also passed to the other nodes, private messages to a
+// user on another node go to that node, and what the other nodes pass here
+// comes in through the deliver methods, which route it locally only.
+public class MessageRouter {
+    private SessionRegistry sessions;
+    private PresenceAggregator presence;
+    private RoomRegistry rooms = new RoomRegistry();
+    // Names interned for BinaryCodec, shared by every connection
+    private NameTable nameTable = new NameTable();
+    private int outboundCapacity = OutboundQueue.DEFAULT_CAPACITY;
+    private OutboundQueue.OverflowPolicy overflowPolicy = OutboundQueue.OverflowPolicy.COALESCE;
+    private WriteBatching writeBatching = new WriteBatching();
+    private MessageHistory history = new MessageHistory();
+    // Only while there is a journal, so search covers what is kept on disk
+    private volatile SearchIndex searchIndex;
+    private volatile OfflineMailbox mailbox;
+    private volatile Cluster cluster;
+    private final ServerMetrics metrics;
+    
+    public MessageRouter(SessionRegistry sessions) {
+        this.sessions = sessions;
+        this.presence = new PresenceAggregator(sessions);
+        this.metrics = new ServerMetrics(sessions);
+    }
+    
+    public void handleMessage(ChatSession sender, Message message) {
+        if (message == null || message.getType() == null) {
+            return;
+        }
+        metrics.messageReceived(message.getType());
+        
+        switch (message.getType()) {
+            case BROADCAST:
+                record(message);
+                broadcastMessage(message, sender);
+                publish(message);
+                break;
+            case PRIVATE:
+                sendPrivateMessage(sender, message);
+                break;
+            case USERNAME_UPDATE:
+                updateUsername(sender, message.getContent());
+                break;
+            case USER_LIST:
+                // A client that missed a presence delta asks for a fresh snapshot
+                presence.sendSnapshot(sender);
+                break;
+            case JOIN_ROOM:
+                joinRoom(sender, message.getRecipient());
+                break;
+            case LEAVE_ROOM:
+                leaveRoom(sender, message.getRecipient());
+                break;
+            case ROOM_MESSAGE:
+                sendRoomMessage(sender, message);
+                break;
+            case SEARCH:
+                search(sender, message.getContent());
+                break;
+            case DISCONNECT:
+                sender.close(ServerMetrics.DisconnectReason.CLIENT_REQUEST);
+                break;
+            default:
+                Log.warn("Unknown message type", "type", message.getType(), "user", sender.getUsername());
+        }
+    }
+    
+    // Claims the name of a session whose user has been set and announces it
+    // to the room on the next presence tick; returns false if the name is
+    // taken. Anything sent to the session from here on is queued, so it can
+    // still write its CONNECT reply (which also settles the codec) before the
+    // writer drains it.
+    public boolean join(ChatSession session) {
+        Cluster cluster = this.cluster;
+        if (cluster != null && cluster.isRemoteUser(session.getUsername())) {
+            return false;
+        }
+        if (!presence.join(session)) {
+            return false;
+        }
+        if (cluster != null) {
+            cluster.localJoined(session.getUsername());
+        }
+        return true;
+    }
+    
+    // Streams what a reconnecting session missed since the last sequence it
+    // saw, and the private messages kept for it while it was offline. Call
+    // once join has returned, so every message newer than the replay goes
+    // to the session live.
+    public void resume(ChatSession session, long lastSequence) {
+        history.replay(session, lastSequence, history.getSequence());
+        OfflineMailbox mailbox = this.mailbox;
+        if (mailbox != null) {
+            mailbox.deliver(session);
+        }
+    }
+    
+    public void leave(ChatSession session) {
+        for (String room : rooms.leaveAll(session)) {
+            announce(room, session.getUsername() + " has left " + room, null);
+        }
+        // Sessions that never claimed their name have nothing to announce
+        Cluster cluster = this.cluster;
+        if (presence.leave(session) && cluster != null) {
+            cluster.localLeft(session.getUsername());
+        }
+    }
+    
+    public void broadcastMessage(Message message, ChatSession sender) {
+        long start = System.nanoTime();
+        EncodedMessage encoded = new EncodedMessage(message, start);
+        for (ChatSession client : sessions.sessions()) {
+            if (client != sender && client.isRunning()) {
+                try {
+                    client.send(encoded);
+                } catch (Exception e) {
+                    Log.warn("Error broadcasting", "user", client.getUsername(), "error", e.getMessage());
+                }
+            }
+        }
+        metrics.getBroadcastFanout().record(System.nanoTime() - start);
+    }
+    
+    private void sendPrivateMessage(ChatSession sender, Message message) {
+        String recipient = message.getRecipient();
+        ChatSession client = sessions.get(recipient);
+        if (client != null && client.isRunning()) {
+            try {
+                record(message);
+                client.sendMessage(message);
+                // Send confirmation to sender
+                sender.sendMessage(new Message("Server", message.getSender(),
+                    "Private message sent to " + recipient, Message.MessageType.PRIVATE));
+                return;
+            } catch (Exception e) {
+                Log.warn("Error sending private message", "user", recipient, "error", e.getMessage());
+            }
+        }
+        // On another node of the cluster, which delivers it
+        Cluster cluster = this.cluster;
+        if (cluster != null && cluster.sendPrivate(message)) {
+            record(message);
+            sender.sendMessage(new Message("Server", message.getSender(),
+                "Private message sent to " + recipient, Message.MessageType.PRIVATE));
+            return;
+        }
+        // Recipient not found; the mailbox tells the sender whether it kept the message
+        OfflineMailbox mailbox = this.mailbox;
+        if (mailbox != null) {
+            mailbox.store(sender, message);
+            return;
+        }
+        sender.sendMessage(new Message("Server", message.getSender(),
+            "User " + recipient + " is not online or doesn't exist.", Message.MessageType.PRIVATE));
+    }
+    
+    // Joining a room twice just repeats the reply, which lists its members
+    private void joinRoom(ChatSession session, String room) {
+        if (!RoomRegistry.isValidName(room)) {
+            session.sendMessage(new Message("Server", session.getUsername(),
+                "Invalid room name " + room + ". Use # followed by up to "
+                    + (RoomRegistry.MAX_NAME_LENGTH - 1) + " characters without spaces.", Message.MessageType.PRIVATE));
+            return;
+        }
+        
+        if (rooms.join(room, session)) {
+            announce(room, session.getUsername() + " has joined " + room, session);
+        }
+        StringBuilder members = new StringBuilder();
+        for (ChatSession member : rooms.members(room)) {
+            members.append(member.getUsername()).append(",");
+        }
+        session.sendMessage(new Message("Server", room, members.toString(), Message.MessageType.JOIN_ROOM));
+    }
+    
+    private void leaveRoom(ChatSession session, String room) {
+        if (!rooms.leave(room, session)) {
+            session.sendMessage(new Message("Server", session.getUsername(),
+                "You are not in " + room + ".", Message.MessageType.PRIVATE));
+            return;
+        }
+        announce(room, session.getUsername() + " has left " + room, null);
+        session.sendMessage(new Message("Server", room, null, Message.MessageType.LEAVE_ROOM));
+    }
+    
+    private void sendRoomMessage(ChatSession sender, Message message) {
+        String room = message.getRecipient();
+        if (!rooms.isMember(room, sender)) {
+            sender.sendMessage(new Message("Server", sender.getUsername(),
+                "You are not in " + room + ". Join it first.", Message.MessageType.PRIVATE));
+            return;
+        }
+        record(message);
+        sendToRoom(room, new EncodedMessage(message), sender);
+        publish(message);
+    }
+    
+    private void sendToRoom(String room, EncodedMessage message, ChatSession except) {
+        long start = System.nanoTime();
+        for (ChatSession member : rooms.members(room)) {
+            if (member != except && member.isRunning()) {
+                try {
+                    member.send(message);
+                } catch (Exception e) {
+                    Log.warn("Error sending room message", "user", member.getUsername(), "room", room, "error", e.getMessage());
+                }
+            }
+        }
+        metrics.getRoomFanout().record(System.nanoTime() - start);
+    }
+    
+    // A broadcast from a user on another node of the cluster
+    public void deliverBroadcast(Message message) {
+        record(message);
+        broadcastMessage(message, null);
+    }
+    
+    // A room message or notice from another node, for this node's members of the room
+    public void deliverRoomMessage(Message message) {
+        if (!"Server".equals(message.getSender())) {
+            record(message);
+        }
+        sendToRoom(message.getRecipient(), new EncodedMessage(message), null);
+    }
+    
+    // A private message from a user on another node, which found the recipient here
+    public void deliverPrivateMessage(Message message) {
+        ChatSession client = sessions.get(message.getRecipient());
+        if (client == null || !client.isRunning()) {
+            // Left after the sender's node looked them up; mailboxes are per node
+            Log.warn("Dropping private message from another node", "user", message.getRecipient());
+            return;
+        }
+        record(message);
+        client.sendMessage(message);
+    }
+    
+    // Passes a message from a local session on to the rest of the cluster
+    private void publish(Message message) {
+        Cluster cluster = this.cluster;
+        if (cluster != null) {
+            cluster.publish(message);
+        }
+    }
+    
+    // Numbers, journals and indexes a message about to be delivered
+    private void record(Message message) {
+        history.record(message);
+        SearchIndex searchIndex = this.searchIndex;
+        if (searchIndex != null) {
+            searchIndex.add(message);
+        }
+    }
+    
+    // Replies with a SEARCH summary followed by one SEARCH_RESULT per hit, newest first
+    private void search(ChatSession session, String text) {
+        String username = session.getUsername();
+        SearchIndex searchIndex = this.searchIndex;
+        if (searchIndex == null) {
+            session.sendMessage(new Message("Server", username,
+                "Search is off: this server does not keep a journal.", Message.MessageType.SEARCH));
+            return;
+        }
+        SearchIndex.Query query;
+        try {
+            query = SearchIndex.Query.parse(text);
+        } catch (IllegalArgumentException e) {
+            session.sendMessage(new Message("Server", username, e.getMessage(), Message.MessageType.SEARCH));
+            return;
+        }
+        if (query.isEmpty()) {
+            session.sendMessage(new Message("Server", username,
+                "Search for at least one word, from:name or in:name.", Message.MessageType.SEARCH));
+            return;
+        }
+        
+        long start = System.nanoTime();
+        List<Message> hits = searchIndex.search(query, SearchIndex.DEFAULT_LIMIT, message -> isVisible(message, session));
+        session.sendMessage(new Message("Server", username, String.format("%d results for \"%s\" (%.1f ms)",
+            hits.size(), text.trim(), (System.nanoTime() - start) / 1e6), Message.MessageType.SEARCH));
+        for (Message hit : hits) {
+            Message result = new Message(hit.getSender(), hit.getRecipient(), hit.getContent(), Message.MessageType.SEARCH_RESULT);
+            result.setTimestamp(hit.getTimestamp());
+            session.sendMessage(result);
+        }
+    }
+    
+    // Private messages are never indexed, see SearchIndex
+    private boolean isVisible(Message message, ChatSession session) {
+        switch (message.getType()) {
+            case BROADCAST:
+                return true;
+            case ROOM_MESSAGE:
+                return rooms.isMember(message.getRecipient(), session);
+            default:
+                return false;
+        }
+    }
+    
+    // Tells a room's members, here and on the other nodes, that someone came or went
+    private void announce(String room, String text, ChatSession except) {
+        Message notice = new Message("Server", room, text, Message.MessageType.ROOM_MESSAGE);
+        sendToRoom(room, new EncodedMessage(notice), except);
+        publish(notice);
+    }
+    
+    private void updateUsername(ChatSession session, String newUsername) {
+        String oldUsername = session.getUsername();
+        // Everyone hears about the change on the next presence tick
+        Cluster cluster = this.cluster;
+        if ((cluster != null && cluster.isRemoteUser(newUsername)) || !presence.rename(session, newUsername)) {
+            session.sendMessage(new Message("Server", oldUsername,
+                "Username " + newUsername + " is already taken.", Message.MessageType.PRIVATE));
+            return;
+        }
+        if (cluster != null) {
+            // Closed mid-rename, in which case leave found no name to release
+            if (session.isRunning()) {
+                cluster.localRenamed(oldUsername, newUsername);
+            } else {
+                cluster.localLeft(oldUsername);
+            }
+        }
+    }
+    
+    public boolean isUsernameTaken(String username) {
+        Cluster cluster = this.cluster;
+        return sessions.contains(username) || (cluster != null && cluster.isRemoteUser(username));
+    }
+    
+    public SessionRegistry getSessions() {
+        return sessions;
+    }
+    
+    public RoomRegistry getRooms() {
+        return rooms;
+    }
+    
+    public PresenceAggregator getPresence() {
+        return presence;
+    }
+    
+    public NameTable getNameTable() {
+        return nameTable;
+    }
+    
+    // Applies to sessions created afterwards
+    public void setOutboundLimits(int capacity, OutboundQueue.OverflowPolicy policy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Queue capacity must be positive: " + capacity);
+        }
+        this.outboundCapacity = capacity;
+        this.overflowPolicy = policy;
+    }
+    
+    // Under COALESCE, a session that lost presence updates gets a fresh snapshot
+    public OutboundQueue newOutboundQueue(ChatSession session) {
+        return new OutboundQueue(outboundCapacity, overflowPolicy, () -> presence.sendSnapshot(session));
+    }
+    
+    // Applies to sessions created afterwards
+    public void setWriteBatching(WriteBatching writeBatching) {
+        this.writeBatching = writeBatching;
+    }
+    
+    public WriteBatching getWriteBatching() {
+        return writeBatching;
+    }
+    
+    // Also indexes the journal's history for search, keeping at most
+    // searchMaxMessages and nothing the journal has deleted, so call before
+    // clients connect
+    public void setJournal(MessageJournal journal, int searchMaxMessages) throws IOException {
+        SearchIndex index = null;
+        if (journal != null) {
+            index = new SearchIndex(searchMaxMessages);
+            try {
+                index.load(journal);
+            } catch (IOException | RuntimeException e) {
+                index.close();
+                throw e;
+            }
+            journal.setRetentionListener(index::trimBefore);
+        }
+        SearchIndex previous = searchIndex;
+        searchIndex = index;
+        if (previous != null) {
+            previous.close();
+        }
+        history.setJournal(journal);
+    }
+    
+    public MessageJournal getJournal() {
+        return history.getJournal();
+    }
+    
+    // Keeps private messages for offline users; null turns it off
+    public void setMailbox(OfflineMailbox mailbox) {
+        this.mailbox = mailbox;
+    }
+    
+    public OfflineMailbox getMailbox() {
+        return mailbox;
+    }
+    
+    // Joins this router to a cluster; call before clients connect
+    public void setCluster(Cluster cluster) {
+        this.cluster = cluster;
+    }
+    
+    public Cluster getCluster() {
+        return cluster;
+    }
+    
+    // Null while there is no journal
+    public SearchIndex getSearchIndex() {
+        return searchIndex;
+    }
+    
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+    
+    public MessageHistory getHistory() {
+        return history;
+    }
+}
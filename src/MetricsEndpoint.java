@@ -0,0 +1,53 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Serves ServerMetrics in the Prometheus text format at /metrics. Bound to
+// the loopback interface only, and scrapes are answered one at a time on a
+// single daemon thread, so watching the server costs it at most one core.
+public class MetricsEndpoint {
+    public static final int DEFAULT_PORT = 9091;
+    
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "metrics-http");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    public MetricsEndpoint(int port, ServerMetrics metrics) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            try {
+                if (!exchange.getRequestMethod().equals("GET")) {
+                    exchange.sendResponseHeaders(405, -1);
+                    return;
+                }
+                byte[] body = metrics.scrape().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            } finally {
+                exchange.close();
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+    
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+    
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,50 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Assigns small integer ids to sender/recipient names so BinaryCodec can send
+// a name once and refer to it by id afterwards. One table is shared by every
+// connection on a server; ids are never reused, and once the table is full
+// further names are sent inline.
+public class NameTable {
+    public static final int MAX_NAMES = 65536;
+    
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    
+    // Returns the id for name, or -1 when it cannot be interned
+    public int idOf(String name) {
+        if (name == null) {
+            return -1;
+        }
+        
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        if (nextId.get() >= MAX_NAMES) {
+            return -1;
+        }
+        
+        // Null, leaving the name out of the table, if the last id went meanwhile
+        id = ids.computeIfAbsent(name, n -> reserveId());
+        return id != null ? id : -1;
+    }
+    
+    public int size() {
+        return nextId.get();
+    }
+    
+    // The next free id, or null once all MAX_NAMES are taken
+    private Integer reserveId() {
+        while (true) {
+            int next = nextId.get();
+            if (next >= MAX_NAMES) {
+                return null;
+            }
+            if (nextId.compareAndSet(next, next + 1)) {
+                return next;
+            }
+        }
+    }
+}
@@ -0,0 +1,412 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// One framed connection owned by an NioServer event loop. Reads, writes and
+// encoding only ever happen on the loop thread; send may be called from any
+// thread and just queues the message on a bounded OutboundQueue.
+public class NioConnection implements ChatSession {
+    // Most buffers handed to one gathering write
+    private static final int MAX_GATHER = 64;
+    // Smaller partial-frame buffers are kept once empty; larger ones are freed
+    private static final int PARTIAL_KEEP_BYTES = 2048;
+    
+    private final SocketChannel channel;
+    private final NioServer.EventLoop loop;
+    private final MessageRouter router;
+    private final OutboundQueue outbound;
+    // Encoded frames not yet fully written; loop thread only
+    private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();
+    // Staged messages that want to know once writeQueue has drained; loop thread only
+    private final List<EncodedMessage> awaitingWrite = new ArrayList<>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER + 2];
+    private final WriteBatching batching;
+    private final ServerMetrics metrics;
+    // Messages and bytes moved into writeQueue since the last write; loop thread only
+    private int stagedMessages;
+    private long stagedBytes;
+    // When the oldest message staged since the last write was routed
+    private long stagedSince;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final Runnable flushTask = this::flush;
+    private SelectionKey key;
+    // Bytes of an incomplete frame left over from earlier reads, in write
+    // mode, sized for the whole frame once its length is known; null while
+    // reads end on frame boundaries
+    private ByteBuffer partial;
+    // Set once BinaryCodec has been negotiated; frames are serialized Messages until then
+    private BinaryCodec codec;
+    private User user;
+    private InetAddress address;
+    private volatile boolean running = true;
+    // Set when the connection should close once its queued replies are written
+    private ServerMetrics.DisconnectReason closeAfterFlush;
+    
+    public NioConnection(SocketChannel channel, NioServer.EventLoop loop, MessageRouter router) {
+        this.channel = channel;
+        this.loop = loop;
+        this.router = router;
+        this.outbound = router.newOutboundQueue(this);
+        this.batching = router.getWriteBatching();
+        this.metrics = router.getMetrics();
+        this.address = channel.socket().getInetAddress();
+        metrics.connectionOpened();
+    }
+    
+    SocketChannel getChannel() {
+        return channel;
+    }
+    
+    void onRegistered(SelectionKey key) {
+        this.key = key;
+        ByteBuffer greeting = ByteBuffer.allocate(4).putInt(MessageFrames.GREETING);
+        greeting.flip();
+        writeQueue.add(greeting);
+        flushScheduled.set(true);
+        flush();
+    }
+    
+    void onReadable(ByteBuffer readBuffer) {
+        readBuffer.clear();
+        int read;
+        try {
+            read = channel.read(readBuffer);
+        } catch (IOException e) {
+            if (running) {
+                Log.warn("Error reading message", "user", getUsername(), "error", e.getMessage());
+            }
+            close(ServerMetrics.DisconnectReason.READ_ERROR);
+            return;
+        }
+        
+        if (read < 0) {
+            Log.info("Client closed the connection", "user", getUsername());
+            close(ServerMetrics.DisconnectReason.EOF);
+            return;
+        }
+        metrics.bytesReceived(read);
+        readBuffer.flip();
+        
+        // Whole frames are decoded straight from the loop's buffer
+        if (partial == null || partial.position() == 0) {
+            if (!decodeFrames(readBuffer)) {
+                partial = null;
+            } else if (readBuffer.hasRemaining()) {
+                if (partial == null || partial.capacity() < readBuffer.remaining()) {
+                    partial = ByteBuffer.allocate(Math.max(PARTIAL_KEEP_BYTES, readBuffer.remaining()));
+                }
+                partial.put(readBuffer);
+            }
+            return;
+        }
+        
+        // Sized by what has arrived, not by what the prefix claims, so a
+        // connection that sends only a length holds no more than it sent;
+        // doubling keeps the copies of a large frame linear in its size
+        grow(partial.position() + readBuffer.remaining());
+        partial.put(readBuffer).flip();
+        if (!decodeFrames(partial)) {
+            partial = null;
+            return;
+        }
+        int size = frameSize(partial);
+        if (size == 0 && partial.capacity() > PARTIAL_KEEP_BYTES) {
+            partial = null;
+        } else if (partial.position() > 0) {
+            partial.compact();
+        } else {
+            // Still the same incomplete frame; back to appending without moving it
+            partial.position(partial.limit()).limit(partial.capacity());
+        }
+    }
+    
+    // Decodes and handles every whole frame in buffer, leaving it at the
+    // first incomplete one; false if the connection was closed
+    private boolean decodeFrames(ByteBuffer buffer) {
+        try {
+            while (running && buffer.remaining() >= 4) {
+                int length = buffer.getInt(buffer.position());
+                MessageFrames.checkLength(length);
+                if (buffer.remaining() < 4 + length) {
+                    break;
+                }
+                
+                int offset = buffer.position() + 4;
+                Message message;
+                if (buffer.hasArray()) {
+                    message = decode(buffer.array(), buffer.arrayOffset() + offset, length);
+                } else {
+                    byte[] payload = new byte[length];
+                    buffer.get(offset, payload);
+                    message = decode(payload, 0, length);
+                }
+                buffer.position(offset + length);
+                if (message != null) {
+                    handleFrame(message);
+                }
+            }
+        } catch (IOException e) {
+            Log.warn("Error deserializing message", "user", getUsername(), "error", e.getMessage());
+            close(ServerMetrics.DisconnectReason.PROTOCOL_ERROR);
+            return false;
+        }
+        return running;
+    }
+    
+    private Message decode(byte[] data, int offset, int length) throws IOException {
+        return codec != null ? codec.decode(data, offset, length) : MessageFrames.decode(data, offset, length);
+    }
+    
+    // Bytes of the incomplete frame buffer is at, as far as its prefix
+    // tells; decodeFrames has already checked any length it left behind
+    private static int frameSize(ByteBuffer buffer) {
+        return buffer.remaining() < 4 ? buffer.remaining() : 4 + buffer.getInt(buffer.position());
+    }
+    
+    // Makes room for capacity bytes in partial, at least doubling it unless
+    // that would pass the end of the frame it starts with
+    private void grow(int capacity) {
+        if (partial.capacity() >= capacity) {
+            return;
+        }
+        int doubled = partial.capacity() * 2;
+        if (partial.position() >= 4) {
+            doubled = Math.min(doubled, 4 + partial.getInt(0));
+        }
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(capacity, doubled));
+        partial.flip();
+        bigger.put(partial);
+        partial = bigger;
+    }
+    
+    private void handleFrame(Message message) {
+        if (user != null) {
+            router.handleMessage(this, message);
+            return;
+        }
+        
+        // First frame must be the CONNECT carrying the username
+        if (message.getType() != Message.MessageType.CONNECT) {
+            close(ServerMetrics.DisconnectReason.PROTOCOL_ERROR);
+            return;
+        }
+        
+        // Claim the name and announce it; anything the room sends meanwhile is
+        // queued behind the reply, since flushes only run once this returns
+        String username = message.getContent();
+        user = new User(username);
+        if (!router.join(this)) {
+            user = null;
+            closeAfterFlush = ServerMetrics.DisconnectReason.NAME_TAKEN;
+            sendMessage(new Message("Server", username, "Username already taken. Please choose another.", Message.MessageType.PRIVATE));
+            running = false;
+            return;
+        }
+        
+        // The reply is always a serialized frame; the client switches codec after reading it
+        Message reply = new Message("Server", username, "Connected successfully!", Message.MessageType.CONNECT);
+        if (BinaryCodec.isOffered(message.getCodec())) {
+            reply.setCodec(BinaryCodec.NAME);
+        }
+        try {
+            writeQueue.add(ByteBuffer.wrap(MessageFrames.encode(reply)));
+        } catch (IOException e) {
+            Log.warn("Error sending message", "user", username, "error", e.getMessage());
+            close(ServerMetrics.DisconnectReason.WRITE_ERROR);
+            return;
+        }
+        if (reply.getCodec() != null) {
+            codec = new BinaryCodec(router.getNameTable());
+        }
+        scheduleFlush();
+        router.resume(this, message.getSequence());
+        
+        Log.info("Client connected", "user", username, "address", address);
+    }
+    
+    @Override
+    public void send(EncodedMessage message) {
+        if (!running) {
+            return;
+        }
+        
+        if (!outbound.offer(message)) {
+            Log.warn("Disconnecting client, outbound queue is full", "user", getUsername());
+            close(ServerMetrics.DisconnectReason.SLOW_CONSUMER);
+            return;
+        }
+        scheduleFlush();
+    }
+    
+    // Deferred even on the loop thread, so everything queued while the loop
+    // handles one round of reads goes out together in the following flush
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            loop.execute(flushTask);
+        }
+    }
+    
+    // Loop thread only. Leaves OP_WRITE set while the socket cannot take more.
+    // Messages are taken off outbound only as the socket accepts them, so a
+    // slow peer's backlog stays in the bounded queue rather than writeQueue.
+    // Up to MAX_GATHER frames or the batching byte budget go out in a single
+    // gathering write. The loop already collects whatever was queued before
+    // this flush ran, so there is no batching window here.
+    void flush() {
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        
+        try {
+            while (true) {
+                while (writeQueue.size() < MAX_GATHER && stagedBytes < batching.getByteBudget()) {
+                    if (!encodeNext()) {
+                        break;
+                    }
+                }
+                if (writeQueue.isEmpty()) {
+                    break;
+                }
+                
+                int count = writeQueue.size();
+                long written = channel.write(writeQueue.toArray(gather), 0, count);
+                batching.recordFlush(stagedMessages, written);
+                metrics.bytesSent(written);
+                if (stagedMessages > 0) {
+                    metrics.getDelivery().record(System.nanoTime() - stagedSince);
+                }
+                stagedMessages = 0;
+                stagedBytes = Math.max(0, stagedBytes - written);
+                while (!writeQueue.isEmpty() && !writeQueue.peek().hasRemaining()) {
+                    writeQueue.poll();
+                }
+                Arrays.fill(gather, 0, count, null);
+                if (!writeQueue.isEmpty()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                for (EncodedMessage sent : awaitingWrite) {
+                    sent.written();
+                }
+                awaitingWrite.clear();
+            }
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        } catch (IOException e) {
+            Log.warn("Error sending message", "user", getUsername(), "error", e.getMessage());
+            close(ServerMetrics.DisconnectReason.WRITE_ERROR);
+            return;
+        }
+        
+        if (closeAfterFlush != null) {
+            close(closeAfterFlush);
+            return;
+        }
+        
+        // A sender may have queued after the last poll but before the flag cleared
+        flushScheduled.set(false);
+        if (!outbound.isEmpty()) {
+            scheduleFlush();
+        }
+    }
+    
+    // Moves the next queued message into writeQueue; false if there was none.
+    // Shared frames are wrapped, not copied; only NAME frames are per connection.
+    private boolean encodeNext() {
+        EncodedMessage message = outbound.poll();
+        if (message == null) {
+            return false;
+        }
+        
+        try {
+            if (codec != null) {
+                byte[] names = codec.encodeNames(message.getMessage());
+                if (names != null) {
+                    stage(names);
+                }
+                stage(message.binaryFrame(router.getNameTable()));
+            } else {
+                stage(message.serializedFrame());
+            }
+            if (stagedMessages++ == 0) {
+                stagedSince = message.getCreatedNanos();
+            }
+            if (message.hasWrittenAction()) {
+                awaitingWrite.add(message);
+            }
+            metrics.messageSent(message.getMessage().getType());
+        } catch (IOException e) {
+            Log.warn("Error encoding message", "user", getUsername(), "error", e.getMessage());
+        }
+        return true;
+    }
+    
+    private void stage(byte[] frame) {
+        writeQueue.add(ByteBuffer.wrap(frame));
+        stagedBytes += frame.length;
+    }
+    
+    @Override
+    public void close() {
+        close(ServerMetrics.DisconnectReason.SERVER);
+    }
+    
+    @Override
+    public void close(ServerMetrics.DisconnectReason reason) {
+        if (!loop.inEventLoop()) {
+            loop.execute(() -> close(reason));
+            return;
+        }
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        running = false;
+        metrics.connectionClosed(reason);
+        
+        if (user != null) {
+            router.leave(this);
+            
+            Log.info("Client disconnected", "user", user.getUsername(), "reason", reason);
+        }
+        
+        if (key != null) {
+            key.cancel();
+        }
+        outbound.close();
+        writeQueue.clear();
+        awaitingWrite.clear();
+        partial = null;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.warn("Error closing connection", "error", e.getMessage());
+        }
+    }
+    
+    @Override
+    public User getUser() {
+        return user;
+    }
+    
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+    
+    @Override
+    public int getQueuedMessages() {
+        return outbound.size();
+    }
+    
+    @Override
+    public String getUsername() {
+        return user != null ? user.getUsername() : "unknown";
+    }
+}
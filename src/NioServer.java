@@ -0,0 +1,183 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Selector-based server engine. The accepting thread hands each connection to
+// one of a few event loops (one per core by default); a loop owns reading,
+// framing and writing for every channel registered with it, so connection
+// count is bounded by file descriptors rather than threads.
+public class NioServer {
+    private static final int ACCEPT_BACKLOG = 1024;
+    
+    private ServerSocketChannel serverChannel;
+    private EventLoop[] loops;
+    private MessageRouter router;
+    private volatile boolean running;
+    
+    public NioServer(int port, int threads, MessageRouter router) throws IOException {
+        this.router = router;
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+        
+        loops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new EventLoop();
+            Thread thread = new Thread(loops[i], "nio-loop-" + i);
+            thread.setDaemon(true);
+            loops[i].thread = thread;
+            thread.start();
+        }
+    }
+    
+    public void start() {
+        running = true;
+        int next = 0;
+        
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Log.debug("Accepted connection", "address", channel.socket().getInetAddress());
+                
+                EventLoop loop = loops[next];
+                next = (next + 1) % loops.length;
+                loop.register(new NioConnection(channel, loop, router));
+            } catch (IOException e) {
+                if (running) {
+                    Log.warn("Error accepting client connection", "error", e.getMessage());
+                }
+            }
+        }
+    }
+    
+    public void stop() {
+        running = false;
+        
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            Log.warn("Error closing server socket", "error", e.getMessage());
+        }
+        
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+    
+    // Single-threaded reactor. Other threads interact with it only through
+    // execute(), which queues a task and wakes the selector at most once per
+    // select cycle. Tasks the loop queues for itself run after the current
+    // round of ready keys.
+    static final class EventLoop implements Runnable {
+        private static final int READ_BUFFER_SIZE = 64 * 1024;
+        
+        private final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean wakeupPending = new AtomicBoolean();
+        // Shared by every connection on this loop; partial frames are copied out
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private volatile boolean running = true;
+        private Thread thread;
+        
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+        
+        boolean inEventLoop() {
+            return Thread.currentThread() == thread;
+        }
+        
+        void execute(Runnable task) {
+            tasks.add(task);
+            if (!inEventLoop() && wakeupPending.compareAndSet(false, true)) {
+                selector.wakeup();
+            }
+        }
+        
+        void register(NioConnection connection) {
+            execute(() -> {
+                try {
+                    SelectionKey key = connection.getChannel().register(selector, SelectionKey.OP_READ, connection);
+                    connection.onRegistered(key);
+                } catch (IOException e) {
+                    Log.warn("Error registering client connection", "error", e.getMessage());
+                    connection.close();
+                }
+            });
+        }
+        
+        void shutdown() {
+            execute(() -> running = false);
+        }
+        
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    // Don't block while tasks queued by the last round are pending
+                    if (tasks.isEmpty()) {
+                        selector.select();
+                    } else {
+                        selector.selectNow();
+                    }
+                    wakeupPending.set(false);
+                    runTasks();
+                    
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable(readBuffer);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                        } catch (CancelledKeyException e) {
+                            // Closed while its events were being handled
+                        } catch (RuntimeException e) {
+                            // A failure routing one client's message costs that client
+                            // its connection, not every connection on this loop
+                            Log.error("Error handling client connection", "user", connection.getUsername(), "error", e.toString());
+                            connection.close(ServerMetrics.DisconnectReason.SERVER);
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    Log.error("Error in event loop", "error", e.toString());
+                }
+            }
+            
+            for (SelectionKey key : selector.keys()) {
+                ((NioConnection) key.attachment()).close();
+            }
+            runTasks();
+            try {
+                selector.close();
+            } catch (IOException e) {
+                Log.warn("Error closing selector", "error", e.getMessage());
+            }
+        }
+        
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.error("Error in event loop task", "error", e.getMessage());
+                }
+            }
+        }
+    }
+}
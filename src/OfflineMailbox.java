@@ -0,0 +1,613 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+// Store-and-forward for private messages to users who are offline. Each
+// message is appended to a segmented log on disk and indexed in memory by a
+// deque per recipient that holds only where its record is, so storing and
+// delivering a message are O(1) and a dormant user costs a few small
+// objects. Once the recipient's CONNECT reply is sent the backlog is read
+// back and streamed in chunks, paced by its outbound queue like a history
+// replay. A delivery record is logged once the session has written a chunk
+// to its socket, so a restart does not resend it. Messages its outbound
+// queue drops, or that are still unwritten when the connection closes, go
+// back into the box and are sent again; one written after them may then
+// arrive twice.
+//
+// Everything runs on one mailbox thread, so the index needs no locks and the
+// routing path only queues work. Each user keeps at most quota messages
+// (the sender of one more is told the mailbox is full) for at most the
+// expiry time. Segments are deleted oldest first once nothing in them is
+// waiting or they are past the expiry, which keeps the delivery records
+// that remain valid: they only refer to messages in their own or older
+// segments. Writes are forced to disk once a second.
+//
+// Record: int body length, int CRC32 of the body, then the body: byte kind,
+// long mail id, long time stored, then for STORED the MessageJournal body of
+// the message and for DELIVERED the recipient's UTF-8 name (everything for
+// it up to the id was delivered or expired).
+public class OfflineMailbox {
+    public static final int DEFAULT_QUOTA = 200;
+    public static final long DEFAULT_EXPIRY_MILLIS = TimeUnit.DAYS.toMillis(7);
+    public static final long DEFAULT_SEGMENT_BYTES = 16L * 1024 * 1024;
+    // Messages waiting across all users, so mail to made-up names cannot fill the disk
+    public static final int MAX_WAITING = 1_000_000;
+    
+    private static final String SUFFIX = ".mbx";
+    private static final int HEADER_BYTES = 8;
+    private static final int PREFIX_BYTES = 1 + 8 + 8;
+    private static final byte STORED = 1;
+    private static final byte DELIVERED = 2;
+    private static final int CHUNK = 64;
+    private static final int LOW_WATER = 64;
+    private static final long PACE_MILLIS = 5;
+    private static final long WRITE_CHECK_MILLIS = 100;
+    private static final long FLUSH_MILLIS = 1000;
+    private static final long SWEEP_MILLIS = TimeUnit.HOURS.toMillis(1);
+    
+    private final Path directory;
+    private final SessionRegistry sessions;
+    private final int quota;
+    private final long expiryMillis;
+    private final long segmentBytes;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "mailbox");
+        thread.setDaemon(true);
+        return thread;
+    });
+    
+    // Confined to the mailbox thread
+    private final Map<String, ArrayDeque<Entry>> boxes = new HashMap<>();
+    private final Set<String> delivering = new HashSet<>();
+    // Oldest first; the last one is written to
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+    private final CRC32 crc = new CRC32();
+    private long nextId = 1;
+    private boolean dirty;
+    private boolean closed;
+    
+    private volatile int waiting;
+    private final LongAdder stored = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder expired = new LongAdder();
+    private final LongAdder refused = new LongAdder();
+    
+    // Where one waiting message's record is
+    private static final class Entry {
+        final long id;
+        final long storedAt;
+        final Segment segment;
+        final long position;
+        final int length;
+        
+        Entry(long id, long storedAt, Segment segment, long position, int length) {
+            this.id = id;
+            this.storedAt = storedAt;
+            this.segment = segment;
+            this.position = position;
+            this.length = length;
+        }
+    }
+    
+    // Messages sent to a session and not yet written or dropped by it
+    private static final class Chunk {
+        final List<Entry> entries;
+        final long last;
+        final boolean[] written;
+        int pending;
+        // Finished, by the session settling every message or by closing
+        boolean settled;
+        
+        Chunk(List<Entry> entries, long last) {
+            this.entries = entries;
+            this.last = last;
+            this.written = new boolean[entries.size()];
+            this.pending = entries.size();
+        }
+    }
+    
+    private static final class Segment {
+        final Path path;
+        final FileChannel channel;
+        long size;
+        int waiting;
+        long newest;
+        
+        Segment(Path path, FileChannel channel, long size) {
+            this.path = path;
+            this.channel = channel;
+            this.size = size;
+        }
+    }
+    
+    public OfflineMailbox(Path directory, SessionRegistry sessions) throws IOException {
+        this(directory, sessions, DEFAULT_QUOTA, DEFAULT_EXPIRY_MILLIS, DEFAULT_SEGMENT_BYTES);
+    }
+    
+    // Rebuilds the index from the segments an earlier run left, then starts a new one
+    public OfflineMailbox(Path directory, SessionRegistry sessions, int quota, long expiryMillis,
+                          long segmentBytes) throws IOException {
+        if (quota < 1 || expiryMillis < 1 || segmentBytes < 1) {
+            throw new IllegalArgumentException("Invalid mailbox quota " + quota + ", expiry "
+                + expiryMillis + "ms or segment size " + segmentBytes);
+        }
+        this.directory = directory;
+        this.sessions = sessions;
+        this.quota = quota;
+        this.expiryMillis = expiryMillis;
+        this.segmentBytes = segmentBytes;
+        
+        Files.createDirectories(directory);
+        long last = 0;
+        for (Path path : segmentFiles()) {
+            recover(path);
+            last = number(path);
+        }
+        boxes.values().removeIf(ArrayDeque::isEmpty);
+        openSegment(last + 1);
+        deleteDeadSegments();
+        
+        executor.scheduleWithFixedDelay(this::flush, FLUSH_MILLIS, FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+        executor.scheduleWithFixedDelay(this::sweep, SWEEP_MILLIS, SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    
+    // Keeps a private message for its offline recipient and tells the sender
+    // whether it was kept
+    public void store(ChatSession sender, Message message) {
+        submit(() -> storeNow(sender, message));
+    }
+    
+    // Streams what was kept for session; call once its CONNECT reply is sent
+    public void deliver(ChatSession session) {
+        String username = session.getUsername();
+        submit(() -> startDelivery(session, username));
+    }
+    
+    // Forces what was written to disk and closes the log
+    public void close() {
+        submit(() -> {
+            closed = true;
+            flush();
+            for (Segment segment : segments) {
+                closeQuietly(segment);
+            }
+        });
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    public int getWaiting() {
+        return waiting;
+    }
+    
+    public long getStored() {
+        return stored.sum();
+    }
+    
+    public long getDelivered() {
+        return delivered.sum();
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("%d waiting, %d stored, %d delivered, %d expired, %d refused",
+            waiting, stored.sum(), delivered.sum(), expired.sum(), refused.sum());
+    }
+    
+    private void submit(Runnable task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Closed; the server is stopping
+        }
+    }
+    
+    private void storeNow(ChatSession sender, Message message) {
+        if (closed) {
+            return;
+        }
+        String recipient = message.getRecipient();
+        ArrayDeque<Entry> box = boxes.get(recipient);
+        if (box != null) {
+            expireOld(box);
+        }
+        if ((box != null && box.size() >= quota) || waiting >= MAX_WAITING) {
+            refused.increment();
+            sender.sendMessage(new Message("Server", message.getSender(),
+                "User " + recipient + " is offline and their mailbox is full.", Message.MessageType.PRIVATE));
+            return;
+        }
+        
+        Entry entry;
+        try {
+            entry = append(STORED, nextId, MessageJournal.encodeBody(message));
+        } catch (IOException e) {
+            Log.warn("Error storing a message", "user", recipient, "error", e.getMessage());
+            sender.sendMessage(new Message("Server", message.getSender(),
+                "User " + recipient + " is not online or doesn't exist.", Message.MessageType.PRIVATE));
+            return;
+        }
+        nextId++;
+        boxes.computeIfAbsent(recipient, name -> new ArrayDeque<>()).addLast(entry);
+        entry.segment.waiting++;
+        waiting++;
+        stored.increment();
+        sender.sendMessage(new Message("Server", message.getSender(),
+            "User " + recipient + " is offline. The message will be delivered when they connect.",
+            Message.MessageType.PRIVATE));
+        
+        // Connected since the router looked, so its deliver may already have run
+        ChatSession online = sessions.get(recipient);
+        if (online != null && online.isRunning()) {
+            startDelivery(online, recipient);
+        }
+    }
+    
+    private void startDelivery(ChatSession session, String username) {
+        ArrayDeque<Entry> box = boxes.get(username);
+        if (closed || box == null || delivering.contains(username)) {
+            return;
+        }
+        expireOld(box);
+        if (box.isEmpty()) {
+            return;
+        }
+        delivering.add(username);
+        session.sendMessage(new Message("Server", username,
+            box.size() + " private messages arrived while you were offline.", Message.MessageType.PRIVATE));
+        stream(session, username, box, CHUNK);
+    }
+    
+    // Sends one chunk of up to size messages; the next is sent once the
+    // session has written or dropped each of them
+    private void stream(ChatSession session, String username, ArrayDeque<Entry> box, int size) {
+        if (closed || !session.isRunning()) {
+            delivering.remove(username);
+            return;
+        }
+        if (session.getQueuedMessages() > LOW_WATER) {
+            try {
+                executor.schedule(() -> stream(session, username, box, size), PACE_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // Closed; the rest waits for the next run
+            }
+            return;
+        }
+        
+        List<Entry> entries = new ArrayList<>(size);
+        List<EncodedMessage> messages = new ArrayList<>(size);
+        long last = 0;
+        for (int i = 0; i < size && !box.isEmpty(); i++) {
+            Entry entry = box.pollFirst();
+            last = entry.id;
+            Message message = isExpired(entry) ? null : read(entry);
+            if (message == null) {
+                release(entry);
+                expired.increment();
+                continue;
+            }
+            // Not a numbered history message, so it must not move the client's resume point
+            message.setSequence(0);
+            entries.add(entry);
+            messages.add(new EncodedMessage(message));
+        }
+        
+        Chunk chunk = new Chunk(entries, last);
+        if (messages.isEmpty()) {
+            finish(session, username, box, chunk, size);
+            return;
+        }
+        for (int i = 0; i < messages.size(); i++) {
+            int index = i;
+            messages.get(i).whenWritten(
+                () -> submit(() -> settle(session, username, box, chunk, size, index, true)),
+                () -> submit(() -> settle(session, username, box, chunk, size, index, false)));
+        }
+        for (EncodedMessage message : messages) {
+            session.send(message);
+        }
+        awaitWrite(session, username, box, chunk, size);
+    }
+    
+    private void settle(ChatSession session, String username, ArrayDeque<Entry> box, Chunk chunk, int size,
+                        int index, boolean written) {
+        if (closed || chunk.settled) {
+            return;
+        }
+        chunk.written[index] = written;
+        if (--chunk.pending == 0) {
+            finish(session, username, box, chunk, size);
+        }
+    }
+    
+    // Logs the chunk as delivered up to its first message that was not
+    // written and puts that one and the rest back at the front of the box.
+    // While the outbound queue drops mail, chunks shrink to what got through.
+    private void finish(ChatSession session, String username, ArrayDeque<Entry> box, Chunk chunk, int size) {
+        chunk.settled = true;
+        int count = chunk.entries.size();
+        int written = 0;
+        while (written < count && chunk.written[written]) {
+            written++;
+        }
+        for (int i = 0; i < written; i++) {
+            release(chunk.entries.get(i));
+        }
+        for (int i = count - 1; i >= written; i--) {
+            box.addFirst(chunk.entries.get(i));
+        }
+        delivered.add(written);
+        if (written > 0 || (count == 0 && chunk.last != 0)) {
+            long upTo = written == count ? chunk.last : chunk.entries.get(written).id - 1;
+            try {
+                append(DELIVERED, upTo, username.getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                Log.warn("Error logging delivery", "user", username, "error", e.getMessage());
+            }
+        }
+        
+        if (box.isEmpty()) {
+            boxes.remove(username);
+            delivering.remove(username);
+            deleteDeadSegments();
+        } else if (!session.isRunning()) {
+            delivering.remove(username);
+        } else {
+            stream(session, username, box, written == count ? Math.min(CHUNK, size * 2) : Math.max(1, written));
+        }
+    }
+    
+    // Finishes the chunk with what was written if the session closes before
+    // settling all of it; a message caught in a failed write never is
+    private void awaitWrite(ChatSession session, String username, ArrayDeque<Entry> box, Chunk chunk, int size) {
+        if (closed || chunk.settled) {
+            return;
+        }
+        if (!session.isRunning()) {
+            finish(session, username, box, chunk, size);
+            return;
+        }
+        try {
+            executor.schedule(() -> awaitWrite(session, username, box, chunk, size),
+                WRITE_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Closed; the chunk is resent on the next run
+        }
+    }
+    
+    private Entry append(byte kind, long id, byte[] payload) throws IOException {
+        Segment segment = segments.getLast();
+        if (segment.size >= segmentBytes) {
+            flush();
+            segment = openSegment(number(segment.path) + 1);
+            deleteDeadSegments();
+        }
+        
+        long now = System.currentTimeMillis();
+        int bodyLength = PREFIX_BYTES + payload.length;
+        ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + bodyLength);
+        record.position(HEADER_BYTES);
+        record.put(kind).putLong(id).putLong(now).put(payload);
+        crc.reset();
+        crc.update(record.array(), HEADER_BYTES, bodyLength);
+        record.putInt(0, bodyLength).putInt(4, (int) crc.getValue());
+        record.flip();
+        
+        long position = segment.size;
+        while (record.hasRemaining()) {
+            segment.channel.write(record, position + record.position());
+        }
+        segment.size += record.limit();
+        segment.newest = now;
+        dirty = true;
+        return new Entry(id, now, segment, position, record.limit());
+    }
+    
+    // Null if the record cannot be read back
+    private Message read(Entry entry) {
+        try {
+            ByteBuffer record = ByteBuffer.allocate(entry.length);
+            while (record.hasRemaining()) {
+                if (entry.segment.channel.read(record, entry.position + record.position()) < 0) {
+                    return null;
+                }
+            }
+            record.flip();
+            return decode(record, STORED);
+        } catch (IOException e) {
+            Log.warn("Error reading a stored message", "error", e.getMessage());
+            return null;
+        }
+    }
+    
+    // Body of a record positioned at its header, or null if it is torn or not of kind
+    private ByteBuffer body(ByteBuffer record, byte kind) {
+        if (record.remaining() < HEADER_BYTES) {
+            return null;
+        }
+        int start = record.position();
+        int length = record.getInt();
+        int expected = record.getInt();
+        if (length < PREFIX_BYTES || length > record.remaining()) {
+            return null;
+        }
+        crc.reset();
+        crc.update(record.array(), start + HEADER_BYTES, length);
+        if ((int) crc.getValue() != expected || (kind != 0 && record.get(record.position()) != kind)) {
+            return null;
+        }
+        ByteBuffer body = ByteBuffer.wrap(record.array(), record.position(), length);
+        record.position(record.position() + length);
+        return body;
+    }
+    
+    private Message decode(ByteBuffer record, byte kind) {
+        ByteBuffer body = body(record, kind);
+        if (body == null) {
+            return null;
+        }
+        body.position(body.position() + PREFIX_BYTES);
+        return MessageJournal.decodeBody(body);
+    }
+    
+    // Replays one segment into the index; a torn record ends it
+    private void recover(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        long size = channel.size();
+        Segment segment = new Segment(path, channel, size);
+        segments.addLast(segment);
+        if (size > Integer.MAX_VALUE) {
+            return;
+        }
+        ByteBuffer data = ByteBuffer.allocate((int) size);
+        while (data.hasRemaining() && channel.read(data) >= 0) {
+            // Reads the whole segment
+        }
+        data.flip();
+        
+        long cutoff = System.currentTimeMillis() - expiryMillis;
+        while (true) {
+            int position = data.position();
+            ByteBuffer body = body(data, (byte) 0);
+            if (body == null) {
+                return;
+            }
+            byte kind = body.get();
+            long id = body.getLong();
+            long storedAt = body.getLong();
+            nextId = Math.max(nextId, id + 1);
+            segment.newest = Math.max(segment.newest, storedAt);
+            if (kind == STORED) {
+                Message message = MessageJournal.decodeBody(body);
+                if (message == null || message.getRecipient() == null || storedAt < cutoff) {
+                    continue;
+                }
+                boxes.computeIfAbsent(message.getRecipient(), name -> new ArrayDeque<>())
+                    .addLast(new Entry(id, storedAt, segment, position, data.position() - position));
+                segment.waiting++;
+                waiting++;
+            } else if (kind == DELIVERED) {
+                String username = new String(body.array(), body.position(), body.remaining(), StandardCharsets.UTF_8);
+                ArrayDeque<Entry> box = boxes.get(username);
+                while (box != null && !box.isEmpty() && box.peekFirst().id <= id) {
+                    release(box.pollFirst());
+                }
+            }
+        }
+    }
+    
+    private boolean isExpired(Entry entry) {
+        return entry.storedAt < System.currentTimeMillis() - expiryMillis;
+    }
+    
+    // Drops expired messages from the front of box; they are the oldest
+    private void expireOld(ArrayDeque<Entry> box) {
+        while (!box.isEmpty() && isExpired(box.peekFirst())) {
+            release(box.pollFirst());
+            expired.increment();
+        }
+    }
+    
+    private void release(Entry entry) {
+        entry.segment.waiting--;
+        waiting--;
+    }
+    
+    // Expires messages of users who have not connected
+    private void sweep() {
+        if (closed) {
+            return;
+        }
+        Iterator<Map.Entry<String, ArrayDeque<Entry>>> it = boxes.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, ArrayDeque<Entry>> box = it.next();
+            expireOld(box.getValue());
+            if (box.getValue().isEmpty() && !delivering.contains(box.getKey())) {
+                it.remove();
+            }
+        }
+        deleteDeadSegments();
+    }
+    
+    private void flush() {
+        if (!dirty) {
+            return;
+        }
+        try {
+            segments.getLast().channel.force(false);
+            dirty = false;
+        } catch (IOException e) {
+            Log.warn("Error forcing the mailbox to disk", "error", e.getMessage());
+        }
+    }
+    
+    // Deletes the oldest segments while nothing in them is waiting or all of it has expired
+    private void deleteDeadSegments() {
+        long cutoff = System.currentTimeMillis() - expiryMillis;
+        while (segments.size() > 1) {
+            Segment oldest = segments.getFirst();
+            if (oldest.waiting > 0 && oldest.newest >= cutoff) {
+                return;
+            }
+            segments.removeFirst();
+            closeQuietly(oldest);
+            try {
+                Files.deleteIfExists(oldest.path);
+            } catch (IOException e) {
+                Log.warn("Error deleting mailbox segment", "path", oldest.path, "error", e.getMessage());
+            }
+        }
+    }
+    
+    private Segment openSegment(long number) throws IOException {
+        Path path = directory.resolve(String.format("%020d", number) + SUFFIX);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Segment segment = new Segment(path, channel, 0);
+        segments.addLast(segment);
+        return segment;
+    }
+    
+    private static void closeQuietly(Segment segment) {
+        try {
+            segment.channel.close();
+        } catch (IOException e) {
+            // Nothing left to do with it
+        }
+    }
+    
+    private List<Path> segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            List<Path> paths = new ArrayList<>();
+            files.filter(path -> number(path) > 0).sorted().forEach(paths::add);
+            return paths;
+        }
+    }
+    
+    // Segment number from its file name, or 0 for files that are not segments
+    private static long number(Path path) {
+        String name = path.getFileName().toString();
+        if (name.length() != 20 + SUFFIX.length() || !name.endsWith(SUFFIX)) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(name.substring(0, 20));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+// Bounded queue of messages waiting to be written to one connection. Any
+// thread may offer; a single writer drains it (ClientHandler's writer thread
+// or the NIO event loop), so routing never blocks on a slow peer's socket.
+// When the queue is full the OverflowPolicy decides what gives way, and a
+// message that gives way is told through EncodedMessage.dropped.
+//
+// Lock-free: producers only CAS, and the writer parks rather than waiting on
+// a monitor, so concurrent senders never contend on a lock and a virtual
+// writer thread never pins its carrier.
+public class OutboundQueue {
+    public static final int DEFAULT_CAPACITY = 1024;
+    
+    public enum OverflowPolicy {
+        DROP_OLDEST,    // discard the oldest queued message
+        DROP_CLIENT,    // disconnect the client that cannot keep up
+        // Drop oldest, but keep only the newest user list, and once a user
+        // list or presence delta is dropped, send a fresh user list so the
+        // client's roster comes back right even if no later delta shows a gap
+        COALESCE
+    }
+    
+    private final Queue<EncodedMessage> queue = new ConcurrentLinkedQueue<>();
+    // Counts reserved slots, so it may briefly run ahead of queue
+    private final AtomicInteger size = new AtomicInteger();
+    private final int capacity;
+    private final OverflowPolicy policy;
+    // Newest USER_LIST offered; older ones still queued are skipped. COALESCE only
+    private final AtomicReference<EncodedMessage> latestUserList = new AtomicReference<>();
+    // Queues a fresh user list; run by the writer after presence was dropped. COALESCE only
+    private final Runnable resync;
+    private volatile boolean presenceDropped;
+    private final AtomicLong dropped = new AtomicLong();
+    // The writer parked in take(), if any
+    private volatile Thread waiter;
+    private volatile boolean closed;
+    
+    public OutboundQueue(int capacity, OverflowPolicy policy) {
+        this(capacity, policy, null);
+    }
+    
+    public OutboundQueue(int capacity, OverflowPolicy policy, Runnable resync) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Queue capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.policy = policy;
+        this.resync = policy == OverflowPolicy.COALESCE ? resync : null;
+    }
+    
+    // Returns false when the policy says the client should be disconnected
+    public boolean offer(EncodedMessage message) {
+        if (closed) {
+            message.dropped();
+            return true;
+        }
+        
+        if (policy == OverflowPolicy.COALESCE && message.getMessage().getType() == Message.MessageType.USER_LIST) {
+            // Each list is a full snapshot, so a newer one makes the queued one stale
+            latestUserList.set(message);
+        }
+        
+        if (size.incrementAndGet() > capacity) {
+            if (policy == OverflowPolicy.DROP_CLIENT) {
+                size.decrementAndGet();
+                message.dropped();
+                return false;
+            }
+            EncodedMessage oldest = queue.poll();
+            if (oldest != null) {
+                size.decrementAndGet();
+                dropped.incrementAndGet();
+                oldest.dropped();
+                if (resync != null && isPresence(oldest)) {
+                    presenceDropped = true;
+                }
+            }
+        }
+        queue.add(message);
+        
+        Thread w = waiter;
+        if (w != null) {
+            LockSupport.unpark(w);
+        }
+        return true;
+    }
+    
+    // Returns the next message, or null if the queue is empty. Writer only
+    public EncodedMessage poll() {
+        if (presenceDropped) {
+            // Offered behind whatever is queued; if it is dropped too, this runs again
+            presenceDropped = false;
+            resync.run();
+        }
+        EncodedMessage message;
+        while ((message = queue.poll()) != null) {
+            size.decrementAndGet();
+            if (!isStale(message)) {
+                return message;
+            }
+            dropped.incrementAndGet();
+            message.dropped();
+        }
+        return null;
+    }
+    
+    // Waits for the next message; returns null once the queue is closed. Writer only
+    public EncodedMessage take() throws InterruptedException {
+        return await(false, 0L);
+    }
+            
+    // As take, but also returns null if nothing arrives within timeoutNanos
+    public EncodedMessage poll(long timeoutNanos) throws InterruptedException {
+        return await(true, System.nanoTime() + timeoutNanos);
+    }
+    
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+    
+    // Approximate; may briefly count a message still being offered
+    public int size() {
+        return Math.max(0, size.get());
+    }
+    
+    // Messages discarded or superseded because this peer fell behind
+    public long getDropped() {
+        return dropped.get();
+    }
+    
+    // Discards anything still queued and wakes the writer
+    public void close() {
+        closed = true;
+        EncodedMessage message;
+        while ((message = queue.poll()) != null) {
+            message.dropped();
+        }
+        Thread w = waiter;
+        if (w != null) {
+            LockSupport.unpark(w);
+        }
+    }
+    
+    private EncodedMessage await(boolean timed, long deadline) throws InterruptedException {
+        while (true) {
+            EncodedMessage message = poll();
+            if (message != null || closed) {
+                return closed ? null : message;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (timed && remaining <= 0) {
+                return null;
+            }
+            
+            // Publish the waiter before re-checking so an offer in between unparks us
+            waiter = Thread.currentThread();
+            try {
+                if (queue.isEmpty() && !closed) {
+                    if (timed) {
+                        LockSupport.parkNanos(this, remaining);
+                    } else {
+                        LockSupport.park(this);
+                    }
+                }
+            } finally {
+                waiter = null;
+            }
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+    
+    private static boolean isPresence(EncodedMessage message) {
+        switch (message.getMessage().getType()) {
+            case USER_LIST:
+            case USER_JOINED:
+            case USER_LEFT:
+            case USER_RENAMED:
+            case USER_PRESENCE:
+                return true;
+            default:
+                return false;
+        }
+    }
+    
+    private boolean isStale(EncodedMessage message) {
+        return policy == OverflowPolicy.COALESCE
+            && message.getMessage().getType() == Message.MessageType.USER_LIST
+            && message != latestUserList.get();
+    }
+}
@@ -0,0 +1,40 @@
+// Content of the presence messages. Every change to who is online bumps a
+// server-wide version, which prefixes the payload:
+//
+//   USER_LIST     version;name,name,...   snapshot, sent at connect and on request
+//   USER_JOINED   version;name
+//   USER_LEFT     version;name
+//   USER_RENAMED  version;old,new
+//   USER_PRESENCE version;-name,+name,...   several changes merged, removals first
+//
+// Changes are merged per tick (see PresenceAggregator), so each version is
+// the net change since the last one and a single change keeps its own type.
+// A client applies a delta only if its version directly follows the last one
+// it saw. On a gap (a delta dropped by an overflowing queue) it sends a
+// USER_LIST message of its own to ask for a fresh snapshot.
+public final class Presence {
+    private Presence() {
+    }
+    
+    public static String encode(long version, String payload) {
+        return version + ";" + payload;
+    }
+    
+    // Returns -1 if content is not a presence payload
+    public static long version(String content) {
+        int separator = content != null ? content.indexOf(';') : -1;
+        if (separator < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(content.substring(0, separator));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    public static String payload(String content) {
+        int separator = content != null ? content.indexOf(';') : -1;
+        return separator < 0 ? "" : content.substring(separator + 1);
+    }
+}
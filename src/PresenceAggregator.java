@@ -0,0 +1,384 @@
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Owns who is online and tells the room about it. Joins, leaves and renames
+// update the SessionRegistry at once, but the room only hears about them
+// once per tick: changes are merged into a net set of names removed and
+// added, so a client that drops and reconnects within a tick costs nothing
+// and a storm of N joins costs one update per client instead of N.
+//
+// The roster is the user list as of the last update, and snapshots are taken
+// from it rather than the registry, so a snapshot at version v plus the
+// updates after v is always exact. Everything happens under one lock;
+// sending only enqueues, so it is never held across a socket write.
+public class PresenceAggregator {
+    public static final long DEFAULT_TICK_MILLIS = 100;
+    // Names listed in a merged notice before "and N others"
+    private static final int NOTICE_NAMES = 3;
+    
+    private final SessionRegistry sessions;
+    private final ReentrantLock lock = new ReentrantLock();
+    // Guarded by lock
+    private long version;
+    private final Set<String> roster = new LinkedHashSet<>();
+    private final Map<String, Change> pending = new LinkedHashMap<>();
+    private int pendingEvents;
+    // Set while the only pending event is a rename, so it can be sent as one
+    private String pendingRenameFrom;
+    private String pendingRenameTo;
+    private boolean flushing;
+    private long tickMillis;
+    private ScheduledExecutorService ticker;
+    private ScheduledFuture<?> tickTask;
+    
+    private final LongAdder events = new LongAdder();
+    private final LongAdder changes = new LongAdder();
+    private final LongAdder updates = new LongAdder();
+    
+    // Whether a name was online at the last update and whether it is now
+    private static final class Change {
+        final boolean before;
+        boolean now;
+        
+        Change(boolean before, boolean now) {
+            this.before = before;
+            this.now = now;
+        }
+    }
+    
+    public PresenceAggregator(SessionRegistry sessions) {
+        this.sessions = sessions;
+        setTickMillis(DEFAULT_TICK_MILLIS);
+    }
+    
+    // 0 sends every change as it happens
+    public void setTickMillis(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Presence tick must not be negative: " + millis);
+        }
+        lock.lock();
+        try {
+            tickMillis = millis;
+            if (tickTask != null) {
+                tickTask.cancel(false);
+                tickTask = null;
+            }
+            if (millis > 0) {
+                if (ticker == null) {
+                    ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+                        Thread thread = new Thread(r, "presence-tick");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+                tickTask = ticker.scheduleWithFixedDelay(this::flush, millis, millis, TimeUnit.MILLISECONDS);
+            }
+            flush();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // Claims the session's name and sends it a snapshot; false if the name is taken
+    public boolean join(ChatSession session) {
+        String username = session.getUsername();
+        lock.lock();
+        try {
+            if (!sessions.claim(username, session)) {
+                return false;
+            }
+            pendingEvents++;
+            record(username, true);
+            sendSnapshot(session);
+            flushIfImmediate();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // Returns false if the session never held its name
+    public boolean leave(ChatSession session) {
+        lock.lock();
+        try {
+            if (!sessions.release(session.getUsername(), session)) {
+                return false;
+            }
+            pendingEvents++;
+            record(session.getUsername(), false);
+            flushIfImmediate();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // Returns false if newUsername is missing or taken
+    public boolean rename(ChatSession session, String newUsername) {
+        User user = session.getUser();
+        String oldUsername = user.getUsername();
+        lock.lock();
+        try {
+            if (!sessions.rename(oldUsername, newUsername, session)) {
+                return false;
+            }
+            user.setUsername(newUsername);
+            if (!session.isRunning()) {
+                // Closed mid-rename, so leave may have released only the old name
+                sessions.release(newUsername, session);
+                pendingEvents++;
+                record(oldUsername, false);
+                return true;
+            }
+            
+            if (pendingEvents == 0) {
+                pendingRenameFrom = oldUsername;
+                pendingRenameTo = newUsername;
+            }
+            pendingEvents++;
+            record(oldUsername, false);
+            record(newUsername, true);
+            flushIfImmediate();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // A user on another node of the cluster (see Cluster) came online. It is
+    // announced like a local user, but holds no session here.
+    public void remoteJoined(String username) {
+        lock.lock();
+        try {
+            pendingEvents++;
+            record(username, true);
+            flushIfImmediate();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public void remoteLeft(String username) {
+        lock.lock();
+        try {
+            pendingEvents++;
+            record(username, false);
+            flushIfImmediate();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public void remoteRenamed(String oldUsername, String newUsername) {
+        lock.lock();
+        try {
+            if (pendingEvents == 0) {
+                pendingRenameFrom = oldUsername;
+                pendingRenameTo = newUsername;
+            }
+            pendingEvents++;
+            record(oldUsername, false);
+            record(newUsername, true);
+            flushIfImmediate();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // Sends the roster at the current version to one session
+    public void sendSnapshot(ChatSession session) {
+        lock.lock();
+        try {
+            StringBuilder userList = new StringBuilder();
+            for (String name : roster) {
+                userList.append(name).append(",");
+            }
+            session.sendMessage(new Message("Server", session.getUsername(),
+                Presence.encode(version, userList.toString()), Message.MessageType.USER_LIST));
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // Sends whatever changed since the last update, one message per client
+    public void flush() {
+        lock.lock();
+        try {
+            // A client dropped while we send leaves from inside sendToAll; its
+            // change waits for the next update instead of interleaving with this one
+            if (flushing) {
+                return;
+            }
+            flushing = true;
+            try {
+                do {
+                    sendUpdate();
+                } while (tickMillis == 0 && !pending.isEmpty());
+            } finally {
+                flushing = false;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public void shutdown() {
+        lock.lock();
+        try {
+            flush();
+            if (ticker != null) {
+                ticker.shutdownNow();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    // Joins, leaves and renames recorded so far
+    public long getEvents() {
+        return events.sum();
+    }
+    
+    // Names added to or removed from the roster by updates
+    public long getChanges() {
+        return changes.sum();
+    }
+    
+    // Updates sent; each is one message per client
+    public long getUpdates() {
+        return updates.sum();
+    }
+    
+    // Events that cancelled out or were merged into an update with others
+    public long getCoalesced() {
+        return getEvents() - getUpdates();
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("%d events, %d changes in %d updates (%d coalesced)",
+            getEvents(), getChanges(), getUpdates(), getCoalesced());
+    }
+    
+    // Caller holds lock
+    private void sendUpdate() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        
+        List<String> removed = new ArrayList<>();
+        List<String> added = new ArrayList<>();
+        for (Map.Entry<String, Change> entry : pending.entrySet()) {
+            Change change = entry.getValue();
+            if (change.before && !change.now) {
+                removed.add(entry.getKey());
+            } else if (!change.before && change.now) {
+                added.add(entry.getKey());
+            }
+        }
+        boolean renamed = pendingRenameFrom != null && removed.size() == 1 && added.size() == 1
+            && removed.get(0).equals(pendingRenameFrom) && added.get(0).equals(pendingRenameTo);
+        events.add(pendingEvents);
+        pending.clear();
+        pendingEvents = 0;
+        pendingRenameFrom = null;
+        pendingRenameTo = null;
+        if (removed.isEmpty() && added.isEmpty()) {
+            return;
+        }
+        
+        roster.removeAll(removed);
+        roster.addAll(added);
+        version++;
+        changes.add(removed.size() + added.size());
+        updates.increment();
+        
+        sendToAll(presenceMessage(removed, added, renamed), null);
+        if (renamed) {
+            sendToAll(notice(removed.get(0) + " is now known as " + added.get(0)), null);
+            return;
+        }
+        if (!added.isEmpty()) {
+            // Newcomers have their snapshot and don't need to hear about themselves
+            sendToAll(notice(describe(added, "has joined the chat!", "have joined the chat!")), new HashSet<>(added));
+        }
+        if (!removed.isEmpty()) {
+            sendToAll(notice(describe(removed, "has left the chat!", "have left the chat!")), null);
+        }
+    }
+    
+    private void record(String name, boolean online) {
+        Change change = pending.get(name);
+        if (change == null) {
+            pending.put(name, new Change(!online, online));
+        } else {
+            change.now = online;
+        }
+    }
+    
+    private void flushIfImmediate() {
+        if (tickMillis == 0) {
+            flush();
+        }
+    }
+    
+    // A single change goes out as its own delta type, anything else as a batch
+    private Message presenceMessage(List<String> removed, List<String> added, boolean renamed) {
+        if (renamed) {
+            return presence(Message.MessageType.USER_RENAMED, removed.get(0) + "," + added.get(0));
+        }
+        if (removed.isEmpty() && added.size() == 1) {
+            return presence(Message.MessageType.USER_JOINED, added.get(0));
+        }
+        if (added.isEmpty() && removed.size() == 1) {
+            return presence(Message.MessageType.USER_LEFT, removed.get(0));
+        }
+        
+        StringBuilder payload = new StringBuilder();
+        for (String name : removed) {
+            payload.append('-').append(name).append(',');
+        }
+        for (String name : added) {
+            payload.append('+').append(name).append(',');
+        }
+        return presence(Message.MessageType.USER_PRESENCE, payload.toString());
+    }
+    
+    private Message presence(Message.MessageType type, String payload) {
+        return new Message("Server", "all", Presence.encode(version, payload), type);
+    }
+    
+    private static Message notice(String text) {
+        return new Message("Server", "all", text, Message.MessageType.BROADCAST);
+    }
+    
+    // "a has joined", "a and b have joined", "a, b, c and 4 others have joined"
+    private static String describe(List<String> names, String one, String many) {
+        if (names.size() == 1) {
+            return names.get(0) + " " + one;
+        }
+        int listed = Math.min(names.size(), NOTICE_NAMES);
+        if (names.size() == listed) {
+            return String.join(", ", names.subList(0, listed - 1)) + " and " + names.get(listed - 1) + " " + many;
+        }
+        return String.join(", ", names.subList(0, listed)) + " and " + (names.size() - listed) + " others " + many;
+    }
+    
+    private void sendToAll(Message message, Set<String> except) {
+        EncodedMessage encoded = new EncodedMessage(message);
+        for (ChatSession client : sessions.sessions()) {
+            if (client.isRunning() && (except == null || !except.contains(client.getUsername()))) {
+                try {
+                    client.send(encoded);
+                } catch (Exception e) {
+                    Log.warn("Error sending presence", "user", client.getUsername(), "error", e.getMessage());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,80 @@
+import java.io.*;
+
+// ObjectOutputStream for long-lived connections. A plain ObjectOutputStream
+// keeps every object it writes in its handle table so repeats can be sent as
+// back-references, and the peer's ObjectInputStream mirrors that table, so
+// both grow for as long as the connection is open. This stream resets once
+// maxMessages messages or maxBytes bytes have been written since the last
+// reset, which bounds both tables while still sending class descriptors only
+// once per reset.
+public class ResettingObjectOutputStream extends ObjectOutputStream {
+    public static final int DEFAULT_MAX_MESSAGES = 256;
+    public static final long DEFAULT_MAX_BYTES = 256 * 1024;
+    
+    private final CountingOutputStream counter;
+    private final int maxMessages;
+    private final long maxBytes;
+    private int messagesSinceReset;
+    private long bytesAtReset;
+    private long resets;
+    
+    public ResettingObjectOutputStream(OutputStream out) throws IOException {
+        this(out, DEFAULT_MAX_MESSAGES, DEFAULT_MAX_BYTES);
+    }
+    
+    public ResettingObjectOutputStream(OutputStream out, int maxMessages, long maxBytes) throws IOException {
+        this(new CountingOutputStream(out), maxMessages, maxBytes);
+    }
+    
+    private ResettingObjectOutputStream(CountingOutputStream counter, int maxMessages, long maxBytes) throws IOException {
+        super(counter);
+        if (maxMessages < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("Reset limits must be positive: " + maxMessages + " messages, " + maxBytes + " bytes");
+        }
+        this.counter = counter;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+    }
+    
+    // Writes and flushes one message, resetting afterwards if either limit is reached
+    public void writeMessage(Message message) throws IOException {
+        writeObject(message);
+        messagesSinceReset++;
+        // Counts what earlier flushes wrote, so a reset may come one message late
+        if (messagesSinceReset >= maxMessages || counter.count - bytesAtReset >= maxBytes) {
+            reset();
+            messagesSinceReset = 0;
+            bytesAtReset = counter.count;
+            resets++;
+        }
+        flush();
+    }
+    
+    public long getBytesWritten() {
+        return counter.count;
+    }
+    
+    public long getResets() {
+        return resets;
+    }
+    
+    private static final class CountingOutputStream extends FilterOutputStream {
+        long count;
+        
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
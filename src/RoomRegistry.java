@@ -0,0 +1,101 @@
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Named chat rooms and their members. Each room keeps its own member set, so
+// sending to a room touches only its members however many sessions the
+// server has. Membership changes for a room are atomic (they go through
+// compute on its entry) and an empty room is removed. A reverse index of
+// each session's rooms lets a disconnecting session leave them all without
+// scanning every room. Iteration is weakly consistent and never copies.
+public class RoomRegistry {
+    public static final int MAX_NAME_LENGTH = 32;
+    
+    private final Map<String, Set<ChatSession>> rooms = new ConcurrentHashMap<>();
+    private final Map<ChatSession, Set<String>> roomsBySession = new ConcurrentHashMap<>();
+    
+    // "#" followed by up to MAX_NAME_LENGTH - 1 characters, no spaces or commas
+    public static boolean isValidName(String room) {
+        if (room == null || room.length() < 2 || room.length() > MAX_NAME_LENGTH || room.charAt(0) != '#') {
+            return false;
+        }
+        for (int i = 1; i < room.length(); i++) {
+            char c = room.charAt(i);
+            if (Character.isWhitespace(c) || c == ',' || c == ';') {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    // Returns false if session was already a member
+    public boolean join(String room, ChatSession session) {
+        boolean[] added = new boolean[1];
+        rooms.compute(room, (name, members) -> {
+            if (members == null) {
+                members = ConcurrentHashMap.newKeySet();
+            }
+            added[0] = members.add(session);
+            return members;
+        });
+        if (!added[0]) {
+            return false;
+        }
+        roomsBySession.computeIfAbsent(session, s -> ConcurrentHashMap.newKeySet()).add(room);
+        
+        // Closed meanwhile, so leaveAll may have run before the index had this room
+        if (!session.isRunning()) {
+            leave(room, session);
+        }
+        return true;
+    }
+    
+    // Returns false if session was not a member
+    public boolean leave(String room, ChatSession session) {
+        Set<String> joined = roomsBySession.get(session);
+        if (joined != null) {
+            joined.remove(room);
+        }
+        return removeMember(room, session);
+    }
+    
+    // Removes session from every room it is in and returns their names
+    public Set<String> leaveAll(ChatSession session) {
+        Set<String> joined = roomsBySession.remove(session);
+        if (joined == null) {
+            return Collections.emptySet();
+        }
+        joined.removeIf(room -> !removeMember(room, session));
+        return joined;
+    }
+    
+    // Empty if the room does not exist
+    public Collection<ChatSession> members(String room) {
+        Set<ChatSession> members = room != null ? rooms.get(room) : null;
+        return members != null ? members : Collections.emptySet();
+    }
+    
+    public boolean isMember(String room, ChatSession session) {
+        return members(room).contains(session);
+    }
+    
+    public Set<String> roomsOf(ChatSession session) {
+        Set<String> joined = roomsBySession.get(session);
+        return joined != null ? joined : Collections.emptySet();
+    }
+    
+    public int size() {
+        return rooms.size();
+    }
+    
+    private boolean removeMember(String room, ChatSession session) {
+        boolean[] removed = new boolean[1];
+        rooms.computeIfPresent(room, (name, members) -> {
+            removed[0] = members.remove(session);
+            return members.isEmpty() ? null : members;
+        });
+        return removed[0];
+    }
+}
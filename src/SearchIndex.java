@@ -0,0 +1,445 @@
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+
+// In-memory inverted index over chat history. Messages are numbered in the
+// order they are indexed and stored column-wise (timestamps, interned
+// sender/recipient ids, content), and every content token maps to an
+// ascending list of message numbers. Senders and recipients are indexed as
+// the tokens "from:name" and "in:name", so every query has at least one list
+// to walk.
+//
+// add only queues the message; an indexer thread drains the queue in
+// batches under the write lock, so routing never waits on indexing and
+// queries (under the read lock) never see half a batch. A query intersects
+// its lists newest first, testing the rarest list against the others by
+// binary search, so its cost follows the rarest term and the result limit
+// rather than the size of the history.
+//
+// The index holds at most maxMessages; beyond that the oldest quarter is
+// dropped in one pass, along with the names only they used, and trimBefore
+// drops what the journal no longer keeps, so the index never outgrows the
+// history it searches.
+//
+// Private messages are not indexed. A search can only check the name its
+// session holds now, and names are first-come, so whoever takes a name
+// would otherwise find everything sent to or by earlier holders of it.
+public class SearchIndex {
+    public static final int DEFAULT_LIMIT = 50;
+    public static final int DEFAULT_MAX_MESSAGES = 1_000_000;
+    public static final int QUEUE_CAPACITY = 64 * 1024;
+    private static final int MAX_TOKEN_LENGTH = 64;
+    private static final int MAX_BATCH = 4096;
+    // Candidates one query may examine, so filters that reject most of a
+    // long list cannot turn a query into a scan of the whole history
+    private static final int MAX_CANDIDATES = 200_000;
+    private static final Message.MessageType[] TYPES = Message.MessageType.values();
+    
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Guarded by lock
+    private final int maxMessages;
+    private final Map<String, Postings> postings = new HashMap<>();
+    private final Map<String, Integer> nameIds = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+    private int count;
+    private long[] sequences = new long[1024];
+    private long[] timestamps = new long[1024];
+    private int[] senders = new int[1024];
+    private int[] recipients = new int[1024];
+    private byte[] types = new byte[1024];
+    private String[] contents = new String[1024];
+    
+    private final BlockingQueue<Message> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread indexer;
+    private volatile boolean closing;
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder trimmed = new LongAdder();
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder queryNanos = new LongAdder();
+    
+    // Message numbers containing one token, ascending
+    private static final class Postings {
+        int[] ids = new int[4];
+        int size;
+        
+        void add(int id) {
+            // A token repeated within one message is listed once
+            if (size > 0 && ids[size - 1] == id) {
+                return;
+            }
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+        
+        boolean contains(int id) {
+            return Arrays.binarySearch(ids, 0, size, id) >= 0;
+        }
+        
+        // Removes the ids below n and renumbers the rest; false if none are left
+        boolean dropBelow(int n) {
+            int from = Arrays.binarySearch(ids, 0, size, n);
+            if (from < 0) {
+                from = -from - 1;
+            }
+            size -= from;
+            for (int i = 0; i < size; i++) {
+                ids[i] = ids[from + i] - n;
+            }
+            if (size <= ids.length / 4) {
+                ids = Arrays.copyOf(ids, Math.max(4, size * 2));
+            }
+            return size > 0;
+        }
+    }
+    
+    // A parsed query: words that must all appear, plus optional filters
+    public static final class Query {
+        final List<String> terms = new ArrayList<>();
+        String sender;
+        String recipient;
+        long from = Long.MIN_VALUE;
+        long until = Long.MAX_VALUE;
+        
+        // Words, plus from:name, in:name (room, user or "all"), after:date and
+        // before:date, where a date is yyyy-MM-dd (server time zone) or epoch millis
+        public static Query parse(String text) {
+            Query query = new Query();
+            for (String word : (text != null ? text.trim() : "").split("\\s+")) {
+                if (word.startsWith("from:") && word.length() > 5) {
+                    query.sender = word.substring(5);
+                } else if (word.startsWith("in:") && word.length() > 3) {
+                    query.recipient = word.substring(3);
+                } else if (word.startsWith("after:") && word.length() > 6) {
+                    query.from = parseTime(word.substring(6));
+                } else if (word.startsWith("before:") && word.length() > 7) {
+                    query.until = parseTime(word.substring(7));
+                } else {
+                    tokenize(word, query.terms);
+                }
+            }
+            return query;
+        }
+        
+        public boolean isEmpty() {
+            return terms.isEmpty() && sender == null && recipient == null;
+        }
+        
+        private static long parseTime(String value) {
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                // Not millis, so a date
+            }
+            try {
+                return LocalDate.parse(value).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("Invalid date " + value + ", expected yyyy-MM-dd");
+            }
+        }
+    }
+    
+    public SearchIndex() {
+        this(DEFAULT_MAX_MESSAGES);
+    }
+    
+    public SearchIndex(int maxMessages) {
+        if (maxMessages < 1) {
+            throw new IllegalArgumentException("Index size must be positive: " + maxMessages);
+        }
+        this.maxMessages = maxMessages;
+        indexer = new Thread(this::indexLoop, "search-indexer");
+        indexer.setDaemon(true);
+        indexer.start();
+    }
+    
+    // Never blocks; returns false if the message was left out of the index,
+    // because it is private or the indexer fell a whole queue behind
+    public boolean add(Message message) {
+        if (!isIndexed(message)) {
+            return false;
+        }
+        if (closing || !queue.offer(message)) {
+            dropped.increment();
+            return false;
+        }
+        return true;
+    }
+    
+    // Stops the indexer; messages still queued are left out of the index
+    public void close() {
+        closing = true;
+        indexer.interrupt();
+        try {
+            indexer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    // Newest matches first, at most limit of them, keeping only those visible accepts
+    public List<Message> search(Query query, int limit, Predicate<Message> visible) {
+        long start = System.nanoTime();
+        List<Message> results = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            List<Postings> lists = new ArrayList<>();
+            for (String term : query.terms) {
+                lists.add(postings.get(term));
+            }
+            if (query.sender != null) {
+                lists.add(postings.get("from:" + query.sender));
+            }
+            if (query.recipient != null) {
+                lists.add(postings.get("in:" + query.recipient));
+            }
+            if (lists.isEmpty() || lists.contains(null)) {
+                return results;
+            }
+            lists.sort(Comparator.comparingInt(list -> list.size));
+            
+            Postings rarest = lists.get(0);
+            int last = Math.max(0, rarest.size - MAX_CANDIDATES);
+            candidates:
+            for (int i = rarest.size - 1; i >= last && results.size() < limit; i--) {
+                int id = rarest.ids[i];
+                if (timestamps[id] < query.from || timestamps[id] >= query.until) {
+                    continue;
+                }
+                for (int j = 1; j < lists.size(); j++) {
+                    if (!lists.get(j).contains(id)) {
+                        continue candidates;
+                    }
+                }
+                Message message = document(id);
+                if (visible.test(message)) {
+                    results.add(message);
+                }
+            }
+            return results;
+        } finally {
+            lock.readLock().unlock();
+            queries.increment();
+            queryNanos.add(System.nanoTime() - start);
+        }
+    }
+    
+    // Indexes a journal's history in the calling thread; call before messages are added
+    public void load(MessageJournal journal) throws IOException {
+        List<Message> batch = new ArrayList<>(MAX_BATCH);
+        journal.forEach(message -> {
+            if (!isIndexed(message)) {
+                return;
+            }
+            batch.add(message);
+            if (batch.size() == MAX_BATCH) {
+                indexBatch(batch);
+            }
+        });
+        indexBatch(batch);
+    }
+    
+    // Drops the oldest messages until the first left has at least this
+    // sequence number; MessageJournal calls it as retention deletes segments
+    public void trimBefore(long sequence) {
+        lock.writeLock().lock();
+        try {
+            int n = 0;
+            while (n < count && sequences[n] < sequence) {
+                n++;
+            }
+            drop(n);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    // Distinct senders and recipients of the indexed messages
+    public int names() {
+        lock.readLock().lock();
+        try {
+            return names.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    // Messages left out because the indexer fell a whole queue behind
+    public long getDropped() {
+        return dropped.sum();
+    }
+    
+    // Messages removed to stay within maxMessages or the journal's retention
+    public long getTrimmed() {
+        return trimmed.sum();
+    }
+    
+    @Override
+    public String toString() {
+        long queryCount = queries.sum();
+        return String.format("%d messages, %d queries (%.2f ms average), %d dropped, %d trimmed",
+            size(), queryCount, queryCount == 0 ? 0.0 : queryNanos.sum() / 1e6 / queryCount, getDropped(), getTrimmed());
+    }
+    
+    private void indexLoop() {
+        List<Message> batch = new ArrayList<>(MAX_BATCH);
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+                indexBatch(batch);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private void indexBatch(List<Message> batch) {
+        lock.writeLock().lock();
+        try {
+            for (Message message : batch) {
+                index(message);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        batch.clear();
+    }
+    
+    // Caller holds the write lock
+    private void index(Message message) {
+        if (count == maxMessages) {
+            drop(Math.max(1, maxMessages / 4));
+        }
+        if (count == sequences.length) {
+            int capacity = Math.min(count * 2, maxMessages);
+            sequences = Arrays.copyOf(sequences, capacity);
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            senders = Arrays.copyOf(senders, capacity);
+            recipients = Arrays.copyOf(recipients, capacity);
+            types = Arrays.copyOf(types, capacity);
+            contents = Arrays.copyOf(contents, capacity);
+        }
+        int id = count++;
+        sequences[id] = message.getSequence();
+        timestamps[id] = message.getTimestamp();
+        senders[id] = nameId(message.getSender());
+        recipients[id] = nameId(message.getRecipient());
+        types[id] = (byte) message.getType().ordinal();
+        contents[id] = message.getContent();
+        
+        List<String> tokens = new ArrayList<>();
+        tokenize(message.getContent(), tokens);
+        for (String token : tokens) {
+            postings.computeIfAbsent(token, t -> new Postings()).add(id);
+        }
+        if (message.getSender() != null) {
+            postings.computeIfAbsent("from:" + message.getSender(), t -> new Postings()).add(id);
+        }
+        if (message.getRecipient() != null) {
+            postings.computeIfAbsent("in:" + message.getRecipient(), t -> new Postings()).add(id);
+        }
+    }
+    
+    // Removes the n oldest messages and renumbers the rest from 0. Costs a
+    // pass over the whole index, so callers drop many at a time.
+    // Caller holds the write lock
+    private void drop(int n) {
+        if (n <= 0) {
+            return;
+        }
+        count -= n;
+        System.arraycopy(sequences, n, sequences, 0, count);
+        System.arraycopy(timestamps, n, timestamps, 0, count);
+        System.arraycopy(senders, n, senders, 0, count);
+        System.arraycopy(recipients, n, recipients, 0, count);
+        System.arraycopy(types, n, types, 0, count);
+        System.arraycopy(contents, n, contents, 0, count);
+        Arrays.fill(contents, count, count + n, null);
+        postings.values().removeIf(list -> !list.dropBelow(n));
+        
+        // Renumbers the names still in use, forgetting the rest
+        int[] renumbered = new int[names.size()];
+        Arrays.fill(renumbered, -1);
+        List<String> kept = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            senders[i] = renumber(senders[i], renumbered, kept);
+            recipients[i] = renumber(recipients[i], renumbered, kept);
+        }
+        names.clear();
+        names.addAll(kept);
+        nameIds.clear();
+        for (int id = 0; id < names.size(); id++) {
+            nameIds.put(names.get(id), id);
+        }
+        trimmed.add(n);
+    }
+    
+    private int renumber(int id, int[] renumbered, List<String> kept) {
+        if (renumbered[id] < 0) {
+            renumbered[id] = kept.size();
+            kept.add(names.get(id));
+        }
+        return renumbered[id];
+    }
+    
+    private static boolean isIndexed(Message message) {
+        return message.getType() != Message.MessageType.PRIVATE;
+    }
+    
+    // Caller holds the read lock
+    private Message document(int id) {
+        Message message = new Message(names.get(senders[id]), names.get(recipients[id]), contents[id], TYPES[types[id]]);
+        message.setTimestamp(timestamps[id]);
+        message.setSequence(sequences[id]);
+        return message;
+    }
+    
+    // Caller holds the write lock; null is stored as its own name
+    private int nameId(String name) {
+        Integer id = nameIds.get(name);
+        if (id == null) {
+            id = names.size();
+            names.add(name);
+            nameIds.put(name, id);
+        }
+        return id;
+    }
+    
+    // Lower-case runs of letters and digits, at most MAX_TOKEN_LENGTH long
+    private static void tokenize(String text, List<String> tokens) {
+        if (text == null) {
+            return;
+        }
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                if (i - start <= MAX_TOKEN_LENGTH) {
+                    tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                }
+                start = -1;
+            }
+        }
+    }
+}
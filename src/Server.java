@@ -1,31 +1,91 @@
 import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 
 public class Server {
     private static final int DEFAULT_PORT = 8080;
-    private static final int MAX_CLIENTS = 100;
+    private static final int DEFAULT_MAX_CLIENTS = 100;
+    private static final int DEFAULT_MAX_VIRTUAL_CLIENTS = 50_000;
+    // Executors.newVirtualThreadPerTaskExecutor, looked up reflectively so the
+    // server still builds for Java 17; null on JDKs without virtual threads
+    private static final Method NEW_VIRTUAL_EXECUTOR = findVirtualExecutorFactory();
+    
+    // How client connections are serviced
+    public enum Engine {
+        THREADS,    // one pooled thread per connection (ClientHandler)
+        VIRTUAL,    // one virtual thread per connection (ClientHandler)
+        NIO         // selector event loops, one per core (NioServer)
+    }
     
     private ServerSocket serverSocket;
-    private List<ClientHandler> clients;
+    private NioServer nioServer;
+    private SessionRegistry sessions;
+    private MessageRouter router;
     private ExecutorService threadPool;
-    private boolean running;
+    // Runs each ClientHandler's writer task; the virtual engine uses threadPool
+    private ExecutorService writerPool;
+    // Admission limit for the thread engines; a permit is held per connection
+    private Semaphore admissions;
+    private int maxClients;
+    private MetricsEndpoint metricsEndpoint;
+    private volatile boolean running;
     
     public Server(int port) {
-        clients = new CopyOnWriteArrayList<>();
-        threadPool = Executors.newFixedThreadPool(MAX_CLIENTS);
+        this(port, Engine.THREADS);
+    }
+    
+    public Server(int port, Engine engine) {
+        this(port, engine, engine == Engine.VIRTUAL ? DEFAULT_MAX_VIRTUAL_CLIENTS : DEFAULT_MAX_CLIENTS);
+    }
+    
+    public Server(int port, Engine engine, int maxClients) {
+        this(port, engine, maxClients, OutboundQueue.DEFAULT_CAPACITY, OutboundQueue.OverflowPolicy.COALESCE, new WriteBatching());
+    }
+    
+    public Server(int port, Engine engine, int maxClients, int queueSize, OutboundQueue.OverflowPolicy overflow,
+                  WriteBatching batching) {
+        if (engine == Engine.VIRTUAL && !hasVirtualThreads()) {
+            // Plain threads at the virtual engine's client limit would exhaust the machine
+            throw new IllegalStateException("The virtual engine needs Java 21 or newer. Use the threads or nio engine.");
+        }
+        sessions = new SessionRegistry();
+        router = new MessageRouter(sessions);
+        router.setOutboundLimits(queueSize, overflow);
+        router.setWriteBatching(batching);
+        this.maxClients = maxClients;
+        admissions = new Semaphore(maxClients);
         running = false;
         
         try {
-            serverSocket = new ServerSocket(port);
-            System.out.println("Chat Server started on port " + port);
-            System.out.println("Waiting for clients to connect...");
+            if (engine == Engine.NIO) {
+                int loops = Runtime.getRuntime().availableProcessors();
+                nioServer = new NioServer(port, loops, router);
+                Log.info("Chat Server started", "port", port, "engine", "nio (" + loops + " event loops)");
+            } else if (engine == Engine.VIRTUAL) {
+                threadPool = newVirtualThreadExecutor();
+                writerPool = threadPool;
+                serverSocket = new ServerSocket(port);
+                Log.info("Chat Server started", "port", port, "engine", "virtual threads (max " + maxClients + " clients)");
+            } else {
+                threadPool = Executors.newFixedThreadPool(maxClients);
+                writerPool = Executors.newCachedThreadPool();
+                serverSocket = new ServerSocket(port);
+                Log.info("Chat Server started", "port", port, "engine", "threads (max " + maxClients + " clients)");
+            }
+            Log.info("Waiting for clients to connect...");
         } catch (IOException e) {
-            System.err.println("Error starting server: " + e.getMessage());
+            Log.error("Error starting server", "error", e.getMessage());
+            Log.flush(1000);
             System.exit(1);
         }
     }
@@ -33,17 +93,36 @@ public class Server {
     public void start() {
         running = true;
         
+        if (nioServer != null) {
+            nioServer.start();
+            return;
+        }
+        
         while (running) {
             try {
                 Socket clientSocket = serverSocket.accept();
-                System.out.println("New client connected: " + clientSocket.getInetAddress());
                 
-                ClientHandler clientHandler = new ClientHandler(clientSocket, clients);
-                threadPool.execute(clientHandler);
+                // Turn clients away instead of leaving them queued on an open socket
+                if (!admissions.tryAcquire()) {
+                    Log.warn("Rejecting client, server is full", "address", clientSocket.getInetAddress());
+                    router.getMetrics().connectionRejected();
+                    ClientHandler.reject(clientSocket, "Server is full (" + maxClients + " clients). Please try again later.");
+                    continue;
+                }
+                Log.debug("Accepted connection", "address", clientSocket.getInetAddress());
+                
+                ClientHandler clientHandler = new ClientHandler(clientSocket, router, writerPool);
+                threadPool.execute(() -> {
+                    try {
+                        clientHandler.run();
+                    } finally {
+                        admissions.release();
+                    }
+                });
                 
             } catch (IOException e) {
                 if (running) {
-                    System.err.println("Error accepting client connection: " + e.getMessage());
+                    Log.warn("Error accepting client connection", "error", e.getMessage());
                 }
             }
         }
@@ -51,14 +130,55 @@ public class Server {
     
     public void stop() {
         running = false;
+        // The other nodes drop this node's users once its links close
+        Cluster cluster = router.getCluster();
+        if (cluster != null) {
+            Log.info("Cluster: " + cluster);
+            cluster.close();
+        }
+        // Send any presence changes still waiting for a tick
+        router.getPresence().shutdown();
         
         // Close all client connections
-        for (ClientHandler client : clients) {
-            client.sendMessage(new Message("Server", "all", "Server is shutting down.", Message.MessageType.BROADCAST));
+        EncodedMessage shutdown = new EncodedMessage(
+            new Message("Server", "all", "Server is shutting down.", Message.MessageType.BROADCAST));
+        for (ChatSession client : sessions.sessions()) {
+            client.send(shutdown);
+        }
+        
+        Log.info("Write batching: " + router.getWriteBatching());
+        Log.info("Presence: " + router.getPresence());
+        SearchIndex searchIndex = router.getSearchIndex();
+        if (searchIndex != null) {
+            searchIndex.close();
+            Log.info("Search: " + searchIndex);
+        }
+        Log.info("Metrics: " + router.getMetrics());
+        if (metricsEndpoint != null) {
+            metricsEndpoint.close();
+        }
+        router.getHistory().shutdown();
+        MessageJournal journal = router.getJournal();
+        if (journal != null) {
+            journal.close();
+            Log.info("Journal: " + journal);
+        }
+        OfflineMailbox mailbox = router.getMailbox();
+        if (mailbox != null) {
+            mailbox.close();
+            Log.info("Mailbox: " + mailbox);
+        }
+        
+        if (nioServer != null) {
+            nioServer.stop();
+            Log.info("Server stopped.");
+            Log.flush(1000);
+            return;
         }
         
-        // Shutdown thread pool
+        // Shutdown thread pools
         threadPool.shutdown();
+        writerPool.shutdown();
         
         // Close server socket
         try {
@@ -66,36 +186,312 @@ public class Server {
                 serverSocket.close();
             }
         } catch (IOException e) {
-            System.err.println("Error closing server socket: " + e.getMessage());
+            Log.warn("Error closing server socket", "error", e.getMessage());
         }
         
-        System.out.println("Server stopped.");
+        Log.info("Server stopped.");
+        Log.flush(1000);
     }
     
-    public List<ClientHandler> getClients() {
-        return clients;
+    // How long presence changes are merged before being sent; 0 sends each at once
+    public void setPresenceTick(long millis) {
+        router.getPresence().setTickMillis(millis);
+    }
+    
+    // Keeps a log of delivered chat messages and indexes up to
+    // searchMaxMessages of it for search; null turns both off
+    public void setJournal(MessageJournal journal, int searchMaxMessages) throws IOException {
+        router.setJournal(journal, searchMaxMessages);
+    }
+    
+    // Keeps private messages for users who are offline; null turns it off
+    public void setMailbox(OfflineMailbox mailbox) {
+        router.setMailbox(mailbox);
+    }
+    
+    // Runs this server as one node of a cluster linked by bus; call before start
+    public void joinCluster(ClusterBus bus) {
+        Cluster cluster = new Cluster(bus, router);
+        router.setCluster(cluster);
+        cluster.start();
+    }
+    
+    // Serves metrics at http://127.0.0.1:port/metrics until the server stops
+    public void startMetricsEndpoint(int port) throws IOException {
+        metricsEndpoint = new MetricsEndpoint(port, router.getMetrics());
+    }
+    
+    public ServerMetrics getMetrics() {
+        return router.getMetrics();
+    }
+    
+    public Collection<ChatSession> getClients() {
+        return sessions.sessions();
     }
     
     public int getClientCount() {
-        return clients.size();
+        return sessions.size();
+    }
+    
+    // "host:port,host:port,..."
+    private static List<InetSocketAddress> parsePeers(String peers) {
+        List<InetSocketAddress> addresses = new ArrayList<>();
+        for (String peer : peers.split(",")) {
+            peer = peer.trim();
+            if (peer.isEmpty()) {
+                continue;
+            }
+            int colon = peer.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Invalid peer " + peer + ". Use host:port");
+            }
+            addresses.add(new InetSocketAddress(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+        }
+        return addresses;
+    }
+    
+    // Whether this JDK can run the virtual engine
+    public static boolean hasVirtualThreads() {
+        return NEW_VIRTUAL_EXECUTOR != null;
+    }
+    
+    private static Method findVirtualExecutorFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+    
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) NEW_VIRTUAL_EXECUTOR.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create virtual threads", e);
+        }
     }
     
     public static void main(String[] args) {
         int port = DEFAULT_PORT;
+        Engine engine = Engine.THREADS;
+        int maxClients = -1;
+        int queueSize = OutboundQueue.DEFAULT_CAPACITY;
+        OutboundQueue.OverflowPolicy overflow = OutboundQueue.OverflowPolicy.COALESCE;
+        long batchWindowMicros = WriteBatching.DEFAULT_WINDOW_MICROS;
+        int batchBytes = WriteBatching.DEFAULT_BYTE_BUDGET;
+        long presenceTickMillis = PresenceAggregator.DEFAULT_TICK_MILLIS;
+        String journalDir = "journal";
+        long journalFsyncMillis = MessageJournal.DEFAULT_FSYNC_MILLIS;
+        long journalSegmentMb = MessageJournal.DEFAULT_SEGMENT_BYTES >> 20;
+        long journalRetentionMb = MessageJournal.DEFAULT_RETENTION_BYTES >> 20;
+        long journalRetentionHours = MessageJournal.DEFAULT_RETENTION_MILLIS / 3_600_000;
+        int searchMaxMessages = SearchIndex.DEFAULT_MAX_MESSAGES;
+        String mailboxDir = "mailbox";
+        int mailboxQuota = OfflineMailbox.DEFAULT_QUOTA;
+        long mailboxExpiryHours = OfflineMailbox.DEFAULT_EXPIRY_MILLIS / 3_600_000;
+        int metricsPort = MetricsEndpoint.DEFAULT_PORT;
+        Log.Level logLevel = Log.Level.INFO;
+        int clusterPort = 0;
+        String peers = "";
+        String nodeId = null;
         
-        if (args.length > 0) {
-            try {
-                port = Integer.parseInt(args[0]);
-            } catch (NumberFormatException e) {
-                System.err.println("Invalid port number. Using default port " + DEFAULT_PORT);
+        // Usage: Server [port] [--engine=threads|virtual|nio] [--max-clients=N]
+        //               [--queue-size=N] [--overflow=drop-oldest|drop-client|coalesce]
+        //               [--batch-window-us=N] [--batch-bytes=N] [--presence-tick-ms=N]
+        //               [--journal=DIR|off] [--journal-fsync-ms=N] [--journal-segment-mb=N]
+        //               [--journal-retention-mb=N] [--journal-retention-hours=N] [--search-max-messages=N]
+        //               [--mailbox=DIR|off] [--mailbox-quota=N] [--mailbox-expiry-hours=N]
+        //               [--metrics-port=N] [--log-level=debug|info|warn|error]
+        //               [--cluster-port=N --peers=HOST:PORT,... [--node-id=NAME]]
+        for (String arg : args) {
+            if (arg.startsWith("--engine=")) {
+                try {
+                    engine = Engine.valueOf(arg.substring("--engine=".length()).toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Unknown engine " + arg + ". Using " + engine.name().toLowerCase());
+                }
+            } else if (arg.startsWith("--max-clients=")) {
+                try {
+                    maxClients = Integer.parseInt(arg.substring("--max-clients=".length()));
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid client limit " + arg + ". Using the engine default");
+                }
+            } else if (arg.startsWith("--queue-size=")) {
+                try {
+                    queueSize = Integer.parseInt(arg.substring("--queue-size=".length()));
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid queue size " + arg + ". Using " + queueSize);
+                }
+            } else if (arg.startsWith("--overflow=")) {
+                try {
+                    overflow = OutboundQueue.OverflowPolicy.valueOf(arg.substring("--overflow=".length()).toUpperCase().replace('-', '_'));
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Unknown overflow policy " + arg + ". Using " + overflow.name().toLowerCase().replace('_', '-'));
+                }
+            } else if (arg.startsWith("--batch-window-us=")) {
+                try {
+                    batchWindowMicros = Long.parseLong(arg.substring("--batch-window-us=".length()));
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid batching window " + arg + ". Using " + batchWindowMicros + "us");
+                }
+            } else if (arg.startsWith("--batch-bytes=")) {
+                try {
+                    batchBytes = Integer.parseInt(arg.substring("--batch-bytes=".length()));
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid byte budget " + arg + ". Using " + batchBytes);
+                }
+            } else if (arg.startsWith("--presence-tick-ms=")) {
+                try {
+                    presenceTickMillis = Long.parseLong(arg.substring("--presence-tick-ms=".length()));
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid presence tick " + arg + ". Using " + presenceTickMillis + "ms");
+                }
+            } else if (arg.startsWith("--journal=")) {
+                journalDir = arg.substring("--journal=".length());
+            } else if (arg.startsWith("--journal-fsync-ms=")) {
+                try {
+                    journalFsyncMillis = Long.parseLong(arg.substring("--journal-fsync-ms=".length()));
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid journal fsync interval " + arg + ". Using " + journalFsyncMillis + "ms");
+                }
+            } else if (arg.startsWith("--journal-segment-mb=")) {
+                try {
+                    journalSegmentMb = Long.parseLong(arg.substring("--journal-segment-mb=".length()));
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid journal segment size " + arg + ". Using " + journalSegmentMb + "MB");
+                }
+            } else if (arg.startsWith("--journal-retention-mb=")) {
+                try {
+                    journalRetentionMb = Long.parseLong(arg.substring("--journal-retention-mb=".length()));
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid journal retention " + arg + ". Using " + journalRetentionMb + "MB");
+                }
+            } else if (arg.startsWith("--journal-retention-hours=")) {
+                try {
+                    journalRetentionHours = Long.parseLong(arg.substring("--journal-retention-hours=".length()));
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid journal retention " + arg + ". Using " + journalRetentionHours + "h");
+                }
+            } else if (arg.startsWith("--search-max-messages=")) {
+                try {
+                    searchMaxMessages = Integer.parseInt(arg.substring("--search-max-messages=".length()));
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid search index size " + arg + ". Using " + searchMaxMessages);
+                }
+            } else if (arg.startsWith("--mailbox=")) {
+                mailboxDir = arg.substring("--mailbox=".length());
+            } else if (arg.startsWith("--mailbox-quota=")) {
+                try {
+                    mailboxQuota = Integer.parseInt(arg.substring("--mailbox-quota=".length()));
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid mailbox quota " + arg + ". Using " + mailboxQuota);
+                }
+            } else if (arg.startsWith("--mailbox-expiry-hours=")) {
+                try {
+                    mailboxExpiryHours = Long.parseLong(arg.substring("--mailbox-expiry-hours=".length()));
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid mailbox expiry " + arg + ". Using " + mailboxExpiryHours + "h");
+                }
+            } else if (arg.startsWith("--metrics-port=")) {
+                try {
+                    metricsPort = Integer.parseInt(arg.substring("--metrics-port=".length()));
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid metrics port " + arg + ". Using " + metricsPort);
+                }
+            } else if (arg.startsWith("--cluster-port=")) {
+                try {
+                    clusterPort = Integer.parseInt(arg.substring("--cluster-port=".length()));
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid cluster port " + arg + ". Running standalone");
+                }
+            } else if (arg.startsWith("--peers=")) {
+                peers = arg.substring("--peers=".length());
+            } else if (arg.startsWith("--node-id=")) {
+                nodeId = arg.substring("--node-id=".length());
+            } else if (arg.startsWith("--log-level=")) {
+                try {
+                    logLevel = Log.Level.valueOf(arg.substring("--log-level=".length()).toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Unknown log level " + arg + ". Using " + logLevel.name().toLowerCase());
+                }
+            } else {
+                try {
+                    port = Integer.parseInt(arg);
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid port number. Using default port " + DEFAULT_PORT);
+                }
             }
         }
         
-        Server server = new Server(port);
+        Log.setLevel(logLevel);
+        if (queueSize < 1) {
+            System.err.println("Invalid queue size " + queueSize + ". Using " + OutboundQueue.DEFAULT_CAPACITY);
+            queueSize = OutboundQueue.DEFAULT_CAPACITY;
+        }
+        if (engine == Engine.VIRTUAL && !hasVirtualThreads()) {
+            System.err.println("The virtual engine needs Java 21 or newer. Use --engine=threads or --engine=nio.");
+            System.exit(1);
+        }
+        if (maxClients <= 0) {
+            maxClients = engine == Engine.VIRTUAL ? DEFAULT_MAX_VIRTUAL_CLIENTS : DEFAULT_MAX_CLIENTS;
+        }
+        if (batchWindowMicros < 0 || batchBytes < 1) {
+            System.err.println("Invalid write batching settings. Using the defaults");
+            batchWindowMicros = WriteBatching.DEFAULT_WINDOW_MICROS;
+            batchBytes = WriteBatching.DEFAULT_BYTE_BUDGET;
+        }
+        if (presenceTickMillis < 0) {
+            System.err.println("Invalid presence tick " + presenceTickMillis + "ms. Using " + PresenceAggregator.DEFAULT_TICK_MILLIS + "ms");
+            presenceTickMillis = PresenceAggregator.DEFAULT_TICK_MILLIS;
+        }
+        if (searchMaxMessages < 1) {
+            System.err.println("Invalid search index size " + searchMaxMessages + ". Using " + SearchIndex.DEFAULT_MAX_MESSAGES);
+            searchMaxMessages = SearchIndex.DEFAULT_MAX_MESSAGES;
+        }
+        Server server = new Server(port, engine, maxClients, queueSize, overflow, new WriteBatching(batchWindowMicros, batchBytes));
+        server.setPresenceTick(presenceTickMillis);
+        if (!journalDir.equals("off")) {
+            try {
+                server.setJournal(new MessageJournal(Paths.get(journalDir), journalSegmentMb << 20,
+                    journalRetentionMb << 20, journalRetentionHours * 3_600_000, journalFsyncMillis), searchMaxMessages);
+                Log.info("Journaling messages", "dir", Paths.get(journalDir).toAbsolutePath(),
+                    "indexed", server.router.getSearchIndex().size());
+            } catch (IOException | IllegalArgumentException e) {
+                Log.warn("Message journal disabled", "error", e.getMessage());
+            }
+        }
+        if (!mailboxDir.equals("off")) {
+            try {
+                server.setMailbox(new OfflineMailbox(Paths.get(mailboxDir), server.sessions, mailboxQuota,
+                    mailboxExpiryHours * 3_600_000, OfflineMailbox.DEFAULT_SEGMENT_BYTES));
+                Log.info("Keeping private messages for offline users", "dir", Paths.get(mailboxDir).toAbsolutePath(),
+                    "waiting", server.router.getMailbox().getWaiting());
+            } catch (IOException | IllegalArgumentException e) {
+                Log.warn("Offline mailbox disabled", "error", e.getMessage());
+            }
+        }
+        if (metricsPort != 0) {
+            try {
+                server.startMetricsEndpoint(metricsPort);
+                Log.info("Serving metrics", "url", "http://127.0.0.1:" + metricsPort + "/metrics");
+            } catch (IOException | IllegalArgumentException e) {
+                Log.warn("Metrics endpoint disabled", "error", e.getMessage());
+            }
+        }
+        if (clusterPort > 0) {
+            try {
+                List<InetSocketAddress> peerAddresses = parsePeers(peers);
+                String id = nodeId != null ? nodeId : InetAddress.getLocalHost().getHostName() + ":" + port;
+                server.joinCluster(new TcpBus(id, clusterPort, peerAddresses));
+                Log.info("Joined cluster on port " + clusterPort, "node", id, "peers", peerAddresses.size());
+            } catch (IOException | IllegalArgumentException e) {
+                Log.warn("Clustering disabled", "error", e.getMessage());
+            }
+        }
         
         // Add shutdown hook
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            System.out.println("\nShutting down server...");
+            Log.info("Shutting down server...");
             server.stop();
         }));
         
@@ -0,0 +1,287 @@
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters and latency histograms for the server's hot paths, served by
+// MetricsEndpoint. Everything is allocated up front: a message is counted in
+// the LongAdder for its type's ordinal and a latency in the LongAdder for its
+// power-of-two bucket, so recording never allocates, locks or formats.
+// Gauges that can be read off the sessions (users online, outbound queue
+// depths) are only computed when scraped.
+public class ServerMetrics {
+    private static final Message.MessageType[] TYPES = Message.MessageType.values();
+    private static final DisconnectReason[] REASONS = DisconnectReason.values();
+    
+    // Time to encode each wire form. EncodedMessage has no server to report
+    // to and its encodings are shared process-wide, so these are too
+    static final Histogram BINARY_ENCODING = new Histogram();
+    static final Histogram SERIALIZED_ENCODING = new Histogram();
+    static final Histogram STREAM_ENCODING = new Histogram();
+    
+    // Why a connection ended
+    public enum DisconnectReason {
+        CLIENT_REQUEST,    // sent DISCONNECT
+        EOF,               // closed its socket
+        READ_ERROR,
+        WRITE_ERROR,
+        PROTOCOL_ERROR,    // undecodable frame, or no CONNECT first
+        SLOW_CONSUMER,     // outbound queue full under drop-client
+        NAME_TAKEN,
+        SERVER_FULL,       // turned away before a session was created
+        SERVER             // closed by the server, e.g. on shutdown
+    }
+    
+    // Latencies in power-of-two buckets from 1.024us (2^10 ns) to about 1.07s
+    // (2^30 ns), plus one for anything slower
+    public static final class Histogram {
+        private static final int MIN_SHIFT = 10;
+        private static final int MAX_SHIFT = 30;
+        private static final int BUCKETS = MAX_SHIFT - MIN_SHIFT + 2;
+        
+        private final LongAdder[] counts = adders(BUCKETS);
+        private final LongAdder sumNanos = new LongAdder();
+        
+        public void record(long nanos) {
+            long value = Math.max(1, nanos);
+            // Bucket i holds values up to 2^(i + MIN_SHIFT)
+            int shift = 64 - Long.numberOfLeadingZeros(value - 1);
+            counts[Math.min(BUCKETS - 1, Math.max(0, shift - MIN_SHIFT))].increment();
+            sumNanos.add(value);
+        }
+        
+        public long getCount() {
+            long count = 0;
+            for (LongAdder bucket : counts) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+        
+        // Upper bound of the bucket holding quantile q, or -1 for the overflow bucket
+        public long quantileNanos(double q) {
+            long target = (long) Math.ceil(q * getCount());
+            long seen = 0;
+            for (int i = 0; i < BUCKETS - 1; i++) {
+                seen += counts[i].sum();
+                if (seen >= target) {
+                    return 1L << (i + MIN_SHIFT);
+                }
+            }
+            return -1;
+        }
+        
+        void write(StringBuilder out, String name, String labels) {
+            String prefix = labels.isEmpty() ? "{" : "{" + labels + ",";
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                cumulative += counts[i].sum();
+                String le = i < BUCKETS - 1 ? Double.toString((1L << (i + MIN_SHIFT)) / 1e9) : "+Inf";
+                out.append(name).append("_bucket").append(prefix).append("le=\"").append(le).append("\"} ")
+                    .append(cumulative).append('\n');
+            }
+            String suffix = labels.isEmpty() ? " " : "{" + labels + "} ";
+            out.append(name).append("_sum").append(suffix).append(sumNanos.sum() / 1e9).append('\n');
+            out.append(name).append("_count").append(suffix).append(cumulative).append('\n');
+        }
+        
+        @Override
+        public String toString() {
+            long p99 = quantileNanos(0.99);
+            return String.format("p50 %s, p99 %s", format(quantileNanos(0.5)), format(p99));
+        }
+        
+        private static String format(long nanos) {
+            if (nanos < 0) {
+                return ">" + (1L << MAX_SHIFT) / 1_000_000 + "ms";
+            }
+            return nanos < 1_000_000 ? "<=" + nanos / 1000 + "us" : "<=" + nanos / 1_000_000 + "ms";
+        }
+    }
+    
+    private final SessionRegistry sessions;
+    private final LongAdder[] messagesIn = adders(TYPES.length);
+    private final LongAdder[] messagesOut = adders(TYPES.length);
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder opened = new LongAdder();
+    private final LongAdder open = new LongAdder();
+    private final LongAdder[] disconnects = adders(REASONS.length);
+    // Enqueueing one message for every recipient
+    private final Histogram broadcastFanout = new Histogram();
+    private final Histogram roomFanout = new Histogram();
+    // From routing the oldest message in one socket write to the write, so
+    // the clock is read once per write rather than once per message
+    private final Histogram delivery = new Histogram();
+    // Totals at the previous scrape, for the per-second rates
+    private long sampleNanos = System.nanoTime();
+    private final long[] sampleIn = new long[TYPES.length];
+    private final long[] sampleOut = new long[TYPES.length];
+    
+    public ServerMetrics(SessionRegistry sessions) {
+        this.sessions = sessions;
+    }
+    
+    public void messageReceived(Message.MessageType type) {
+        messagesIn[type.ordinal()].increment();
+    }
+    
+    public void messageSent(Message.MessageType type) {
+        messagesOut[type.ordinal()].increment();
+    }
+    
+    public void bytesReceived(long count) {
+        bytesIn.add(count);
+    }
+    
+    public void bytesSent(long count) {
+        bytesOut.add(count);
+    }
+    
+    public void connectionOpened() {
+        opened.increment();
+        open.increment();
+    }
+    
+    // Call once per opened connection
+    public void connectionClosed(DisconnectReason reason) {
+        open.decrement();
+        disconnects[reason.ordinal()].increment();
+    }
+    
+    public void connectionRejected() {
+        disconnects[DisconnectReason.SERVER_FULL.ordinal()].increment();
+    }
+    
+    // Messages received from clients, of every type
+    public long getMessagesIn() {
+        long in = 0;
+        for (LongAdder adder : messagesIn) {
+            in += adder.sum();
+        }
+        return in;
+    }
+    
+    public Histogram getBroadcastFanout() {
+        return broadcastFanout;
+    }
+    
+    public Histogram getRoomFanout() {
+        return roomFanout;
+    }
+    
+    public Histogram getDelivery() {
+        return delivery;
+    }
+    
+    // Everything in the Prometheus text format. Per-second rates cover the
+    // time since the previous scrape
+    public synchronized String scrape() {
+        StringBuilder out = new StringBuilder(16 * 1024);
+        
+        gauge(out, "chat_connections", "Open client connections", open.sum());
+        gauge(out, "chat_users", "Sessions that have claimed a username", sessions.size());
+        counter(out, "chat_connections_opened_total", "Client connections accepted", opened.sum());
+        header(out, "chat_disconnects_total", "counter", "Connections ended, by reason");
+        for (DisconnectReason reason : REASONS) {
+            sample(out, "chat_disconnects_total", "reason=\"" + label(reason) + "\"", disconnects[reason.ordinal()].sum());
+        }
+        
+        long now = System.nanoTime();
+        double seconds = Math.max(1, now - sampleNanos) / 1e9;
+        sampleNanos = now;
+        header(out, "chat_messages_in_total", "counter", "Messages received from clients, by type");
+        for (Message.MessageType type : TYPES) {
+            sample(out, "chat_messages_in_total", typeLabel(type), messagesIn[type.ordinal()].sum());
+        }
+        header(out, "chat_messages_out_total", "counter", "Messages written to clients, by type");
+        for (Message.MessageType type : TYPES) {
+            sample(out, "chat_messages_out_total", typeLabel(type), messagesOut[type.ordinal()].sum());
+        }
+        header(out, "chat_messages_in_per_second", "gauge", "Messages received per second since the previous scrape");
+        for (Message.MessageType type : TYPES) {
+            long total = messagesIn[type.ordinal()].sum();
+            sample(out, "chat_messages_in_per_second", typeLabel(type), (total - sampleIn[type.ordinal()]) / seconds);
+            sampleIn[type.ordinal()] = total;
+        }
+        header(out, "chat_messages_out_per_second", "gauge", "Messages written per second since the previous scrape");
+        for (Message.MessageType type : TYPES) {
+            long total = messagesOut[type.ordinal()].sum();
+            sample(out, "chat_messages_out_per_second", typeLabel(type), (total - sampleOut[type.ordinal()]) / seconds);
+            sampleOut[type.ordinal()] = total;
+        }
+        counter(out, "chat_bytes_in_total", "Bytes read from client sockets", bytesIn.sum());
+        counter(out, "chat_bytes_out_total", "Bytes written to client sockets", bytesOut.sum());
+        counter(out, "chat_log_dropped_total", "Log entries dropped because the log buffer was full", Log.getDropped());
+        
+        long queued = 0;
+        long deepest = 0;
+        for (ChatSession session : sessions.sessions()) {
+            int depth = session.getQueuedMessages();
+            queued += depth;
+            deepest = Math.max(deepest, depth);
+        }
+        gauge(out, "chat_outbound_queued", "Messages waiting in outbound queues", queued);
+        gauge(out, "chat_outbound_queued_max", "Deepest outbound queue", deepest);
+        
+        header(out, "chat_fanout_seconds", "histogram", "Time to queue one message for every recipient");
+        broadcastFanout.write(out, "chat_fanout_seconds", "kind=\"broadcast\"");
+        roomFanout.write(out, "chat_fanout_seconds", "kind=\"room\"");
+        header(out, "chat_delivery_seconds", "histogram", "Time from routing the oldest message in a socket write to the write");
+        delivery.write(out, "chat_delivery_seconds", "");
+        header(out, "chat_encode_seconds", "histogram", "Time to encode one wire form of a message");
+        BINARY_ENCODING.write(out, "chat_encode_seconds", "format=\"binary\"");
+        SERIALIZED_ENCODING.write(out, "chat_encode_seconds", "format=\"serialized\"");
+        STREAM_ENCODING.write(out, "chat_encode_seconds", "format=\"stream\"");
+        return out.toString();
+    }
+    
+    @Override
+    public String toString() {
+        long in = 0;
+        long out = 0;
+        for (int i = 0; i < TYPES.length; i++) {
+            in += messagesIn[i].sum();
+            out += messagesOut[i].sum();
+        }
+        return String.format("%d connections, %d messages in (%d bytes), %d out (%d bytes), broadcast fan-out %s, delivery %s",
+            opened.sum(), in, bytesIn.sum(), out, bytesOut.sum(), broadcastFanout, delivery);
+    }
+    
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+    
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        header(out, name, "gauge", help);
+        sample(out, name, "", value);
+    }
+    
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        header(out, name, "counter", help);
+        sample(out, name, "", value);
+    }
+    
+    private static void sample(StringBuilder out, String name, String labels, Object value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+    
+    private static String typeLabel(Message.MessageType type) {
+        return "type=\"" + label(type) + "\"";
+    }
+    
+    private static String label(Enum<?> value) {
+        return value.name().toLowerCase(Locale.ROOT);
+    }
+    
+    private static LongAdder[] adders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+}
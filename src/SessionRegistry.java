@@ -0,0 +1,45 @@
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Connected sessions keyed by username. Claiming, renaming and releasing a
+// name are atomic, so two sessions can never hold the same name, and lookups
+// by name are O(1). Iteration is weakly consistent and never copies.
+public class SessionRegistry {
+    private final Map<String, ChatSession> sessions = new ConcurrentHashMap<>();
+    
+    // Returns false if the name is missing or already held by another session
+    public boolean claim(String username, ChatSession session) {
+        return username != null && sessions.putIfAbsent(username, session) == null;
+    }
+    
+    // Moves session from oldName to newName; false if newName is missing or taken
+    public boolean rename(String oldName, String newName, ChatSession session) {
+        if (!claim(newName, session)) {
+            return false;
+        }
+        sessions.remove(oldName, session);
+        return true;
+    }
+    
+    // Returns false if username was not held by session
+    public boolean release(String username, ChatSession session) {
+        return username != null && sessions.remove(username, session);
+    }
+    
+    public ChatSession get(String username) {
+        return username != null ? sessions.get(username) : null;
+    }
+    
+    public boolean contains(String username) {
+        return username != null && sessions.containsKey(username);
+    }
+    
+    public Collection<ChatSession> sessions() {
+        return sessions.values();
+    }
+    
+    public int size() {
+        return sessions.size();
+    }
+}
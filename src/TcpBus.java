@@ -0,0 +1,285 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+// ClusterBus between server processes. Every node listens on its cluster
+// port and dials each peer it is given, so a pair of nodes is joined by two
+// links, one each way, and a node only writes to the links it dialled.
+// Links carry BinaryCodec frames and open with both ends sending a CONNECT
+// from their node id, so peers are configured by address alone.
+//
+// Each outgoing link has a bounded queue and a writer thread that sends
+// whatever has queued up and flushes once. While a peer is unreachable,
+// what is sent to it is dropped and counted, and the writer redials every
+// second; a node is up while its link is. A node is down once the link it
+// dialled to us closes. The peer list may include the node itself, so every
+// node can be given the same one. The port takes chat traffic from anyone
+// who can reach it, so keep it on a private network.
+public class TcpBus implements ClusterBus {
+    public static final int QUEUE_CAPACITY = 16 * 1024;
+    private static final int MAX_BATCH = 256;
+    private static final int CONNECT_TIMEOUT_MS = 2000;
+    private static final long REDIAL_MILLIS = 1000;
+    // Queued by Link.reset to wake a writer waiting for messages
+    private static final Message RESET = new Message(null, null, null, Message.MessageType.CONNECT);
+    
+    private final String nodeId;
+    private final ServerSocket serverSocket;
+    private final List<Link> links = new ArrayList<>();
+    // Outgoing links that are up, by peer node
+    private final Map<String, Link> up = new ConcurrentHashMap<>();
+    // The incoming connection read for each peer node
+    private final Map<String, Socket> incoming = new ConcurrentHashMap<>();
+    private final LongAdder dropped = new LongAdder();
+    private volatile Listener listener;
+    private volatile boolean running;
+    
+    public TcpBus(String nodeId, int port, List<InetSocketAddress> peers) throws IOException {
+        this.nodeId = nodeId;
+        serverSocket = new ServerSocket(port);
+        for (InetSocketAddress peer : peers) {
+            links.add(new Link(peer));
+        }
+    }
+    
+    @Override
+    public String getNodeId() {
+        return nodeId;
+    }
+    
+    @Override
+    public void start(Listener listener) {
+        this.listener = listener;
+        running = true;
+        daemon(this::acceptLoop, "cluster-accept").start();
+        for (Link link : links) {
+            link.thread = daemon(link, "cluster-link-" + link.address.getPort());
+            link.thread.start();
+        }
+    }
+    
+    @Override
+    public void publish(Message message) {
+        for (Link link : up.values()) {
+            link.offer(message);
+        }
+    }
+    
+    @Override
+    public void send(String node, Message message) {
+        Link link = up.get(node);
+        if (link != null) {
+            link.offer(message);
+        } else {
+            dropped.increment();
+        }
+    }
+    
+    @Override
+    public void close() {
+        running = false;
+        closeQuietly(serverSocket);
+        for (Link link : links) {
+            if (link.thread != null) {
+                link.thread.interrupt();
+            }
+            closeQuietly(link.socket);
+        }
+        for (Socket socket : incoming.values()) {
+            closeQuietly(socket);
+        }
+    }
+    
+    public int getNodesUp() {
+        return up.size();
+    }
+    
+    // Messages not sent because their node was unreachable or its queue was full
+    public long getDropped() {
+        return dropped.sum();
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("%d of %d peers up, %d messages dropped", getNodesUp(), links.size(), getDropped());
+    }
+    
+    private final class Link implements Runnable {
+        final InetSocketAddress address;
+        final BlockingQueue<Message> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+        volatile Socket socket;
+        volatile boolean resetting;
+        Thread thread;
+        
+        Link(InetSocketAddress address) {
+            this.address = address;
+        }
+        
+        void offer(Message message) {
+            if (!queue.offer(message)) {
+                dropped.increment();
+            }
+        }
+        
+        // Drops the link and redials. A link that is only ever written to
+        // would not notice its peer restart, and the new process would
+        // never get this node's users.
+        void reset() {
+            resetting = true;
+            queue.offer(RESET);
+            closeQuietly(socket);
+        }
+        
+        @Override
+        public void run() {
+            List<Message> batch = new ArrayList<>();
+            while (running) {
+                String peer = null;
+                try (Socket s = new Socket()) {
+                    socket = s;
+                    resetting = false;
+                    s.connect(address, CONNECT_TIMEOUT_MS);
+                    s.setTcpNoDelay(true);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+                    BinaryCodec codec = new BinaryCodec(new NameTable());
+                    peer = handshake(s, codec, in, out);
+                    if (peer.equals(nodeId)) {
+                        // Our own address, from a peer list shared by every node
+                        peer = null;
+                        return;
+                    }
+                    
+                    // Whatever queued while the link was down was dropped; onNodeUp resynchronises
+                    dropped.add(queue.size());
+                    queue.clear();
+                    up.put(peer, this);
+                    Log.info("Cluster node up", "node", peer, "address", address);
+                    listener.onNodeUp(peer);
+                    
+                    while (running) {
+                        batch.add(queue.take());
+                        queue.drainTo(batch, MAX_BATCH - 1);
+                        for (Message message : batch) {
+                            if (message == RESET) {
+                                throw new IOException("Reset after the node went down");
+                            }
+                            out.write(codec.encode(message));
+                        }
+                        out.flush();
+                        batch.clear();
+                    }
+                } catch (IOException e) {
+                    if (peer != null && running && !resetting) {
+                        Log.warn("Cluster link lost", "node", peer, "error", e.getMessage());
+                    } else {
+                        Log.debug("Cluster peer unreachable", "address", address, "error", e.getMessage());
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    if (peer != null) {
+                        up.remove(peer, this);
+                    }
+                    dropped.add(batch.size());
+                    batch.clear();
+                }
+                
+                try {
+                    Thread.sleep(REDIAL_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+    
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                daemon(() -> read(socket), "cluster-in").start();
+            } catch (IOException e) {
+                if (running) {
+                    Log.warn("Error accepting cluster connection", "error", e.getMessage());
+                }
+            }
+        }
+    }
+    
+    // Reads one peer's link until it closes
+    private void read(Socket socket) {
+        String peer = null;
+        try (socket) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            BinaryCodec codec = new BinaryCodec(new NameTable());
+            peer = handshake(socket, codec, in, out);
+            if (peer.equals(nodeId)) {
+                peer = null;
+                return;
+            }
+            
+            // A peer that redialled replaces its old link without going down
+            Socket previous = incoming.put(peer, socket);
+            closeQuietly(previous);
+            while (running) {
+                Message message = codec.read(in);
+                try {
+                    listener.onMessage(peer, message);
+                } catch (RuntimeException e) {
+                    // One bad message must not take the peer's users down with the link
+                    Log.error("Error handling cluster message", "node", peer, "error", e.toString());
+                }
+            }
+        } catch (IOException e) {
+            // Closed by the peer, or by close()
+        } finally {
+            if (peer != null && incoming.remove(peer, socket) && running) {
+                Log.info("Cluster node down", "node", peer);
+                Link link = up.get(peer);
+                if (link != null) {
+                    link.reset();
+                }
+                listener.onNodeDown(peer);
+            }
+        }
+    }
+    
+    // Trades node ids with the other end of a new link and returns its id
+    private String handshake(Socket socket, BinaryCodec codec, DataInputStream in, DataOutputStream out) throws IOException {
+        socket.setSoTimeout(CONNECT_TIMEOUT_MS);
+        codec.write(out, new Message(nodeId, "cluster", null, Message.MessageType.CONNECT));
+        Message hello = codec.read(in);
+        if (hello.getType() != Message.MessageType.CONNECT || hello.getSender() == null) {
+            throw new StreamCorruptedException("Expected CONNECT from cluster peer, got " + hello.getType());
+        }
+        socket.setSoTimeout(0);
+        return hello.getSender();
+    }
+    
+    private static Thread daemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+    
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+}
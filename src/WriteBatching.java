@@ -0,0 +1,80 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Flush batching settings shared by every connection's writer, plus counters
+// of how well batching is working. A writer flushes as soon as its queue is
+// empty unless its previous flush carried more than one message; only then,
+// while the room is busy, does it wait up to the window for more. Either way
+// it flushes once the batch reaches the byte budget.
+public class WriteBatching {
+    public static final long DEFAULT_WINDOW_MICROS = 1000;
+    public static final int DEFAULT_BYTE_BUDGET = 64 * 1024;
+    
+    private final long windowNanos;
+    private final int byteBudget;
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    // Previous sampleFlushesPerSecond call
+    private long sampleNanos = System.nanoTime();
+    private long sampleFlushes;
+    
+    public WriteBatching() {
+        this(DEFAULT_WINDOW_MICROS, DEFAULT_BYTE_BUDGET);
+    }
+    
+    public WriteBatching(long windowMicros, int byteBudget) {
+        if (windowMicros < 0 || byteBudget < 1) {
+            throw new IllegalArgumentException("Invalid batching window " + windowMicros + "us or byte budget " + byteBudget);
+        }
+        this.windowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        this.byteBudget = byteBudget;
+    }
+    
+    public long getWindowNanos() {
+        return windowNanos;
+    }
+    
+    public int getByteBudget() {
+        return byteBudget;
+    }
+    
+    public void recordFlush(int messageCount, long byteCount) {
+        flushes.increment();
+        messages.add(messageCount);
+        bytes.add(byteCount);
+    }
+    
+    public long getFlushes() {
+        return flushes.sum();
+    }
+    
+    public long getMessages() {
+        return messages.sum();
+    }
+    
+    public long getBytes() {
+        return bytes.sum();
+    }
+    
+    // Messages per flush since startup
+    public double getAverageBatchSize() {
+        long count = flushes.sum();
+        return count == 0 ? 0 : (double) messages.sum() / count;
+    }
+    
+    // Flushes per second since the previous call
+    public synchronized double sampleFlushesPerSecond() {
+        long now = System.nanoTime();
+        long total = flushes.sum();
+        double rate = (total - sampleFlushes) * 1e9 / Math.max(1, now - sampleNanos);
+        sampleNanos = now;
+        sampleFlushes = total;
+        return rate;
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("%d flushes, %.1f messages/flush, %d bytes", getFlushes(), getAverageBatchSize(), getBytes());
+    }
+}
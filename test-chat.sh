@@ -36,4 +36,6 @@ echo "- User list updates"
 echo "- Connection/disconnection notifications"
 echo "- Double-click users in the list for quick private messages"
 echo
+echo "For a headless load test with many simulated users, run: make loadtest"
+echo
 read -p "Press Enter to continue..."
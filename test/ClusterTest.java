@@ -0,0 +1,165 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Three servers in one JVM joined into a cluster over LocalBus, each with
+// one client: alice on n1, bob on n2 and carol on n3. Presence is announced
+// without a tick so user lists settle at once.
+class ClusterTest {
+    private static final long TIMEOUT_MS = 5000;
+    
+    private final LocalBus.Hub hub = new LocalBus.Hub();
+    private final List<Server> servers = new ArrayList<>();
+    private final List<TestClient> clients = new ArrayList<>();
+    private int[] ports;
+    private TestClient alice;
+    private TestClient bob;
+    private TestClient carol;
+    
+    @BeforeEach
+    void startCluster() throws Exception {
+        ports = new int[] {startNode("n1"), startNode("n2"), startNode("n3")};
+        alice = connect(ports[0], "alice");
+        bob = connect(ports[1], "bob");
+        carol = connect(ports[2], "carol");
+        for (TestClient client : List.of(alice, bob, carol)) {
+            awaitUsers(client, "alice", "bob", "carol");
+        }
+    }
+    
+    @AfterEach
+    void stopCluster() throws Exception {
+        for (TestClient client : clients) {
+            client.close();
+        }
+        for (Server server : servers) {
+            server.stop();
+        }
+    }
+    
+    @Test
+    void broadcastReachesEveryNode() throws Exception {
+        alice.send(new Message("alice", "all", "hello cluster", Message.MessageType.BROADCAST));
+        // The sender shows its own message without an echo
+        for (TestClient client : List.of(bob, carol)) {
+            assertContent("hello cluster", client.next(Message.MessageType.BROADCAST, TIMEOUT_MS));
+        }
+    }
+    
+    @Test
+    void privateMessageReachesUserOnAnotherNode() throws Exception {
+        bob.send(new Message("bob", "carol", "psst", Message.MessageType.PRIVATE));
+        Message received = carol.next(Message.MessageType.PRIVATE, TIMEOUT_MS);
+        assertContent("psst", received);
+        assertEquals("bob", received.getSender());
+        assertContent("Private message sent to carol", bob.next(Message.MessageType.PRIVATE, TIMEOUT_MS));
+    }
+    
+    @Test
+    void roomMessageReachesMembersOnOtherNodesOnly() throws Exception {
+        alice.send(new Message("alice", "#dev", null, Message.MessageType.JOIN_ROOM));
+        assertNotNull(alice.next(Message.MessageType.JOIN_ROOM, TIMEOUT_MS));
+        bob.send(new Message("bob", "#dev", null, Message.MessageType.JOIN_ROOM));
+        assertNotNull(bob.next(Message.MessageType.JOIN_ROOM, TIMEOUT_MS));
+        clearInboxes();
+        
+        alice.send(new Message("alice", "#dev", "standup in 5", Message.MessageType.ROOM_MESSAGE));
+        // Sent after the room message, so carol has seen everything from n1 once it arrives
+        alice.send(new Message("alice", "all", "barrier", Message.MessageType.BROADCAST));
+        
+        Message received = bob.next(Message.MessageType.ROOM_MESSAGE, TIMEOUT_MS);
+        assertContent("standup in 5", received);
+        assertEquals("#dev", received.getRecipient());
+        assertContent("barrier", carol.next(Message.MessageType.BROADCAST, TIMEOUT_MS));
+        for (Message message : carol.inbox) {
+            assertNotEquals(Message.MessageType.ROOM_MESSAGE, message.getType(), "non-member got " + message.getContent());
+        }
+    }
+    
+    @Test
+    void nameTakenOnAnotherNodeIsRefused() throws Exception {
+        TestClient impostor = connect(ports[2], "alice");
+        assertContent("Username already taken", impostor.next(Message.MessageType.PRIVATE, TIMEOUT_MS));
+        awaitUsers(bob, "alice", "bob", "carol");
+    }
+    
+    @Test
+    void renameIsSeenOnOtherNodes() throws Exception {
+        bob.send(new Message("bob", "server", "robert", Message.MessageType.USERNAME_UPDATE));
+        awaitUsers(alice, "alice", "robert", "carol");
+        awaitUsers(carol, "alice", "robert", "carol");
+        
+        alice.send(new Message("alice", "robert", "hi robert", Message.MessageType.PRIVATE));
+        assertContent("hi robert", bob.next(Message.MessageType.PRIVATE, TIMEOUT_MS));
+    }
+    
+    @Test
+    void nodeThatGoesDownTakesItsUsersAndComesBackInSync() throws Exception {
+        servers.get(2).stop();
+        awaitUsers(alice, "alice", "bob");
+        awaitUsers(bob, "alice", "bob");
+        
+        // The same node id restarted on a new port, as after a crash
+        TestClient dave = connect(startNode("n3"), "dave");
+        awaitUsers(dave, "alice", "bob", "dave");
+        awaitUsers(alice, "alice", "bob", "dave");
+        
+        dave.send(new Message("dave", "alice", "back again", Message.MessageType.PRIVATE));
+        assertContent("back again", alice.next(Message.MessageType.PRIVATE, TIMEOUT_MS));
+    }
+    
+    // Starts a node and returns its chat port
+    private int startNode(String nodeId) throws Exception {
+        int port = TestClient.freePort();
+        Server server = new Server(port, Server.Engine.NIO);
+        server.setPresenceTick(0);
+        server.joinCluster(hub.join(nodeId));
+        servers.add(TestClient.startServer(server));
+        return port;
+    }
+    
+    private TestClient connect(int port, String username) throws Exception {
+        TestClient client = new TestClient(port, username, true);
+        clients.add(client);
+        return client;
+    }
+    
+    private void clearInboxes() {
+        for (TestClient client : clients) {
+            client.inbox.clear();
+        }
+    }
+    
+    // Asks for the user list until it is exactly these names
+    private static void awaitUsers(TestClient client, String... expected) throws Exception {
+        Set<String> want = new HashSet<>(Arrays.asList(expected));
+        Set<String> seen = Set.of();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (System.currentTimeMillis() < deadline) {
+            client.send(new Message("test", "server", null, Message.MessageType.USER_LIST));
+            Message list = client.next(Message.MessageType.USER_LIST, TIMEOUT_MS);
+            if (list != null) {
+                seen = new HashSet<>(Arrays.asList(Presence.payload(list.getContent()).split(",")));
+                seen.remove("");
+                if (seen.equals(want)) {
+                    return;
+                }
+            }
+            Thread.sleep(50);
+        }
+        fail("expected users " + want + " but saw " + seen);
+    }
+    
+    private static void assertContent(String expected, Message message) {
+        assertNotNull(message, "no message containing \"" + expected + "\"");
+        assertTrue(message.getContent().contains(expected), "expected \"" + expected + "\" in \"" + message.getContent() + "\"");
+    }
+}
@@ -0,0 +1,100 @@
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+// Many sessions broadcasting at once all land in one receiver's outbound
+// queue, so its writer interleaves frames from 64 producers. Every frame must
+// still decode, and each sender's messages must arrive in the order sent.
+class ConcurrentSendersTest {
+    private static final int SENDERS = 64;
+    private static final int MESSAGES_PER_SENDER = 200;
+    
+    static Stream<Arguments> transports() {
+        List<Arguments> transports = new ArrayList<>();
+        for (Server.Engine engine : Server.Engine.values()) {
+            transports.add(Arguments.of(engine, false));
+            transports.add(Arguments.of(engine, true));
+        }
+        return transports.stream();
+    }
+    
+    @ParameterizedTest(name = "{0}, binary={1}")
+    @MethodSource("transports")
+    void framesArriveIntactAndInOrder(Server.Engine engine, boolean binary) throws Exception {
+        assumeTrue(engine != Server.Engine.VIRTUAL || Server.hasVirtualThreads(), "needs Java 21");
+        int port = TestClient.freePort();
+        // Room for every message in every queue, so nothing is dropped
+        Server server = TestClient.startServer(new Server(port, engine, SENDERS + 8, 4 * SENDERS * MESSAGES_PER_SENDER,
+            OutboundQueue.OverflowPolicy.DROP_OLDEST, new WriteBatching()));
+        List<TestClient> clients = new ArrayList<>();
+        try {
+            TestClient receiver = new TestClient(port, "receiver", binary);
+            clients.add(receiver);
+            assertEquals(binary, receiver.isBinary());
+            TestClient[] senders = new TestClient[SENDERS];
+            for (int i = 0; i < SENDERS; i++) {
+                senders[i] = new TestClient(port, "sender" + i, binary);
+                clients.add(senders[i]);
+            }
+            // Let the join notices settle before counting broadcasts
+            Thread.sleep(500);
+            receiver.inbox.clear();
+            
+            CountDownLatch start = new CountDownLatch(1);
+            List<Throwable> failures = new CopyOnWriteArrayList<>();
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < SENDERS; i++) {
+                int id = i;
+                Thread thread = new Thread(() -> {
+                    try {
+                        start.await();
+                        for (int n = 0; n < MESSAGES_PER_SENDER; n++) {
+                            senders[id].send(new Message("sender" + id, "all", body(id, n), Message.MessageType.BROADCAST));
+                        }
+                    } catch (Exception e) {
+                        failures.add(e);
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(List.of(), failures);
+            
+            int[] next = new int[SENDERS];
+            for (int received = 0; received < SENDERS * MESSAGES_PER_SENDER; received++) {
+                Message message = receiver.next(Message.MessageType.BROADCAST, 10_000);
+                assertNotNull(message, "only " + received + " broadcasts arrived");
+                String[] parts = message.getContent().split(":", 3);
+                int id = Integer.parseInt(parts[0]);
+                int n = Integer.parseInt(parts[1]);
+                assertEquals("sender" + id, message.getSender());
+                assertEquals(next[id], n, "out of order from sender" + id);
+                assertEquals(body(id, n), message.getContent());
+                next[id]++;
+            }
+        } finally {
+            for (TestClient client : clients) {
+                client.close();
+            }
+            server.stop();
+        }
+    }
+    
+    // Varies in length so frames straddle buffer and write boundaries
+    private static String body(int sender, int n) {
+        return sender + ":" + n + ":" + "x".repeat((sender * 31 + n * 17) % 700);
+    }
+}
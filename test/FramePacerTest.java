@@ -0,0 +1,100 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// The client's per-frame rendering budget under bursts, with rendering
+// time simulated as a fixed cost per message
+class FramePacerTest {
+    private static final int MAX_MESSAGES = 500;
+    
+    @Test
+    void burstKeepsOnlyWhatTheViewCanShow() {
+        FramePacer pacer = new FramePacer(MAX_MESSAGES);
+        add(pacer, 0, 10_000);
+        assertEquals(MAX_MESSAGES, pacer.getPending());
+        assertEquals(10_000 - MAX_MESSAGES, pacer.takeSkipped());
+        assertEquals(0, pacer.takeSkipped());
+        assertEquals("m" + (10_000 - MAX_MESSAGES), pacer.nextFrame().get(0).getContent());
+    }
+    
+    @Test
+    void framesTakeAtMostTheBudgetAndCarryTheRestOver() {
+        FramePacer pacer = new FramePacer(MAX_MESSAGES);
+        add(pacer, 0, MAX_MESSAGES);
+        List<String> rendered = new ArrayList<>();
+        while (pacer.hasPending()) {
+            int budget = pacer.getFrameMessages();
+            int before = pacer.getPending();
+            List<Message> frame = pacer.nextFrame();
+            assertEquals(Math.min(budget, before), frame.size());
+            assertEquals(before - frame.size(), pacer.getPending());
+            frame.forEach(message -> rendered.add(message.getContent()));
+            pacer.frameEnded(TimeUnit.MILLISECONDS.toNanos(FramePacer.FRAME_MILLIS));
+        }
+        // Every message once, in order
+        assertEquals(MAX_MESSAGES, rendered.size());
+        for (int i = 0; i < MAX_MESSAGES; i++) {
+            assertEquals("m" + i, rendered.get(i));
+        }
+    }
+    
+    @Test
+    void slowRenderingShrinksFramesToTheFrameTime() {
+        FramePacer pacer = new FramePacer(MAX_MESSAGES);
+        long costPerMessage = TimeUnit.MICROSECONDS.toNanos(500);
+        int next = 0;
+        for (int frame = 0; frame < 50; frame++) {
+            // A flood: more arrives every frame than one frame can show
+            add(pacer, next, 200);
+            next += 200;
+            long elapsed = pacer.nextFrame().size() * costPerMessage;
+            int delay = pacer.frameEnded(elapsed);
+            if (frame >= 5) {
+                assertTrue(elapsed <= TimeUnit.MILLISECONDS.toNanos(FramePacer.FRAME_MILLIS),
+                    "frame " + frame + " took " + elapsed / 1000 + "us");
+            }
+            // The EDT is idle at least as long as it rendered
+            assertTrue(TimeUnit.MILLISECONDS.toNanos(delay) >= elapsed - TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+    
+    @Test
+    void verySlowRenderingBottomsOutAtTheMinimum() {
+        FramePacer pacer = new FramePacer(MAX_MESSAGES);
+        add(pacer, 0, MAX_MESSAGES);
+        long costPerMessage = TimeUnit.MILLISECONDS.toNanos(10);
+        for (int frame = 0; frame < 10; frame++) {
+            long elapsed = pacer.nextFrame().size() * costPerMessage;
+            int delay = pacer.frameEnded(elapsed);
+            assertEquals(TimeUnit.NANOSECONDS.toMillis(elapsed), delay);
+        }
+        assertEquals(FramePacer.MIN_FRAME_MESSAGES, pacer.getFrameMessages());
+    }
+    
+    @Test
+    void fastRenderingGrowsFramesUpToTheViewSize() {
+        FramePacer pacer = new FramePacer(MAX_MESSAGES);
+        add(pacer, 0, 10_000);
+        for (int frame = 0; frame < 10; frame++) {
+            pacer.nextFrame();
+            add(pacer, 0, MAX_MESSAGES);
+            assertEquals(FramePacer.FRAME_MILLIS, pacer.frameEnded(0));
+        }
+        assertEquals(MAX_MESSAGES, pacer.getFrameMessages());
+        
+        // Nothing left to catch up on, so the budget stays put
+        FramePacer idle = new FramePacer(MAX_MESSAGES);
+        idle.frameEnded(0);
+        assertEquals(FramePacer.INITIAL_FRAME_MESSAGES, idle.getFrameMessages());
+    }
+    
+    private static void add(FramePacer pacer, int first, int count) {
+        for (int i = first; i < first + count; i++) {
+            pacer.add(new Message("alice", "all", "m" + i, Message.MessageType.BROADCAST));
+        }
+    }
+}
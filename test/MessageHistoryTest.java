@@ -0,0 +1,149 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Replays that reach back past the ring into the journal
+class MessageHistoryTest {
+    private static final int MESSAGES = 20_000;
+    
+    // Collects what it is sent and never falls behind
+    private static final class RecordingSession implements ChatSession {
+        final BlockingQueue<Message> received = new LinkedBlockingQueue<>();
+        private final String username;
+        
+        RecordingSession(String username) {
+            this.username = username;
+        }
+        
+        @Override
+        public User getUser() {
+            return new User(username);
+        }
+        
+        @Override
+        public String getUsername() {
+            return username;
+        }
+        
+        @Override
+        public boolean isRunning() {
+            return true;
+        }
+        
+        @Override
+        public void send(EncodedMessage message) {
+            received.add(message.getMessage());
+        }
+        
+        @Override
+        public int getQueuedMessages() {
+            return 0;
+        }
+        
+        @Override
+        public void close() {
+        }
+    }
+    
+    @Test
+    void veryOldResumePointReadsOnlyTheJournalTail(@TempDir Path directory) throws Exception {
+        // Small segments, so the log is hundreds of them and the ring holds almost nothing
+        MessageJournal journal = new MessageJournal(directory, 4096, MessageJournal.DEFAULT_RETENTION_BYTES,
+            MessageJournal.DEFAULT_RETENTION_MILLIS, -1);
+        MessageHistory history = new MessageHistory(16);
+        history.setJournal(journal);
+        for (int i = 1; i <= MESSAGES; i++) {
+            history.record(new Message("alice", "all", "message " + i, Message.MessageType.BROADCAST));
+            // A segment is closed only between batches, so keep batches small
+            if (i % 32 == 0) {
+                awaitAppended(journal, i);
+            }
+        }
+        journal.close();
+        
+        RecordingSession bob = new RecordingSession("bob");
+        try {
+            history.replay(bob, 1, history.getSequence());
+            Message notice = bob.received.poll(5, TimeUnit.SECONDS);
+            assertNotNull(notice, "no replay");
+            assertEquals("Catching up on " + MessageHistory.MAX_REPLAY + " missed messages (older ones not shown).",
+                notice.getContent());
+            for (long expected = MESSAGES - MessageHistory.MAX_REPLAY + 1; expected <= MESSAGES; expected++) {
+                Message message = bob.received.poll(5, TimeUnit.SECONDS);
+                assertNotNull(message, "replay stopped before " + expected);
+                assertEquals("message " + expected, message.getContent());
+            }
+        } finally {
+            history.shutdown();
+        }
+        
+        // The replayed records, the rest of the segment the tail starts in and
+        // one record per newer segment to find it; nowhere near the whole log
+        assertTrue(journal.getRead() < 2 * MessageHistory.MAX_REPLAY,
+            "read " + journal.getRead() + " of " + MESSAGES + " records");
+    }
+    
+    @Test
+    void replayStopsAtTheSequenceTakenOnJoining() throws Exception {
+        MessageHistory history = new MessageHistory(64);
+        for (int i = 1; i <= 5; i++) {
+            history.record(new Message("alice", "all", "message " + i, Message.MessageType.BROADCAST));
+        }
+        long upTo = history.getSequence();
+        // Recorded once bob is in the registry, so the room sends it, not the replay
+        history.record(new Message("alice", "all", "message 6", Message.MessageType.BROADCAST));
+        
+        RecordingSession bob = new RecordingSession("bob");
+        try {
+            history.replay(bob, 2, upTo);
+            Message notice = bob.received.poll(5, TimeUnit.SECONDS);
+            assertNotNull(notice, "no replay");
+            assertEquals("Catching up on 3 missed messages.", notice.getContent());
+            for (int expected = 3; expected <= 5; expected++) {
+                Message message = bob.received.poll(5, TimeUnit.SECONDS);
+                assertNotNull(message, "replay stopped before " + expected);
+                assertEquals("message " + expected, message.getContent());
+            }
+            assertNull(bob.received.poll(200, TimeUnit.MILLISECONDS), "replayed a message sent after joining");
+        } finally {
+            history.shutdown();
+        }
+    }
+    
+    @Test
+    void privateMessagesAreNotReplayed() throws Exception {
+        MessageHistory history = new MessageHistory(64);
+        history.record(new Message("alice", "all", "message 1", Message.MessageType.BROADCAST));
+        // Whoever reconnects as bob need not be who it was sent to
+        history.record(new Message("alice", "bob", "secret", Message.MessageType.PRIVATE));
+        history.record(new Message("alice", "all", "message 3", Message.MessageType.BROADCAST));
+        
+        RecordingSession bob = new RecordingSession("bob");
+        try {
+            history.replay(bob, 1, history.getSequence());
+            Message notice = bob.received.poll(5, TimeUnit.SECONDS);
+            assertNotNull(notice, "no replay");
+            assertEquals("Catching up on 1 missed messages.", notice.getContent());
+            Message message = bob.received.poll(5, TimeUnit.SECONDS);
+            assertNotNull(message, "replay stopped early");
+            assertEquals("message 3", message.getContent());
+            assertNull(bob.received.poll(200, TimeUnit.MILLISECONDS), "replayed a private message");
+        } finally {
+            history.shutdown();
+        }
+    }
+    
+    private static void awaitAppended(MessageJournal journal, long records) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (journal.getAppended() < records) {
+            assertTrue(System.nanoTime() < deadline, "journal writer stalled");
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageJournalTest {
+    @Test
+    void oversizeMessageIsDroppedWithoutHidingLaterRecords(@TempDir Path directory) throws Exception {
+        MessageJournal journal = new MessageJournal(directory);
+        Message large = new Message("alice", "all", "x".repeat(MessageJournal.MAX_RECORD_BYTES),
+            Message.MessageType.BROADCAST);
+        large.setSequence(1);
+        journal.append(large);
+        for (long sequence = 2; sequence <= 4; sequence++) {
+            Message message = new Message("alice", "all", "message " + sequence, Message.MessageType.BROADCAST);
+            message.setSequence(sequence);
+            journal.append(message);
+        }
+        awaitWritten(journal, 4);
+        journal.close();
+        assertEquals(3, journal.getAppended());
+        assertEquals(1, journal.getDropped());
+        
+        MessageJournal reopened = new MessageJournal(directory);
+        try {
+            assertEquals(4, reopened.getRecoveredSequence());
+            List<String> contents = new ArrayList<>();
+            reopened.forEach(message -> contents.add(message.getContent()));
+            assertEquals(List.of("message 2", "message 3", "message 4"), contents);
+        } finally {
+            reopened.close();
+        }
+    }
+    
+    private static void awaitWritten(MessageJournal journal, long records) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (journal.getAppended() + journal.getDropped() < records) {
+            assertTrue(System.nanoTime() < deadline, "journal writer stalled");
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Frames reaching the NIO engine cut at arbitrary points: a length prefix
+// split across reads, a frame near the size limit spanning many reads, and
+// many frames in one read with the next one cut short
+class NioFramingTest {
+    private static final long TIMEOUT_MS = 10_000;
+    
+    private Server server;
+    private Socket socket;
+    private OutputStream out;
+    private TestClient bob;
+    
+    @BeforeEach
+    void connect() throws Exception {
+        int port = TestClient.freePort();
+        server = TestClient.startServer(new Server(port, Server.Engine.NIO));
+        bob = new TestClient(port, "bob", false);
+        
+        socket = new Socket("localhost", port);
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout((int) TIMEOUT_MS);
+        out = socket.getOutputStream();
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        assertEquals(MessageFrames.GREETING, in.readInt());
+        
+        // One byte per write, so even the length prefix arrives in pieces
+        byte[] connect = MessageFrames.encode(new Message("alice", "server", "alice", Message.MessageType.CONNECT));
+        for (byte b : connect) {
+            out.write(b);
+            out.flush();
+        }
+        Message reply;
+        do {
+            reply = MessageFrames.read(in);
+        } while (reply.getType() != Message.MessageType.CONNECT);
+    }
+    
+    @AfterEach
+    void close() throws IOException {
+        socket.close();
+        bob.close();
+        server.stop();
+    }
+    
+    @Test
+    void frameNearTheSizeLimitSpansManyReads() throws Exception {
+        char[] text = new char[MessageFrames.MAX_FRAME_LENGTH - 4096];
+        Arrays.fill(text, 'x');
+        String content = new String(text);
+        byte[] frame = broadcast(content);
+        for (int offset = 0; offset < frame.length; offset += 1000) {
+            out.write(frame, offset, Math.min(1000, frame.length - offset));
+        }
+        out.flush();
+        
+        Message received = bob.next(Message.MessageType.BROADCAST, TIMEOUT_MS);
+        assertNotNull(received, "large frame never arrived");
+        assertEquals(content, received.getContent());
+    }
+    
+    @Test
+    void manyFramesInOneWriteAndOneCutShort() throws Exception {
+        int count = 200;
+        ByteArrayOutputStream burst = new ByteArrayOutputStream();
+        for (int i = 0; i < count; i++) {
+            burst.write(broadcast("m" + i));
+        }
+        byte[] last = broadcast("m" + count);
+        burst.write(last, 0, 6);
+        out.write(burst.toByteArray());
+        out.flush();
+        Thread.sleep(100);
+        out.write(last, 6, last.length - 6);
+        out.flush();
+        
+        for (int i = 0; i <= count; i++) {
+            Message received = bob.next(Message.MessageType.BROADCAST, TIMEOUT_MS);
+            assertNotNull(received, "stopped before m" + i);
+            assertEquals("m" + i, received.getContent());
+        }
+    }
+    
+    private static byte[] broadcast(String content) throws IOException {
+        return MessageFrames.encode(new Message("alice", "all", content, Message.MessageType.BROADCAST));
+    }
+}
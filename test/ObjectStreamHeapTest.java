@@ -0,0 +1,117 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// A serialization client keeps one ObjectOutputStream for its whole session,
+// and the server mirrors its handle table in an ObjectInputStream. Without
+// resets both tables hold every message ever sent, so a million messages on
+// one connection costs over 100 MB; with ResettingObjectOutputStream
+// the heap must stay flat. A control run with a plain ObjectOutputStream
+// shows the same measurement does catch that growth.
+class ObjectStreamHeapTest {
+    private static final int MESSAGES = 1_000_000;
+    private static final int WARMUP = 100_000;
+    // Far below the growth without resets, far above GC noise
+    private static final long MAX_GROWTH_BYTES = 32L << 20;
+    private static final long RECEIVE_TIMEOUT_SECONDS = 120;
+    
+    @Test
+    void heapStaysFlatOverAMillionMessages() throws Exception {
+        long[] resets = new long[1];
+        long growth = heapGrowth(MESSAGES, socket -> {
+            ResettingObjectOutputStream out = new ResettingObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            return message -> {
+                out.writeMessage(message);
+                resets[0] = out.getResets();
+            };
+        });
+        
+        assertTrue(growth < MAX_GROWTH_BYTES, "heap grew " + (growth >> 20) + " MB over " + (MESSAGES - WARMUP) + " messages");
+        assertTrue(resets[0] >= MESSAGES / ResettingObjectOutputStream.DEFAULT_MAX_MESSAGES,
+            "only " + resets[0] + " resets");
+    }
+    
+    @Test
+    void heapGrowsWithoutResets() throws Exception {
+        long growth = heapGrowth(MESSAGES, socket -> {
+            ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            return message -> {
+                out.writeObject(message);
+                out.flush();
+            };
+        });
+        
+        assertTrue(growth >= MAX_GROWTH_BYTES, "heap grew only " + (growth >> 20) + " MB over "
+            + (MESSAGES - WARMUP) + " messages without resets");
+    }
+    
+    private interface MessageWriter {
+        void write(Message message) throws IOException;
+    }
+    
+    private interface WriterFactory {
+        MessageWriter open(Socket socket) throws IOException;
+    }
+    
+    // Heap used once the server has read all of messages broadcasts, less
+    // what was used once it had read the first WARMUP of them
+    private static long heapGrowth(int messages, WriterFactory writers) throws Exception {
+        int port = TestClient.freePort();
+        Server server = TestClient.startServer(new Server(port, Server.Engine.THREADS));
+        try (Socket socket = new Socket("localhost", port)) {
+            ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(socket.getInputStream()));
+            MessageWriter out = writers.open(socket);
+            out.write(new Message("heap", "server", "heap", Message.MessageType.CONNECT));
+            while (((Message) in.readObject()).getType() != Message.MessageType.CONNECT) {
+                // Skip anything sent before the reply
+            }
+            // Read the broadcasts coming back so the server never stalls on this client
+            Thread drain = new Thread(() -> {
+                try {
+                    while (true) {
+                        in.readObject();
+                    }
+                } catch (IOException | ClassNotFoundException e) {
+                    // Closed
+                }
+            }, "heap-test-drain");
+            drain.setDaemon(true);
+            drain.start();
+            
+            long baseline = 0;
+            for (int i = 1; i <= messages; i++) {
+                out.write(new Message("heap", "all", "message number " + i, Message.MessageType.BROADCAST));
+                if (i == WARMUP) {
+                    awaitReceived(server, i);
+                    baseline = usedHeapAfterGc();
+                }
+            }
+            awaitReceived(server, messages);
+            return usedHeapAfterGc() - baseline;
+        } finally {
+            server.stop();
+        }
+    }
+    
+    // Until the server has read this many broadcasts, so none are still in flight
+    private static void awaitReceived(Server server, long broadcasts) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(RECEIVE_TIMEOUT_SECONDS);
+        while (server.getMetrics().getMessagesIn() < broadcasts) {
+            assertTrue(System.nanoTime() < deadline, "server read only "
+                + server.getMetrics().getMessagesIn() + " of " + broadcasts + " messages");
+            Thread.sleep(10);
+        }
+    }
+    
+    private static long usedHeapAfterGc() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
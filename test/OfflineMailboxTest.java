@@ -0,0 +1,147 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Delivery of stored mail to a session whose outbound queue overflows
+class OfflineMailboxTest {
+    private static final int MAIL = 150;
+    private static final long TIMEOUT_MS = 20_000;
+    
+    // A session over a real OutboundQueue, drained by writer() as a socket writer would
+    private static final class QueueSession implements ChatSession {
+        final OutboundQueue outbound;
+        final AtomicInteger mailSent = new AtomicInteger();
+        private final String username;
+        private volatile boolean running = true;
+        
+        QueueSession(String username, OutboundQueue outbound) {
+            this.username = username;
+            this.outbound = outbound;
+        }
+        
+        @Override
+        public User getUser() {
+            return new User(username);
+        }
+        
+        @Override
+        public String getUsername() {
+            return username;
+        }
+        
+        @Override
+        public boolean isRunning() {
+            return running;
+        }
+        
+        @Override
+        public void send(EncodedMessage message) {
+            if (isMail(message.getMessage())) {
+                mailSent.incrementAndGet();
+            }
+            outbound.offer(message);
+        }
+        
+        @Override
+        public int getQueuedMessages() {
+            return outbound.size();
+        }
+        
+        @Override
+        public void close() {
+            running = false;
+            outbound.close();
+        }
+    }
+    
+    @Test
+    void mailDroppedByAFullQueueIsSentAgain(@TempDir Path directory) throws Exception {
+        OfflineMailbox mailbox = new OfflineMailbox(directory, new SessionRegistry());
+        QueueSession alice = new QueueSession("alice", new OutboundQueue(OutboundQueue.DEFAULT_CAPACITY,
+            OutboundQueue.OverflowPolicy.DROP_OLDEST));
+        for (int i = 0; i < MAIL; i++) {
+            mailbox.store(alice, new Message("alice", "bob", "mail " + i, Message.MessageType.PRIVATE));
+        }
+        awaitTrue(() -> mailbox.getWaiting() == MAIL, "mail was not stored");
+        
+        // Smaller than a delivery chunk, and broadcast bursts keep overflowing it
+        QueueSession bob = new QueueSession("bob", new OutboundQueue(8, OutboundQueue.OverflowPolicy.DROP_OLDEST));
+        Set<String> received = ConcurrentHashMap.newKeySet();
+        Thread writer = new Thread(() -> {
+            try {
+                EncodedMessage message;
+                while ((message = bob.outbound.take()) != null) {
+                    Thread.sleep(1);
+                    if (isMail(message.getMessage())) {
+                        received.add(message.getMessage().getContent());
+                    }
+                    message.written();
+                }
+            } catch (InterruptedException e) {
+                // Stopped
+            }
+        }, "test-writer");
+        Thread noise = new Thread(() -> {
+            try {
+                while (true) {
+                    for (int i = 0; i < 32; i++) {
+                        bob.send(new EncodedMessage(new Message("carol", "all", "noise", Message.MessageType.BROADCAST)));
+                    }
+                    Thread.sleep(20);
+                }
+            } catch (InterruptedException e) {
+                // Stopped
+            }
+        }, "test-noise");
+        writer.start();
+        noise.start();
+        try {
+            mailbox.deliver(bob);
+            awaitTrue(() -> received.size() == MAIL && mailbox.getWaiting() == 0,
+                () -> received.size() + " of " + MAIL + " received, " + mailbox);
+        } finally {
+            noise.interrupt();
+            noise.join();
+            bob.close();
+            writer.join();
+            mailbox.close();
+        }
+        assertEquals(MAIL, mailbox.getDelivered());
+        assertTrue(bob.mailSent.get() > MAIL, "no mail was dropped, so nothing was tested");
+        
+        // Everything is logged as delivered, so a restart has nothing to send
+        OfflineMailbox reopened = new OfflineMailbox(directory, new SessionRegistry());
+        try {
+            assertEquals(0, reopened.getWaiting());
+        } finally {
+            reopened.close();
+        }
+    }
+    
+    private static boolean isMail(Message message) {
+        return "alice".equals(message.getSender()) && message.getContent().startsWith("mail ");
+    }
+    
+    private static void awaitTrue(BooleanSupplier condition, String failure) throws InterruptedException {
+        awaitTrue(condition, () -> failure);
+    }
+    
+    private static void awaitTrue(BooleanSupplier condition, Supplier<String> failure) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) {
+                fail(failure.get());
+            }
+            Thread.sleep(10);
+        }
+    }
+}
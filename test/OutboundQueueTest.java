@@ -0,0 +1,122 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// Overflow policies of one client's outbound queue, and the fresh user list
+// COALESCE sends after presence was dropped
+class OutboundQueueTest {
+    private static final int CAPACITY = 4;
+    
+    private static EncodedMessage chat(int i) {
+        return new EncodedMessage(new Message("alice", "all", "chat " + i, Message.MessageType.BROADCAST));
+    }
+    
+    private static EncodedMessage presence(Message.MessageType type, long version, String payload) {
+        return new EncodedMessage(new Message("Server", "bob", Presence.encode(version, payload), type));
+    }
+    
+    private static List<String> drain(OutboundQueue queue) {
+        List<String> contents = new ArrayList<>();
+        EncodedMessage message;
+        while ((message = queue.poll()) != null) {
+            contents.add(message.getMessage().getContent());
+        }
+        return contents;
+    }
+    
+    @Test
+    void droppedDeltaIsFollowedByFreshUserList() {
+        AtomicInteger resyncs = new AtomicInteger();
+        OutboundQueue[] holder = new OutboundQueue[1];
+        OutboundQueue queue = new OutboundQueue(CAPACITY, OutboundQueue.OverflowPolicy.COALESCE, () -> {
+            resyncs.incrementAndGet();
+            holder[0].offer(presence(Message.MessageType.USER_LIST, 1, "alice,bob,carol,"));
+        });
+        holder[0] = queue;
+        
+        // The delta is the last presence change, so no later one would show the client a gap
+        queue.offer(presence(Message.MessageType.USER_JOINED, 1, "carol"));
+        for (int i = 0; i < CAPACITY; i++) {
+            queue.offer(chat(i));
+        }
+        
+        // The fresh list is bounded like anything else, so it pushes out the oldest chat
+        assertEquals(List.of("chat 1", "chat 2", "chat 3", "1;alice,bob,carol,"), drain(queue));
+        assertEquals(1, resyncs.get());
+        assertEquals(2, queue.getDropped());
+    }
+    
+    @Test
+    void droppedUserListIsSentAgain() {
+        AtomicInteger resyncs = new AtomicInteger();
+        OutboundQueue[] holder = new OutboundQueue[1];
+        OutboundQueue queue = new OutboundQueue(CAPACITY, OutboundQueue.OverflowPolicy.COALESCE, () -> {
+            holder[0].offer(presence(Message.MessageType.USER_LIST, 1, "resync " + resyncs.incrementAndGet()));
+        });
+        holder[0] = queue;
+        
+        queue.offer(presence(Message.MessageType.USER_LIST, 0, "alice,bob,"));
+        for (int i = 0; i < CAPACITY; i++) {
+            queue.offer(chat(i));
+        }
+        // The writer takes one message and queues the fresh list, which the next burst drops as well
+        assertEquals("chat 1", queue.poll().getMessage().getContent());
+        for (int i = 4; i < 4 + CAPACITY; i++) {
+            queue.offer(chat(i));
+        }
+        
+        assertEquals(List.of("chat 5", "chat 6", "chat 7", "1;resync 2"), drain(queue));
+        assertEquals(2, resyncs.get());
+    }
+    
+    @Test
+    void droppedChatNeedsNoUserList() {
+        AtomicInteger resyncs = new AtomicInteger();
+        OutboundQueue queue = new OutboundQueue(CAPACITY, OutboundQueue.OverflowPolicy.COALESCE, resyncs::incrementAndGet);
+        for (int i = 0; i < CAPACITY * 2; i++) {
+            queue.offer(chat(i));
+        }
+        
+        assertEquals(List.of("chat 4", "chat 5", "chat 6", "chat 7"), drain(queue));
+        assertEquals(0, resyncs.get());
+        assertEquals(CAPACITY, queue.getDropped());
+    }
+    
+    @Test
+    void onlyNewestUserListIsSent() {
+        OutboundQueue queue = new OutboundQueue(CAPACITY, OutboundQueue.OverflowPolicy.COALESCE);
+        queue.offer(presence(Message.MessageType.USER_LIST, 1, "alice,"));
+        queue.offer(chat(0));
+        queue.offer(presence(Message.MessageType.USER_LIST, 2, "alice,bob,"));
+        
+        assertEquals(List.of("chat 0", "2;alice,bob,"), drain(queue));
+        assertEquals(1, queue.getDropped());
+    }
+    
+    @Test
+    void dropOldestNeverResyncs() {
+        AtomicInteger resyncs = new AtomicInteger();
+        OutboundQueue queue = new OutboundQueue(CAPACITY, OutboundQueue.OverflowPolicy.DROP_OLDEST, resyncs::incrementAndGet);
+        queue.offer(presence(Message.MessageType.USER_JOINED, 1, "carol"));
+        for (int i = 0; i < CAPACITY; i++) {
+            queue.offer(chat(i));
+        }
+        
+        assertEquals(List.of("chat 0", "chat 1", "chat 2", "chat 3"), drain(queue));
+        assertEquals(0, resyncs.get());
+    }
+    
+    @Test
+    void dropClientRefusesWhenFull() {
+        OutboundQueue queue = new OutboundQueue(CAPACITY, OutboundQueue.OverflowPolicy.DROP_CLIENT);
+        for (int i = 0; i < CAPACITY; i++) {
+            assertTrue(queue.offer(chat(i)));
+        }
+        assertFalse(queue.offer(chat(CAPACITY)));
+        assertEquals(List.of("chat 0", "chat 1", "chat 2", "chat 3"), drain(queue));
+    }
+}
@@ -0,0 +1,63 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SearchIndexTest {
+    @Test
+    void privateMessagesAreNotIndexed() throws Exception {
+        SearchIndex index = new SearchIndex();
+        try {
+            assertFalse(index.add(message(1, "alice", "bob", "secret plan", Message.MessageType.PRIVATE)));
+            assertTrue(index.add(message(2, "alice", "all", "public plan", Message.MessageType.BROADCAST)));
+            awaitSize(index, 1);
+            
+            List<Message> hits = index.search(SearchIndex.Query.parse("plan"), SearchIndex.DEFAULT_LIMIT, message -> true);
+            assertEquals(1, hits.size());
+            assertEquals("public plan", hits.get(0).getContent());
+            assertTrue(index.search(SearchIndex.Query.parse("in:bob"), SearchIndex.DEFAULT_LIMIT, message -> true).isEmpty());
+        } finally {
+            index.close();
+        }
+    }
+    
+    @Test
+    void trimmingForgetsNamesNoLongerUsed() throws Exception {
+        SearchIndex index = new SearchIndex();
+        try {
+            for (int i = 1; i <= 100; i++) {
+                index.add(message(i, "sender" + i, "all", "hello " + i, Message.MessageType.BROADCAST));
+            }
+            awaitSize(index, 100);
+            // 100 senders and "all"
+            assertEquals(101, index.names());
+            
+            index.trimBefore(91);
+            assertEquals(10, index.size());
+            assertEquals(11, index.names());
+            List<Message> hits = index.search(SearchIndex.Query.parse("from:sender95"), SearchIndex.DEFAULT_LIMIT, message -> true);
+            assertEquals(1, hits.size());
+            assertEquals("sender95", hits.get(0).getSender());
+            assertEquals("all", hits.get(0).getRecipient());
+            assertEquals("hello 95", hits.get(0).getContent());
+        } finally {
+            index.close();
+        }
+    }
+    
+    private static Message message(long sequence, String sender, String recipient, String content, Message.MessageType type) {
+        Message message = new Message(sender, recipient, content, type);
+        message.setSequence(sequence);
+        return message;
+    }
+    
+    private static void awaitSize(SearchIndex index, int size) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (index.size() < size) {
+            assertTrue(System.nanoTime() < deadline, "indexer stalled");
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Headless client for tests. Speaks whatever the server greets with: Java
+// serialization on the thread engines, length-prefixed frames on the NIO
+// engine, and BinaryCodec frames on either once offered and accepted.
+// Everything received, from the CONNECT reply on, lands in inbox, including
+// the notice sent before the server closes a connection it refuses.
+class TestClient implements Closeable {
+    private static final int HANDSHAKE_TIMEOUT_MS = 5000;
+    
+    final BlockingQueue<Message> inbox = new LinkedBlockingQueue<>();
+    private final Socket socket;
+    private final BufferedInputStream in;
+    private boolean framed;
+    private ObjectOutputStream objectOutput;
+    private ObjectInputStream objectInput;
+    private DataOutputStream frameOutput;
+    private DataInputStream frameInput;
+    private BinaryCodec codec;
+    
+    TestClient(int port, String username, boolean binary) throws IOException {
+        socket = new Socket("localhost", port);
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+        in = new BufferedInputStream(socket.getInputStream());
+        in.mark(4);
+        if (new DataInputStream(in).readInt() == MessageFrames.GREETING) {
+            openFrames();
+        } else {
+            in.reset();
+            objectOutput = new ObjectOutputStream(socket.getOutputStream());
+            objectInput = new ObjectInputStream(in);
+        }
+        
+        Message connect = new Message(username, "server", username, Message.MessageType.CONNECT);
+        if (binary) {
+            connect.setCodec(BinaryCodec.NAME);
+        }
+        send(connect);
+        Message reply;
+        do {
+            try {
+                reply = read();
+            } catch (EOFException e) {
+                if (inbox.isEmpty()) {
+                    throw e;
+                }
+                // Refused; what it was told is in inbox
+                socket.close();
+                return;
+            }
+            inbox.add(reply);
+        } while (reply.getType() != Message.MessageType.CONNECT);
+        if (BinaryCodec.NAME.equals(reply.getCodec())) {
+            if (!framed) {
+                openFrames();
+            }
+            codec = new BinaryCodec(new NameTable());
+        }
+        socket.setSoTimeout(0);
+        
+        Thread reader = new Thread(() -> {
+            try {
+                while (true) {
+                    inbox.add(read());
+                }
+            } catch (IOException e) {
+                // Closed
+            }
+        }, "test-client-" + username);
+        reader.setDaemon(true);
+        reader.start();
+    }
+    
+    boolean isBinary() {
+        return codec != null;
+    }
+    
+    // Not thread-safe, like the real client's writer
+    void send(Message message) throws IOException {
+        if (codec != null) {
+            codec.write(frameOutput, message);
+        } else if (framed) {
+            MessageFrames.write(frameOutput, message);
+        } else {
+            // Reset first: after a CONNECT offering binary the server reads frames, not a trailing reset
+            objectOutput.reset();
+            objectOutput.writeObject(message);
+            objectOutput.flush();
+        }
+    }
+    
+    // The next message of this type, skipping others, or null after timeoutMillis
+    Message next(Message.MessageType type, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (true) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            Message message = inbox.poll(remaining, TimeUnit.NANOSECONDS);
+            if (message != null && message.getType() == type) {
+                return message;
+            }
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+    
+    // A port nothing is listening on right now
+    static int freePort() throws IOException {
+        try (ServerSocket probe = new ServerSocket(0)) {
+            return probe.getLocalPort();
+        }
+    }
+    
+    // Starts a server on its own daemon thread; it accepts from the moment this returns
+    static Server startServer(Server server) {
+        Thread thread = new Thread(server::start, "test-server");
+        thread.setDaemon(true);
+        thread.start();
+        return server;
+    }
+    
+    private void openFrames() throws IOException {
+        framed = true;
+        frameOutput = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        frameInput = new DataInputStream(in);
+    }
+    
+    private Message read() throws IOException {
+        if (codec != null) {
+            return codec.read(frameInput);
+        }
+        if (framed) {
+            return MessageFrames.read(frameInput);
+        }
+        try {
+            return (Message) objectInput.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+}